@@ -10,6 +10,7 @@ public class Application extends android.app.Application {
   @Override
   public void onCreate() {
     super.onCreate();
+    HackerNewsApi.initialize(this);
     // TODO: Insert your Hoomi application ID here
     HoomiClient.setCurrentClient(new HoomiClient(this, HOOMI_APPLICATION_ID));
     // TODO: Uncomment the line below and add your application's Google Web Client ID to enable client authentication.
@@ -9,25 +9,14 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.AbsListView;
 import android.widget.EditText;
-import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.TextView;
-
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
 
 import bolts.Capture;
 import bolts.Continuation;
@@ -42,12 +31,31 @@ public class DataListActivity extends Activity {
   private String hackerNewsAlias;
   private String hackerNewsKarma;
   private ListView listView;
+  private StoriesAdapter storiesAdapter;
+  private StoriesFeed storiesFeed;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_data_list);
     listView = (ListView) findViewById(R.id.listView);
+    storiesAdapter = new StoriesAdapter(this);
+    storiesFeed = new StoriesFeed(HackerNewsApi.getItemFetcher(), storiesAdapter);
+    storiesAdapter.setFeed(storiesFeed);
+    listView.setAdapter(storiesAdapter);
+    listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+
+      @Override
+      public void onScroll(AbsListView view,
+                           int firstVisibleItem,
+                           int visibleItemCount,
+                           int totalItemCount) {
+        storiesFeed.ensureLoaded(firstVisibleItem + visibleItemCount - 1);
+      }
+    });
     loggedIn();
   }
 
@@ -66,6 +74,12 @@ public class DataListActivity extends Activity {
     // as you specify a parent activity in AndroidManifest.xml.
     int id = item.getItemId();
 
+    if (id == R.id.action_refresh) {
+      storiesFeed.refreshAsync(listView.getFirstVisiblePosition(),
+          listView.getLastVisiblePosition());
+      return true;
+    }
+
     //noinspection SimplifiableIfStatement
     if (id == R.id.action_logout) {
       HoomiClient.getCurrentClient().logOut();
@@ -151,60 +165,21 @@ public class DataListActivity extends Activity {
         });
   }
 
-  private String getDescription(JSONObject item) throws JSONException {
-    return String.format("%s points by %s at %s",
-        item.getString("score"),
-        item.getString("by"),
-        new Date(item.getLong("time") * 1000));
-  }
-
+  /**
+   * Starts loading the top stories into the list, which fills in as they arrive and
+   * loads further pages as the user scrolls.
+   *
+   * @return a task that completes once the list has something to show
+   */
   private Task<Void> updateStoriesAsync() {
-    return HackerNewsApi.getTopStoriesAsync()
-        .onSuccess(new Continuation<List<JSONObject>, Void>() {
-          @Override
-          public Void then(Task<List<JSONObject>> task) throws Exception {
-            ArrayAdapter<JSONObject> adapter =
-                new ArrayAdapter<JSONObject>(DataListActivity.this, 0, task.getResult()) {
-                  @Override
-                  public View getView(int position, View convertView, ViewGroup parent) {
-                    try {
-                      LinearLayout layout = new LinearLayout(getContext());
-                      layout.setOrientation(LinearLayout.VERTICAL);
-                      layout.setPadding(16, 0, 16, 0);
-                      TextView title = new TextView(getContext());
-                      title.setText((position + 1) + ". " + getItem(position).getString("title"));
-                      title.setTextAppearance(getContext(),
-                          android.R.style.TextAppearance_DeviceDefault_SearchResult_Title);
-                      title.setMaxLines(1);
-                      title.setEllipsize(TextUtils.TruncateAt.END);
-                      title.setPadding(0, 15, 0, 10);
-                      layout.addView(title);
-                      TextView description = new TextView(getContext());
-                      description.setText(getDescription(getItem(position)));
-                      description.setTextAppearance(getContext(),
-                          android.R.style.TextAppearance_DeviceDefault_SearchResult_Subtitle);
-                      description.setTextColor(Color.rgb(130, 130, 130));
-                      description.setMaxLines(1);
-                      description.setEllipsize(TextUtils.TruncateAt.END);
-                      description.setPadding(50, 0, 0, 15);
-                      layout.addView(description);
-                      return layout;
-                    } catch (Exception e) {
-                      throw new RuntimeException(e);
-                    }
-                  }
-                };
-            listView.setAdapter(adapter);
-            return null;
-          }
-        }, Task.UI_THREAD_EXECUTOR);
+    return storiesFeed.loadAsync();
   }
 
   private Task<Void> updateKarmaAsync(String userId) {
-    return HackerNewsApi.getUserAsync(userId).onSuccess(new Continuation<JSONObject, Void>() {
+    return HackerNewsApi.getUserAsync(userId).onSuccess(new Continuation<HackerNewsUser, Void>() {
       @Override
-      public Void then(Task<JSONObject> task) throws Exception {
-        setHackerNewsKarma(task.getResult().optString("karma", null));
+      public Void then(Task<HackerNewsUser> task) throws Exception {
+        setHackerNewsKarma(String.valueOf(task.getResult().getKarma()));
         return null;
       }
     }, Task.UI_THREAD_EXECUTOR);
@@ -4,131 +4,262 @@
 
 package co.hoomi.yesyoo;
 
+import android.content.Context;
 import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
-import org.apache.commons.io.IOUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
-
+import java.io.File;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import bolts.Continuation;
 import bolts.Task;
 import co.hoomi.HoomiException;
+import co.hoomi.HttpEngine;
 
 public class HackerNewsApi {
   private static final String BASE_API_URL = "https://hacker-news.firebaseio.com/";
+  private static final int TOP_STORIES_COUNT = 30;
+  private static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+
+  // How long cached responses are served without revalidating them.  Stories change
+  // slowly once they have scrolled off the front page; the ranking itself changes often.
+  static final long ITEM_MAX_AGE_MILLIS = 5 * 60 * 1000;
+  static final long USER_MAX_AGE_MILLIS = 30 * 60 * 1000;
+  static final long TOP_STORIES_MAX_AGE_MILLIS = 60 * 1000;
+
+  private static final int MAX_CONCURRENT_ITEMS = 6;
+
+  static {
+    // Match the engine's limit for the API host to the item fetcher's concurrency.
+    HttpEngine.getSharedEngine().setMaxRequestsPerHost(Uri.parse(BASE_API_URL).getHost(),
+        MAX_CONCURRENT_ITEMS);
+  }
+
+  private static ItemFetcher itemFetcher = new ItemFetcher(MAX_CONCURRENT_ITEMS, 10000);
+  private static HackerNewsCache cache;
+  private static final Set<String> revalidating = new HashSet<String>();
+
+  /**
+   * Sets up the response cache in the application's cache directory.  Until this is
+   * called, every request goes to the network.
+   */
+  public static synchronized void initialize(Context context) {
+    if (cache == null) {
+      cache = new HackerNewsCache(new File(context.getCacheDir(), "hacker-news"),
+          1024 * 1024,
+          8 * 1024 * 1024);
+    }
+  }
+
+  static synchronized HackerNewsCache getCache() {
+    return cache;
+  }
+
+  static String itemKey(long id) {
+    return "item/" + id;
+  }
+
+  public static ItemFetcher getItemFetcher() {
+    return itemFetcher;
+  }
 
-  public static Task<JSONObject> getUserAsync(String username) {
+  public static void setItemFetcher(ItemFetcher fetcher) {
+    itemFetcher = fetcher;
+  }
+
+  public static Task<HackerNewsUser> getUserAsync(String username) {
     try {
-      return requestAsync("v0/user/" + URLEncoder.encode(username, "UTF-8") + ".json", "GET", null);
+      return cachedRequestAsync("user/" + username,
+          "v0/user/" + URLEncoder.encode(username, "UTF-8") + ".json",
+          HackerNewsJson.USER,
+          USER_MAX_AGE_MILLIS);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
-  public static Task<JSONObject> getItemAsync(String item) {
+  public static Task<HackerNewsItem> getItemAsync(String item) {
     try {
-      return requestAsync("v0/item/" + URLEncoder.encode(item, "UTF-8") + ".json", "GET", null);
+      return cachedRequestAsync("item/" + item,
+          "v0/item/" + URLEncoder.encode(item, "UTF-8") + ".json",
+          HackerNewsJson.ITEM,
+          ITEM_MAX_AGE_MILLIS);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
-  public static Task<List<JSONObject>> getTopStoriesAsync() {
-    try {
-      final ArrayList<Task<JSONObject>> fetches = new ArrayList<Task<JSONObject>>();
-      return requestAsync("v0/topstories.json", "GET", null)
-          .onSuccessTask(new Continuation<JSONObject, Task<Void>>() {
-            @Override
-            public Task<Void> then(Task<JSONObject> task) throws Exception {
-              JSONArray results = task.getResult().getJSONArray("results");
-              for (int i = 0; i < results.length() && i < 30; i++) {
-                fetches.add(getItemAsync("" + results.getLong(i)));
-              }
-              return Task.whenAll(fetches);
+  public static Task<long[]> getTopStoryIdsAsync() {
+    return getTopStoryIdsAsync(false);
+  }
+
+  /**
+   * Gets the IDs of the top stories, in rank order.
+   *
+   * @param forceRefresh whether to skip the cache and fetch the current ranking
+   * @return the story IDs (asynchronously)
+   */
+  public static Task<long[]> getTopStoryIdsAsync(boolean forceRefresh) {
+    return forceRefresh ?
+        refreshedRequestAsync("topstories", "v0/topstories.json", HackerNewsJson.IDS) :
+        cachedRequestAsync("topstories",
+            "v0/topstories.json",
+            HackerNewsJson.IDS,
+            TOP_STORIES_MAX_AGE_MILLIS);
+  }
+
+  public static Task<List<HackerNewsItem>> getTopStoriesAsync() {
+    final ArrayList<Task<HackerNewsItem>> fetches = new ArrayList<Task<HackerNewsItem>>();
+    return getTopStoryIdsAsync()
+        .onSuccessTask(new Continuation<long[], Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<long[]> task) throws Exception {
+            long[] ids = task.getResult();
+            for (int i = 0; i < ids.length && i < TOP_STORIES_COUNT; i++) {
+              // Rank is the priority, so the top of the list is fetched first.
+              fetches.add(itemFetcher.fetchAsync(ids[i], i));
+            }
+            return Task.whenAll(fetches);
+          }
+        }).continueWith(new Continuation<Void, List<HackerNewsItem>>() {
+          @Override
+          public List<HackerNewsItem> then(Task<Void> task) throws Exception {
+            if (fetches.isEmpty() && task.isFaulted()) {
+              throw task.getError();
             }
-          }).onSuccess(new Continuation<Void, List<JSONObject>>() {
-            @Override
-            public List<JSONObject> then(Task<Void> _0) throws Exception {
-              ArrayList<JSONObject> items = new ArrayList<JSONObject>();
-              for (Task<JSONObject> task : fetches) {
-                items.add(task.getResult());
+            // Items that failed or timed out are left out rather than failing the list.
+            ArrayList<HackerNewsItem> items = new ArrayList<HackerNewsItem>();
+            for (Task<HackerNewsItem> fetch : fetches) {
+              if (!fetch.isFaulted()) {
+                items.add(fetch.getResult());
               }
-              return items;
             }
-          });
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
+            return items;
+          }
+        });
   }
 
-  static Task<JSONObject> requestAsync(final String path,
-                                       final String method,
-                                       final JSONObject parameters) {
-    return Task.callInBackground(new Callable<JSONObject>() {
+  /**
+   * Serves a GET request from the cache if it holds any copy of the response, however
+   * old, and revalidates stale copies in the background.  Only responses that have
+   * never been fetched wait for the network.
+   */
+  static <T> Task<T> cachedRequestAsync(final String key,
+                                        final String path,
+                                        final HackerNewsJson.Codec<T> codec,
+                                        final long maxAgeMillis) {
+    final HackerNewsCache cache = getCache();
+    if (cache == null) {
+      return requestAsync(path, codec);
+    }
+    return Task.callInBackground(new Callable<T>() {
       @Override
-      public JSONObject call() throws Exception {
-        Uri.Builder builder = Uri.parse(BASE_API_URL + path)
-            .buildUpon();
-        if (method.equals("GET") && parameters != null) {
-          Iterator<String> keys = parameters.keys();
-          while (keys.hasNext()) {
-            String key = keys.next();
-            builder.appendQueryParameter(key, parameters.get(key).toString());
-          }
+      public T call() throws Exception {
+        HackerNewsCache.Entry<T> entry = cache.get(key, codec);
+        if (entry == null) {
+          T result = request(path, codec, DEFAULT_TIMEOUT_MILLIS);
+          cache.put(key, result, codec);
+          return result;
         }
-        URL url = new URL(builder.build().toString());
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(method);
-        if (!method.equals("GET") && parameters != null) {
-          String body;
-          connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-          StringBuilder sb = new StringBuilder();
-          Iterator<String> keys = parameters.keys();
-          while (keys.hasNext()) {
-            String key = keys.next();
-            sb.append(URLEncoder.encode(key, "UTF-8"));
-            sb.append("=");
-            sb.append(URLEncoder.encode(parameters.get(key).toString(), "UTF-8"));
-            if (keys.hasNext()) {
-              sb.append("&");
-            }
-          }
-          body = sb.toString();
-          OutputStream output = connection.getOutputStream();
-          OutputStreamWriter writer = new OutputStreamWriter(output);
-          writer.write(body);
-          writer.close();
+        if (!entry.isFresh(maxAgeMillis)) {
+          revalidateAsync(cache, key, path, codec);
         }
+        return entry.getValue();
+      }
+    });
+  }
 
-        InputStream input = connection.getInputStream();
-        String result = IOUtils.toString(input);
+  /**
+   * Fetches a GET request from the network and stores the response in the cache.
+   */
+  static <T> Task<T> refreshedRequestAsync(final String key,
+                                           final String path,
+                                           final HackerNewsJson.Codec<T> codec) {
+    return requestAsync(path, codec).onSuccess(new Continuation<T, T>() {
+      @Override
+      public T then(Task<T> task) throws Exception {
+        HackerNewsCache cache = getCache();
+        if (cache != null) {
+          cache.put(key, task.getResult(), codec);
+        }
+        return task.getResult();
+      }
+    }, Task.BACKGROUND_EXECUTOR);
+  }
 
-        if (connection.getResponseCode() < 200 || connection.getResponseCode() > 399) {
-          throw new HoomiException("HTTP Error: " + connection.getResponseCode() +
-              " " + connection.getResponseMessage());
+  private static <T> void revalidateAsync(final HackerNewsCache cache,
+                                          final String key,
+                                          final String path,
+                                          final HackerNewsJson.Codec<T> codec) {
+    synchronized (revalidating) {
+      if (!revalidating.add(key)) {
+        return;
+      }
+    }
+    requestAsync(path, codec).continueWith(new Continuation<T, Void>() {
+      @Override
+      public Void then(Task<T> task) throws Exception {
+        synchronized (revalidating) {
+          revalidating.remove(key);
         }
-        if (result.startsWith("{")) {
-          return new JSONObject(result);
-        } else if (result.startsWith("[")) {
-          JSONObject obj = new JSONObject();
-          JSONArray array = new JSONArray(result);
-          obj.put("results", array);
-          return obj;
-        } else {
-          throw new RuntimeException("Bad data: " + result);
+        if (!task.isFaulted()) {
+          cache.put(key, task.getResult(), codec);
         }
+        return null;
       }
-    });
+    }, Task.BACKGROUND_EXECUTOR);
+  }
+
+  static <T> Task<T> requestAsync(String path, HackerNewsJson.Codec<T> codec) {
+    return HttpEngine.getSharedEngine().executeAsync(newRequest(path, DEFAULT_TIMEOUT_MILLIS),
+        parserFor(codec));
+  }
+
+  /**
+   * Sends a GET request and decodes the response as it arrives.  Blocks the calling thread.
+   */
+  static <T> T request(String path,
+                       HackerNewsJson.Codec<T> codec,
+                       int timeoutMillis) throws Exception {
+    return request(newRequest(path, timeoutMillis), codec);
+  }
+
+  /**
+   * Sends a request made by newRequest and decodes the response as it arrives.  Blocks the
+   * calling thread until the response has been read or the request is cancelled.
+   */
+  static <T> T request(HttpEngine.Request request, HackerNewsJson.Codec<T> codec)
+      throws Exception {
+    return HttpEngine.getSharedEngine().execute(request, parserFor(codec));
+  }
+
+  static HttpEngine.Request newRequest(String path, int timeoutMillis)
+      throws MalformedURLException {
+    return new HttpEngine.Request("GET", new URL(BASE_API_URL + path))
+        .setTimeoutMillis(timeoutMillis);
+  }
+
+  private static <T> HttpEngine.BodyParser<T> parserFor(final HackerNewsJson.Codec<T> codec) {
+    return new HttpEngine.BodyParser<T>() {
+      @Override
+      public T parse(HttpEngine.Response response, InputStream input) throws Exception {
+        JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+        if (reader.peek() == JsonToken.NULL) {
+          // Firebase answers with null for IDs that do not exist.
+          throw new HoomiException("Not found: " + response.getStatusCode());
+        }
+        return codec.read(reader);
+      }
+    };
   }
 }
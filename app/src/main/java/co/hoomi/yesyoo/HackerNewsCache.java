@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.LruCache;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A two-tier cache of Hacker News API responses: a size-bounded in-memory LRU in front
+ * of a size-bounded directory on disk.
+ *
+ * Values are typed models, stored on disk through their HackerNewsJson codec. Entries
+ * remember when they were fetched, so callers can serve them immediately and
+ * decide for themselves (based on the kind of data) whether they need revalidating.
+ * Disk access happens on the calling thread, so get and put should not be called on
+ * the UI thread.
+ */
+public class HackerNewsCache {
+  private static final int TRIM_INTERVAL = 50;
+  private static final String TEMP_SUFFIX = ".tmp";
+  // Temporary files this old were left behind by a process that died mid-write.
+  private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000;
+
+  /**
+   * A cached response and the time it was fetched.
+   */
+  public static class Entry<T> {
+    private final T value;
+    private final long fetched;
+    private final int size;
+
+    Entry(T value, long fetched, int size) {
+      this.value = value;
+      this.fetched = fetched;
+      this.size = size;
+    }
+
+    public T getValue() {
+      return value;
+    }
+
+    public long getFetched() {
+      return fetched;
+    }
+
+    /**
+     * Whether the entry is younger than the given age.
+     */
+    public boolean isFresh(long maxAgeMillis) {
+      long age = System.currentTimeMillis() - fetched;
+      return age >= 0 && age < maxAgeMillis;
+    }
+  }
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final LruCache<String, Entry<?>> memory;
+  private int writesSinceTrim;
+
+  /**
+   * Creates a HackerNewsCache.
+   *
+   * @param directory      the directory to keep cached responses in
+   * @param maxMemoryChars the approximate amount of data (as encoded JSON characters) to
+   *                       keep in memory
+   * @param maxDiskBytes   the approximate number of bytes to keep on disk
+   */
+  public HackerNewsCache(File directory, int maxMemoryChars, long maxDiskBytes) {
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    this.memory = new LruCache<String, Entry<?>>(maxMemoryChars) {
+      @Override
+      protected int sizeOf(String key, Entry<?> value) {
+        return value.size;
+      }
+    };
+    directory.mkdirs();
+  }
+
+  private File fileFor(String key) {
+    try {
+      return new File(directory, URLEncoder.encode(key, "UTF-8"));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Gets the entry for a key from memory, or from disk if it has been evicted from memory.
+   *
+   * @return the entry, or null if the key is not cached
+   */
+  public <T> Entry<T> get(String key, HackerNewsJson.Codec<T> codec) {
+    Entry<T> entry = getFromMemory(key);
+    if (entry != null) {
+      return entry;
+    }
+    File file = fileFor(key);
+    if (!file.exists()) {
+      return null;
+    }
+    JsonReader input = null;
+    try {
+      input = new JsonReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      long fetched = 0;
+      T value = null;
+      input.beginObject();
+      while (input.hasNext()) {
+        String name = input.nextName();
+        if (name.equals("fetched")) {
+          fetched = input.nextLong();
+        } else if (name.equals("value")) {
+          value = codec.read(input);
+        } else {
+          input.skipValue();
+        }
+      }
+      input.endObject();
+      if (value == null) {
+        throw new IllegalStateException("Missing value in " + file);
+      }
+      entry = new Entry<T>(value, fetched, (int) file.length());
+      memory.put(key, entry);
+      return entry;
+    } catch (Exception e) {
+      // A corrupt entry is as good as a missing one.
+      file.delete();
+      return null;
+    } finally {
+      if (input != null) {
+        try {
+          input.close();
+        } catch (Exception e) {
+          // Nothing more to do with it.
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the entry for a key if it is held in memory, without touching the disk.
+   *
+   * @return the entry, or null if it is not in memory
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Entry<T> getFromMemory(String key) {
+    return (Entry<T>) memory.get(key);
+  }
+
+  /**
+   * Stores a freshly fetched response in memory and on disk.
+   */
+  public <T> void put(String key, T value, HackerNewsJson.Codec<T> codec) {
+    long now = System.currentTimeMillis();
+    StringWriter serialized = new StringWriter();
+    try {
+      JsonWriter writer = new JsonWriter(serialized);
+      writer.beginObject();
+      writer.name("fetched").value(now);
+      writer.name("value");
+      codec.write(writer, value);
+      writer.endObject();
+      writer.close();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    memory.put(key, new Entry<T>(value, now, serialized.getBuffer().length()));
+
+    File file = fileFor(key);
+    File temp = null;
+    OutputStream output = null;
+    try {
+      // A file of its own for each write, so concurrent puts of a key can't interleave.
+      temp = File.createTempFile("entry", TEMP_SUFFIX, directory);
+      output = new FileOutputStream(temp);
+      output.write(serialized.toString().getBytes("UTF-8"));
+      output.close();
+      output = null;
+      if (!temp.renameTo(file)) {
+        temp.delete();
+      }
+    } catch (Exception e) {
+      // The disk tier is best-effort.
+      if (temp != null) {
+        temp.delete();
+      }
+    } finally {
+      IOUtils.closeQuietly(output);
+    }
+
+    synchronized (this) {
+      if (++writesSinceTrim < TRIM_INTERVAL) {
+        return;
+      }
+      writesSinceTrim = 0;
+    }
+    trimDisk();
+  }
+
+  /**
+   * Deletes the least recently written files until the disk tier fits its budget.  Files
+   * still being written are left alone.
+   */
+  public synchronized void trimDisk() {
+    File[] all = directory.listFiles();
+    if (all == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    List<File> entries = new ArrayList<File>(all.length);
+    for (File file : all) {
+      if (!file.getName().endsWith(TEMP_SUFFIX)) {
+        entries.add(file);
+      } else if (now - file.lastModified() > STALE_TEMP_MILLIS) {
+        file.delete();
+      }
+    }
+    File[] files = entries.toArray(new File[entries.size()]);
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxDiskBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < files.length && total > maxDiskBytes; i++) {
+      total -= files[i].length();
+      files[i].delete();
+    }
+  }
+}
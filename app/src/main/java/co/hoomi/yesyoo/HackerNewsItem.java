@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+/**
+ * A Hacker News item, holding only the fields the app shows.
+ */
+public final class HackerNewsItem {
+  private final long id;
+  private final String type;
+  private final String by;
+  private final long time;
+  private final String title;
+  private final String url;
+  private final int score;
+  private final int descendants;
+
+  public HackerNewsItem(long id,
+                        String type,
+                        String by,
+                        long time,
+                        String title,
+                        String url,
+                        int score,
+                        int descendants) {
+    this.id = id;
+    this.type = type;
+    this.by = by;
+    this.time = time;
+    this.title = title;
+    this.url = url;
+    this.score = score;
+    this.descendants = descendants;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getBy() {
+    return by;
+  }
+
+  /**
+   * Gets the creation time of the item, in seconds since the epoch.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public int getDescendants() {
+    return descendants;
+  }
+}
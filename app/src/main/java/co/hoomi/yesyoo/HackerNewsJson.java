@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streaming decoders (and encoders, for the cache) for Hacker News API responses.
+ *
+ * Responses are read token by token straight into the typed models, skipping every
+ * field the app does not use, so no intermediate JSONObject trees are built.
+ */
+public class HackerNewsJson {
+  /**
+   * Reads and writes one kind of response.
+   *
+   * @param <T> the type the response is decoded into
+   */
+  public interface Codec<T> {
+    T read(JsonReader reader) throws IOException;
+
+    void write(JsonWriter writer, T value) throws IOException;
+  }
+
+  public static final Codec<HackerNewsItem> ITEM = new Codec<HackerNewsItem>() {
+    @Override
+    public HackerNewsItem read(JsonReader reader) throws IOException {
+      long id = 0;
+      String type = null;
+      String by = null;
+      long time = 0;
+      String title = null;
+      String url = null;
+      int score = 0;
+      int descendants = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.skipValue();
+        } else if (name.equals("id")) {
+          id = reader.nextLong();
+        } else if (name.equals("type")) {
+          type = reader.nextString();
+        } else if (name.equals("by")) {
+          by = reader.nextString();
+        } else if (name.equals("time")) {
+          time = reader.nextLong();
+        } else if (name.equals("title")) {
+          title = reader.nextString();
+        } else if (name.equals("url")) {
+          url = reader.nextString();
+        } else if (name.equals("score")) {
+          score = reader.nextInt();
+        } else if (name.equals("descendants")) {
+          descendants = reader.nextInt();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new HackerNewsItem(id, type, by, time, title, url, score, descendants);
+    }
+
+    @Override
+    public void write(JsonWriter writer, HackerNewsItem item) throws IOException {
+      writer.beginObject();
+      writer.name("id").value(item.getId());
+      writer.name("type").value(item.getType());
+      writer.name("by").value(item.getBy());
+      writer.name("time").value(item.getTime());
+      writer.name("title").value(item.getTitle());
+      writer.name("url").value(item.getUrl());
+      writer.name("score").value(item.getScore());
+      writer.name("descendants").value(item.getDescendants());
+      writer.endObject();
+    }
+  };
+
+  public static final Codec<HackerNewsUser> USER = new Codec<HackerNewsUser>() {
+    @Override
+    public HackerNewsUser read(JsonReader reader) throws IOException {
+      String id = null;
+      long created = 0;
+      int karma = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.skipValue();
+        } else if (name.equals("id")) {
+          id = reader.nextString();
+        } else if (name.equals("created")) {
+          created = reader.nextLong();
+        } else if (name.equals("karma")) {
+          karma = reader.nextInt();
+        } else {
+          // Notably "submitted", which can list thousands of item IDs.
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new HackerNewsUser(id, created, karma);
+    }
+
+    @Override
+    public void write(JsonWriter writer, HackerNewsUser user) throws IOException {
+      writer.beginObject();
+      writer.name("id").value(user.getId());
+      writer.name("created").value(user.getCreated());
+      writer.name("karma").value(user.getKarma());
+      writer.endObject();
+    }
+  };
+
+  public static final Codec<long[]> IDS = new Codec<long[]>() {
+    @Override
+    public long[] read(JsonReader reader) throws IOException {
+      long[] ids = new long[64];
+      int count = 0;
+      reader.beginArray();
+      while (reader.hasNext()) {
+        if (count == ids.length) {
+          long[] grown = new long[ids.length * 2];
+          System.arraycopy(ids, 0, grown, 0, count);
+          ids = grown;
+        }
+        ids[count++] = reader.nextLong();
+      }
+      reader.endArray();
+      if (count == ids.length) {
+        return ids;
+      }
+      long[] result = new long[count];
+      System.arraycopy(ids, 0, result, 0, count);
+      return result;
+    }
+
+    @Override
+    public void write(JsonWriter writer, long[] ids) throws IOException {
+      writer.beginArray();
+      for (long id : ids) {
+        writer.value(id);
+      }
+      writer.endArray();
+    }
+  };
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+/**
+ * A Hacker News user, holding only the fields the app shows.
+ */
+public final class HackerNewsUser {
+  private final String id;
+  private final long created;
+  private final int karma;
+
+  public HackerNewsUser(String id, long created, int karma) {
+    this.id = id;
+    this.created = created;
+    this.karma = karma;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the time the user signed up, in seconds since the epoch.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  public int getKarma() {
+    return karma;
+  }
+}
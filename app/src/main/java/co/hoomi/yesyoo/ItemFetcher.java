@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bolts.Continuation;
+import bolts.Task;
+import co.hoomi.HttpEngine;
+
+/**
+ * Fetches Hacker News items with a bounded number of requests in flight.
+ *
+ * Requests waiting for a slot are started in priority order (lower values first), so
+ * items near the top of the list are fetched before the ones further down. Each fetch
+ * has a timeout; an item that takes longer fails with a TimeoutException instead of
+ * holding up whoever is waiting on it, and its request is cancelled to free the slot.
+ * Fetches that are no longer needed can be cancelled, which frees their slot in the
+ * queue.
+ *
+ * Items found in the HackerNewsApi cache are returned without waiting for a slot. Stale
+ * ones are then revalidated behind every item that is not cached at all.
+ */
+public class ItemFetcher {
+  private static final AtomicLong sequence = new AtomicLong();
+  private static final int REVALIDATE_PRIORITY = Integer.MAX_VALUE;
+
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService timeouts;
+  private final long timeoutMillis;
+  private final Map<Task<HackerNewsItem>, Fetch> queued = new HashMap<Task<HackerNewsItem>, Fetch>();
+  private final Set<Long> revalidating = new HashSet<Long>();
+
+  private static class Fetch implements Runnable, Comparable<Fetch> {
+    private final int priority;
+    private final long order = sequence.getAndIncrement();
+    private final Runnable runnable;
+    private final Task<HackerNewsItem>.TaskCompletionSource tcs;
+
+    Fetch(int priority, Task<HackerNewsItem>.TaskCompletionSource tcs, Runnable runnable) {
+      this.priority = priority;
+      this.tcs = tcs;
+      this.runnable = runnable;
+    }
+
+    void cancel() {
+      tcs.trySetCancelled();
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(Fetch another) {
+      if (priority != another.priority) {
+        return priority < another.priority ? -1 : 1;
+      }
+      return order < another.order ? -1 : (order == another.order ? 0 : 1);
+    }
+  }
+
+  /**
+   * Creates an ItemFetcher.
+   *
+   * @param maxConcurrentRequests the number of requests that may be in flight at once
+   * @param timeoutMillis         how long a single item may take before it is given up on
+   */
+  public ItemFetcher(int maxConcurrentRequests, long timeoutMillis) {
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ItemFetcher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.executor = new ThreadPoolExecutor(maxConcurrentRequests,
+        maxConcurrentRequests,
+        30,
+        TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(),
+        threadFactory);
+    this.executor.allowCoreThreadTimeOut(true);
+    this.timeouts = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  private HttpEngine.Request newRequest(long id) throws MalformedURLException {
+    return HackerNewsApi.newRequest("v0/item/" + id + ".json", (int) timeoutMillis);
+  }
+
+  private HackerNewsItem fetch(HttpEngine.Request request, long id) throws Exception {
+    HackerNewsItem item = HackerNewsApi.request(request, HackerNewsJson.ITEM);
+    HackerNewsCache cache = HackerNewsApi.getCache();
+    if (cache != null) {
+      cache.put(HackerNewsApi.itemKey(id), item, HackerNewsJson.ITEM);
+    }
+    return item;
+  }
+
+  /**
+   * Fetches an item, serving it from the cache when possible.
+   *
+   * @param id       the item ID
+   * @param priority the priority of the item; lower values are fetched first
+   * @return the item (asynchronously)
+   */
+  public Task<HackerNewsItem> fetchAsync(final long id, int priority) {
+    final HackerNewsCache cache = HackerNewsApi.getCache();
+    if (cache != null) {
+      HackerNewsCache.Entry<HackerNewsItem> entry = cache.getFromMemory(HackerNewsApi.itemKey(id));
+      if (entry != null) {
+        revalidateIfStale(id, entry);
+        return Task.forResult(entry.getValue());
+      }
+    }
+
+    final Task<HackerNewsItem>.TaskCompletionSource tcs = Task.create();
+    final Fetch fetch = newFetch(id, priority, tcs);
+    if (cache == null) {
+      executor.execute(fetch);
+      return tcs.getTask();
+    }
+
+    // Check the disk before queueing for the network.
+    Task.callInBackground(new Callable<HackerNewsCache.Entry<HackerNewsItem>>() {
+      @Override
+      public HackerNewsCache.Entry<HackerNewsItem> call() throws Exception {
+        return cache.get(HackerNewsApi.itemKey(id), HackerNewsJson.ITEM);
+      }
+    }).continueWith(new Continuation<HackerNewsCache.Entry<HackerNewsItem>, Void>() {
+      @Override
+      public Void then(Task<HackerNewsCache.Entry<HackerNewsItem>> task) throws Exception {
+        HackerNewsCache.Entry<HackerNewsItem> entry = task.isFaulted() ? null : task.getResult();
+        if (entry == null) {
+          executor.execute(fetch);
+          return null;
+        }
+        synchronized (queued) {
+          if (queued.remove(tcs.getTask()) == null) {
+            return null;
+          }
+        }
+        tcs.trySetResult(entry.getValue());
+        revalidateIfStale(id, entry);
+        return null;
+      }
+    });
+    return tcs.getTask();
+  }
+
+  /**
+   * Fetches an item from the network even if it is cached, and updates the cache with
+   * the result.  Use this to pick up changes (such as scores) to items already shown.
+   *
+   * @param id       the item ID
+   * @param priority the priority of the item; lower values are fetched first
+   * @return the item (asynchronously)
+   */
+  public Task<HackerNewsItem> refreshAsync(long id, int priority) {
+    Task<HackerNewsItem>.TaskCompletionSource tcs = Task.create();
+    executor.execute(newFetch(id, priority, tcs));
+    return tcs.getTask();
+  }
+
+  private Fetch newFetch(final long id,
+                         int priority,
+                         final Task<HackerNewsItem>.TaskCompletionSource tcs) {
+    Fetch fetch = new Fetch(priority, tcs, new Runnable() {
+      @Override
+      public void run() {
+        synchronized (queued) {
+          if (queued.remove(tcs.getTask()) == null) {
+            // Cancelled while waiting for a slot.
+            return;
+          }
+        }
+        final HttpEngine.Request request;
+        try {
+          request = newRequest(id);
+        } catch (MalformedURLException e) {
+          tcs.trySetError(e);
+          return;
+        }
+        // The connect and read timeouts apply separately, and a response that trickles in
+        // can take longer still, so the request is cancelled to free this thread and slot.
+        ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (tcs.trySetError(new TimeoutException("Timed out fetching item " + id))) {
+              request.cancel();
+            }
+          }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+          tcs.trySetResult(fetch(request, id));
+        } catch (Exception e) {
+          tcs.trySetError(e);
+        } finally {
+          timeout.cancel(false);
+        }
+      }
+    });
+    synchronized (queued) {
+      queued.put(tcs.getTask(), fetch);
+    }
+    return fetch;
+  }
+
+  private void revalidateIfStale(final long id, HackerNewsCache.Entry<?> entry) {
+    if (entry.isFresh(HackerNewsApi.ITEM_MAX_AGE_MILLIS)) {
+      return;
+    }
+    synchronized (revalidating) {
+      if (!revalidating.add(id)) {
+        return;
+      }
+    }
+    executor.execute(new Fetch(REVALIDATE_PRIORITY, Task.<HackerNewsItem>create(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          fetch(newRequest(id), id);
+        } catch (Exception e) {
+          // Keep serving the cached copy; the next read will try again.
+        } finally {
+          synchronized (revalidating) {
+            revalidating.remove(id);
+          }
+        }
+      }
+    }));
+  }
+
+  /**
+   * Cancels a fetch started by this fetcher.  If the request has not started yet it is
+   * dropped from the queue and its task is cancelled; requests that are already in
+   * flight run to completion.
+   *
+   * @param task the task returned by fetchAsync
+   */
+  public void cancel(Task<HackerNewsItem> task) {
+    Fetch fetch;
+    synchronized (queued) {
+      fetch = queued.remove(task);
+    }
+    if (fetch != null) {
+      executor.remove(fetch);
+      fetch.cancel();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the stories of a StoriesFeed that have loaded so far, followed by a placeholder
+ * row for each story that is still on its way.
+ *
+ * Rows are recycled, and bind precomputed StoryRow text without any formatting.  The rank
+ * is shown in a view of its own, with its label built once per rank, since a story's rank
+ * changes when the feed is re-ranked.
+ *
+ * Placeholders take the ID of the story they stand in for, so that a row keeps its ID
+ * when its story arrives and stories ahead of it are delivered or skipped.
+ */
+public class StoriesAdapter extends BaseAdapter implements StoriesFeed.Listener {
+  private final Context context;
+  private final String loading;
+  private final List<String> rankLabels = new ArrayList<String>();
+  private StoriesFeed feed;
+
+  public StoriesAdapter(Context context) {
+    this.context = context;
+    this.loading = context.getString(R.string.loading);
+  }
+
+  public void setFeed(StoriesFeed feed) {
+    this.feed = feed;
+    notifyDataSetChanged();
+  }
+
+  @Override
+  public void onFeedChanged() {
+    notifyDataSetChanged();
+  }
+
+  @Override
+  public int getCount() {
+    return feed == null ? 0 : feed.getStories().size() + feed.getPendingCount();
+  }
+
+  @Override
+  public StoryRow getItem(int position) {
+    List<StoryRow> stories = feed.getStories();
+    return position < stories.size() ? stories.get(position) : null;
+  }
+
+  @Override
+  public long getItemId(int position) {
+    List<StoryRow> stories = feed.getStories();
+    if (position < stories.size()) {
+      return stories.get(position).getId();
+    }
+    return feed.getPendingId(position - stories.size());
+  }
+
+  @Override
+  public boolean hasStableIds() {
+    return true;
+  }
+
+  @Override
+  public boolean isEnabled(int position) {
+    return getItem(position) != null;
+  }
+
+  private static class ViewHolder {
+    TextView rank;
+    TextView title;
+    TextView description;
+  }
+
+  private View createView() {
+    LinearLayout layout = new LinearLayout(context);
+    layout.setOrientation(LinearLayout.VERTICAL);
+    layout.setPadding(16, 0, 16, 0);
+    ViewHolder holder = new ViewHolder();
+    LinearLayout titleRow = new LinearLayout(context);
+    titleRow.setOrientation(LinearLayout.HORIZONTAL);
+    titleRow.setPadding(0, 15, 0, 10);
+    holder.rank = new TextView(context);
+    holder.rank.setTextAppearance(context,
+        android.R.style.TextAppearance_DeviceDefault_SearchResult_Title);
+    titleRow.addView(holder.rank);
+    holder.title = new TextView(context);
+    holder.title.setTextAppearance(context,
+        android.R.style.TextAppearance_DeviceDefault_SearchResult_Title);
+    holder.title.setMaxLines(1);
+    holder.title.setEllipsize(TextUtils.TruncateAt.END);
+    titleRow.addView(holder.title, new LinearLayout.LayoutParams(0,
+        LinearLayout.LayoutParams.WRAP_CONTENT,
+        1));
+    layout.addView(titleRow);
+    holder.description = new TextView(context);
+    holder.description.setTextAppearance(context,
+        android.R.style.TextAppearance_DeviceDefault_SearchResult_Subtitle);
+    holder.description.setTextColor(Color.rgb(130, 130, 130));
+    holder.description.setMaxLines(1);
+    holder.description.setEllipsize(TextUtils.TruncateAt.END);
+    holder.description.setPadding(50, 0, 0, 15);
+    layout.addView(holder.description);
+    layout.setTag(holder);
+    return layout;
+  }
+
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    View view = convertView != null ? convertView : createView();
+    ViewHolder holder = (ViewHolder) view.getTag();
+    StoryRow story = getItem(position);
+    holder.rank.setText(getRankLabel(position));
+    holder.title.setText(story != null ? story.getTitle() : loading);
+    holder.description.setText(story != null ? story.getDescription() : "");
+    return view;
+  }
+
+  private String getRankLabel(int position) {
+    while (rankLabels.size() <= position) {
+      rankLabels.add((rankLabels.size() + 1) + ". ");
+    }
+    return rankLabels.get(position);
+  }
+}
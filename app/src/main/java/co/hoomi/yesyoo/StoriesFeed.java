@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bolts.Capture;
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * The top stories feed, loaded a page at a time as the user scrolls.
+ *
+ * The feed keeps the full list of top story IDs, but only fetches the items for pages
+ * within a prefetch distance of the last visible row. Pages that fall well behind the
+ * visible rows again (because the user scrolled back up) have their outstanding fetches
+ * cancelled. Stories are delivered in rank order, as soon as every story ahead of them
+ * has arrived; stories that fail to load are skipped. Each story is turned into a
+ * StoryRow in the background before it is delivered.
+ *
+ * Refreshing the feed compares the new ranking with the current one and only fetches
+ * stories that were not loaded before. The new ranking is swapped in with a single
+ * update once those have arrived, and the visible stories that kept their place get
+ * their scores refreshed at a low priority.
+ *
+ * All methods must be called on the UI thread, and listeners are notified on it.
+ */
+public class StoriesFeed {
+  public static final int PAGE_SIZE = 30;
+  public static final int PREFETCH_DISTANCE = 10;
+  // Score refreshes queue behind every story that has not been loaded at all.
+  private static final int SCORE_REFRESH_PRIORITY = 1000000;
+
+  /**
+   * Receives changes to the feed.
+   */
+  public interface Listener {
+    /**
+     * Called when stories have been delivered or the number of pending stories changed.
+     */
+    void onFeedChanged();
+  }
+
+  private final ItemFetcher fetcher;
+  private final Listener listener;
+  private long[] ids = new long[0];
+  // One fetch per rank that has been requested so far.
+  private final List<Task<HackerNewsItem>> fetches = new ArrayList<Task<HackerNewsItem>>();
+  // The row built from each fetch, once the fetch is being watched.
+  private final Map<Task<HackerNewsItem>, Task<StoryRow>> rows =
+      new HashMap<Task<HackerNewsItem>, Task<StoryRow>>();
+  // The number of ranks (from the top) whose row has been built and delivered.
+  private int processed;
+  private final List<StoryRow> stories = new ArrayList<StoryRow>();
+  private Task<Void> loadTask;
+  private int refreshGeneration;
+
+  public StoriesFeed(ItemFetcher fetcher, Listener listener) {
+    this.fetcher = fetcher;
+    this.listener = listener;
+  }
+
+  /**
+   * Fetches the list of top story IDs and the first page of stories.
+   *
+   * @return a task that completes once the IDs are known
+   */
+  public Task<Void> loadAsync() {
+    loadTask = HackerNewsApi.getTopStoryIdsAsync()
+        .onSuccess(new Continuation<long[], Void>() {
+          @Override
+          public Void then(Task<long[]> task) throws Exception {
+            ids = task.getResult();
+            ensureLoaded(0);
+            return null;
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+    return loadTask;
+  }
+
+  /**
+   * Fetches the current ranking and applies it to the feed, fetching only the stories
+   * that are new to it.
+   *
+   * @param firstVisiblePosition the first row currently visible
+   * @param lastVisiblePosition  the last row currently visible
+   * @return a task that completes once the new ranking has been applied
+   */
+  public Task<Void> refreshAsync(final int firstVisiblePosition, final int lastVisiblePosition) {
+    if (loadTask == null || ids.length == 0) {
+      return loadAsync();
+    }
+    final int generation = ++refreshGeneration;
+    final Capture<long[]> newIds = new Capture<long[]>();
+    return HackerNewsApi.getTopStoryIdsAsync(true)
+        .onSuccessTask(new Continuation<long[], Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<long[]> task) throws Exception {
+            newIds.set(task.getResult());
+            // Fetch the newcomers first, so the new ranking can be shown in one go.
+            Map<Long, Task<HackerNewsItem>> known = indexFetches();
+            List<Task<HackerNewsItem>> newcomers = new ArrayList<Task<HackerNewsItem>>();
+            int count = Math.min(newIds.get().length, fetches.size());
+            for (int rank = 0; rank < count; rank++) {
+              if (!known.containsKey(newIds.get()[rank])) {
+                newcomers.add(fetcher.fetchAsync(newIds.get()[rank], rank));
+              }
+            }
+            return Task.whenAll(newcomers);
+          }
+        }, Task.UI_THREAD_EXECUTOR)
+        .continueWithTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            if (newIds.get() == null) {
+              // Fetching the ranking failed or was cancelled; pass that on.
+              return task;
+            }
+            if (generation == refreshGeneration) {
+              Set<Long> kept = indexFetches().keySet();
+              apply(newIds.get());
+              refreshScores(generation, kept, firstVisiblePosition, lastVisiblePosition);
+            }
+            return Task.forResult(null);
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  private Map<Long, Task<HackerNewsItem>> indexFetches() {
+    Map<Long, Task<HackerNewsItem>> known = new HashMap<Long, Task<HackerNewsItem>>();
+    for (int rank = 0; rank < fetches.size(); rank++) {
+      known.put(ids[rank], fetches.get(rank));
+    }
+    return known;
+  }
+
+  private void apply(long[] newIds) {
+    if (Arrays.equals(ids, newIds)) {
+      return;
+    }
+    Map<Long, Task<HackerNewsItem>> known = indexFetches();
+    int count = Math.min(newIds.length, fetches.size());
+    List<Task<HackerNewsItem>> newFetches = new ArrayList<Task<HackerNewsItem>>(count);
+    for (int rank = 0; rank < count; rank++) {
+      Task<HackerNewsItem> fetch = known.remove(newIds[rank]);
+      if (fetch == null) {
+        // Either cached by the newcomer fetch above, or new since it ran.
+        fetch = fetcher.fetchAsync(newIds[rank], rank);
+      }
+      newFetches.add(fetch);
+    }
+    for (Task<HackerNewsItem> dropped : known.values()) {
+      fetcher.cancel(dropped);
+      rows.remove(dropped);
+    }
+    ids = newIds;
+    fetches.clear();
+    fetches.addAll(newFetches);
+    stories.clear();
+    processed = 0;
+    for (int rank = 0; rank < fetches.size(); rank++) {
+      watch(rank, fetches.get(rank));
+    }
+    deliver();
+    listener.onFeedChanged();
+  }
+
+  private void refreshScores(final int generation, Set<Long> previous, int first, int last) {
+    final List<Task<StoryRow>> refreshes = new ArrayList<Task<StoryRow>>();
+    for (int position = Math.max(0, first); position <= last && position < stories.size();
+         position++) {
+      long id = stories.get(position).getId();
+      // Stories that just joined the feed were fetched moments ago.
+      if (previous.contains(id)) {
+        refreshes.add(toRowAsync(fetcher.refreshAsync(id, SCORE_REFRESH_PRIORITY + position)));
+      }
+    }
+    Task.whenAll(refreshes).continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        if (generation != refreshGeneration) {
+          return null;
+        }
+        boolean changed = false;
+        Map<Long, Task<HackerNewsItem>> known = indexFetches();
+        for (Task<StoryRow> refresh : refreshes) {
+          if (refresh.isFaulted() || refresh.isCancelled()) {
+            continue;
+          }
+          StoryRow row = refresh.getResult();
+          for (int i = 0; i < stories.size(); i++) {
+            if (stories.get(i).getId() == row.getId()) {
+              if (!stories.get(i).equals(row)) {
+                stories.set(i, row);
+                // Keep the row with its fetch, or the next apply() would bring back the
+                // old score.
+                Task<HackerNewsItem> fetch = known.get(row.getId());
+                if (fetch != null) {
+                  rows.put(fetch, refresh);
+                }
+                changed = true;
+              }
+              break;
+            }
+          }
+        }
+        if (changed) {
+          listener.onFeedChanged();
+        }
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Gets the stories delivered so far, in rank order.
+   */
+  public List<StoryRow> getStories() {
+    return stories;
+  }
+
+  /**
+   * Gets the number of stories that have been requested but not delivered yet.
+   */
+  public int getPendingCount() {
+    return fetches.size() - processed;
+  }
+
+  /**
+   * Gets the ID of a story that has been requested but not delivered yet.
+   *
+   * @param index the index among the pending stories, in rank order
+   */
+  public long getPendingId(int index) {
+    return ids[processed + index];
+  }
+
+  /**
+   * Gets the total number of top stories, including those not requested yet.
+   */
+  public int getTotalCount() {
+    return ids.length;
+  }
+
+  /**
+   * Makes sure that the pages around the given row are loaded, and cancels fetches for
+   * pages that are far beyond it.
+   *
+   * @param lastVisiblePosition the last row currently visible
+   */
+  public void ensureLoaded(int lastVisiblePosition) {
+    int needed = Math.min(ids.length, roundUpToPage(lastVisiblePosition + PREFETCH_DISTANCE + 1));
+    boolean changed = false;
+    while (fetches.size() < needed) {
+      int end = Math.min(ids.length, fetches.size() + PAGE_SIZE);
+      for (int rank = fetches.size(); rank < end; rank++) {
+        // Rank is the priority, so the top of the list is fetched first.
+        Task<HackerNewsItem> fetch = fetcher.fetchAsync(ids[rank], rank);
+        fetches.add(fetch);
+        watch(rank, fetch);
+      }
+      changed = true;
+    }
+    // Keep one spare page to avoid thrashing, and never drop stories already delivered.
+    int keep = Math.max(roundUpToPage(processed), needed + PAGE_SIZE);
+    if (fetches.size() > keep) {
+      for (int rank = keep; rank < fetches.size(); rank++) {
+        fetcher.cancel(fetches.get(rank));
+        rows.remove(fetches.get(rank));
+      }
+      fetches.subList(keep, fetches.size()).clear();
+      changed = true;
+    }
+    if (changed) {
+      listener.onFeedChanged();
+    }
+  }
+
+  private static int roundUpToPage(int count) {
+    return (count + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  private static Task<StoryRow> toRowAsync(Task<HackerNewsItem> fetch) {
+    return fetch.onSuccess(new Continuation<HackerNewsItem, StoryRow>() {
+      @Override
+      public StoryRow then(Task<HackerNewsItem> task) throws Exception {
+        return new StoryRow(task.getResult());
+      }
+    }, Task.BACKGROUND_EXECUTOR);
+  }
+
+  private void watch(final int rank, final Task<HackerNewsItem> fetch) {
+    Task<StoryRow> row = rows.get(fetch);
+    if (row == null) {
+      row = toRowAsync(fetch);
+      rows.put(fetch, row);
+    }
+    row.continueWith(new Continuation<StoryRow, Void>() {
+      @Override
+      public Void then(Task<StoryRow> task) throws Exception {
+        if (rank < fetches.size() && fetches.get(rank) == fetch && deliver()) {
+          listener.onFeedChanged();
+        }
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  private boolean deliver() {
+    boolean changed = false;
+    while (processed < fetches.size() && rows.get(fetches.get(processed)).isCompleted()) {
+      Task<StoryRow> row = rows.get(fetches.get(processed));
+      if (!row.isFaulted() && !row.isCancelled()) {
+        stories.add(row.getResult());
+      }
+      processed++;
+      changed = true;
+    }
+    return changed;
+  }
+}
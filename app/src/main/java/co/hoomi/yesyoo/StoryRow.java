@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc.
+ */
+
+package co.hoomi.yesyoo;
+
+import java.util.Date;
+
+/**
+ * The text of one row in the stories list, built once from the story so that binding a
+ * row does no formatting.
+ *
+ * Building a StoryRow formats a date, so it should be done off the UI thread.
+ */
+public final class StoryRow {
+  private final long id;
+  private final String title;
+  private final String description;
+
+  public StoryRow(HackerNewsItem story) {
+    this.id = story.getId();
+    this.title = story.getTitle() != null ? story.getTitle() : "";
+    this.description = String.format("%s points by %s at %s",
+        story.getScore(),
+        story.getBy(),
+        new Date(story.getTime() * 1000));
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof StoryRow)) {
+      return false;
+    }
+    StoryRow other = (StoryRow) o;
+    return id == other.id && title.equals(other.title) && description.equals(other.description);
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (id ^ (id >>> 32));
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONObject;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import bolts.Continuation;
+import bolts.Task;
+import co.hoomi.response.AppData;
+import co.hoomi.response.TokenInformation;
+import co.hoomi.testing.FakeHoomiServer;
+
+/**
+ * Sends HoomiClient's requests to a local FakeHoomiServer and checks what comes back: the
+ * code exchange, token information, app data reads and writes with their ETags (including
+ * partial writes), and injected server errors and throttling.
+ *
+ * This lives in the co.hoomi package so that it can drive the code exchange directly,
+ * without the login dialog.
+ */
+public class HoomiClientRoundTripTest extends AndroidTestCase {
+  private static final long TIMEOUT_MILLIS = 15 * 1000;
+  private static final String APP_DATA_PATH = "1/user/current/app/data";
+
+  private FakeHoomiServer server;
+  private HoomiClient client;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new FakeHoomiServer(7);
+    server.start();
+    client = new HoomiClient(getContext(), FakeHoomiServer.APPLICATION_ID, server.getBaseUrl());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    client.close();
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testCodeExchangeAndTokenInformation() throws Exception {
+    String code = server.issueCode("user-1", FakeHoomiServer.appDataScopes());
+
+    HoomiAccessToken token = await(client.exchangeCodeAsync(code,
+        "fake-client",
+        null,
+        "hoomi-test://redirect",
+        LoginTracer.getInstance().newTrace()));
+
+    assertSame(token, client.getCurrentToken());
+    assertEquals(FakeHoomiServer.appDataScopes(), token.getKnownScopes());
+    TokenInformation information = await(client.getTokenInformationAsync(token));
+    assertEquals("user-1", information.getUserId());
+    assertEquals(FakeHoomiServer.APPLICATION_ID, information.getApplicationId());
+
+    // Codes can only be redeemed once.
+    assertStatus(400, client.exchangeCodeAsync(code,
+        "fake-client",
+        null,
+        "hoomi-test://redirect",
+        LoginTracer.getInstance().newTrace()));
+  }
+
+  public void testAppDataETags() throws Exception {
+    HoomiAccessToken token = issueToken("user-2");
+
+    AppData first = await(client.getAppDataAsync(token));
+    assertEquals(0, first.getData().length());
+    assertNotNull(first.getETag());
+
+    AppData written = await(client.setAppDataAsync(token,
+        new JSONObject().put("score", 1),
+        first.getETag()));
+    assertFalse(first.getETag().equals(written.getETag()));
+    assertEquals(1, server.getAppData("user-2").getInt("score"));
+
+    // A write based on the old ETag would lose the one above.
+    assertStatus(412, client.setAppDataAsync(token,
+        new JSONObject().put("score", 2),
+        first.getETag()));
+    assertEquals(1, server.getAppData("user-2").getInt("score"));
+
+    // Conditional reads, as subscriptions make them.
+    assertEquals(304, conditionalGet(token, written.getETag()).getStatusCode());
+    HttpEngine.Response changed = conditionalGet(token, first.getETag());
+    assertEquals(200, changed.getStatusCode());
+    assertEquals(written.getETag(), changed.getHeader("ETag"));
+  }
+
+  public void testPartialWriteAfterConcurrentChangeFails() throws Exception {
+    HoomiAccessToken token = issueToken("user-6");
+    server.putAppData("user-6", new JSONObject(
+        "{\"profile\": {\"name\": \"Ann\", \"age\": 30}, \"score\": 5}"));
+
+    AppData partial = await(client.getAppDataAsync(token, Arrays.asList("profile.name")));
+    partial.getData().getJSONObject("profile").put("name", "Bea");
+    // Another device changes a field this one never read.
+    server.putAppData("user-6", new JSONObject(
+        "{\"profile\": {\"name\": \"Ann\", \"age\": 30}, \"score\": 6}"));
+
+    assertStatus(412, client.setAppDataAsync(token, partial));
+    JSONObject stored = server.getAppData("user-6");
+    assertEquals("Ann", stored.getJSONObject("profile").getString("name"));
+    assertEquals(6, stored.getInt("score"));
+  }
+
+  public void testPartialWriteOnlyChangesItsFields() throws Exception {
+    HoomiAccessToken token = issueToken("user-7");
+    server.putAppData("user-7", new JSONObject(
+        "{\"profile\": {\"name\": \"Ann\", \"age\": 30}, \"score\": 5}"));
+
+    AppData partial = await(client.getAppDataAsync(token, Arrays.asList("profile.name")));
+    assertEquals("{\"profile\":{\"name\":\"Ann\"}}", partial.getData().toString());
+    partial.getData().getJSONObject("profile").put("name", "Bea");
+    AppData written = await(client.setAppDataAsync(token, partial));
+
+    JSONObject stored = server.getAppData("user-7");
+    assertEquals("Bea", stored.getJSONObject("profile").getString("name"));
+    assertEquals(30, stored.getJSONObject("profile").getInt("age"));
+    assertEquals(5, stored.getInt("score"));
+    assertEquals(2, stored.length());
+    // The result is projected onto the same fields, with the new ETag.
+    assertEquals(partial.getFields(), written.getFields());
+    assertEquals("{\"profile\":{\"name\":\"Bea\"}}", written.getData().toString());
+    assertEquals(await(client.getAppDataAsync(token)).getETag(), written.getETag());
+  }
+
+  public void testInjectedServerError() throws Exception {
+    HoomiAccessToken token = issueToken("user-3");
+    server.failNext(APP_DATA_PATH, 1, 503);
+
+    assertStatus(503, client.getAppDataAsync(token));
+    // Only the one request failed.
+    assertNotNull(await(client.getAppDataAsync(token)).getETag());
+  }
+
+  public void testInjectedThrottling() throws Exception {
+    HoomiAccessToken token = issueToken("user-4");
+    server.failNext(APP_DATA_PATH, 1, 429);
+
+    HttpEngine.Response throttled = conditionalGet(token, null);
+    assertEquals(429, throttled.getStatusCode());
+    assertEquals("1", throttled.getHeader("Retry-After"));
+    assertEquals(200, conditionalGet(token, null).getStatusCode());
+  }
+
+  public void testSubscriptionRecoversFromServerErrors() throws Exception {
+    HoomiAccessToken token = issueToken("user-5");
+    server.putAppData("user-5", new JSONObject().put("level", 3));
+    server.failNext(APP_DATA_PATH, 2, 503);
+
+    final CountDownLatch delivered = new CountDownLatch(1);
+    final AtomicReference<AppData> received = new AtomicReference<AppData>();
+    AppDataSubscription subscription = client.subscribeToAppData(token,
+        new HoomiClient.AppDataListener() {
+          @Override
+          public void onAppDataChanged(AppData appData) {
+            received.set(appData);
+            delivered.countDown();
+          }
+
+          @Override
+          public void onError(Exception error) {
+          }
+        });
+    try {
+      // Two retries with backoff, each at most a couple of seconds.
+      assertTrue(delivered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      assertEquals(3, received.get().getData().getInt("level"));
+      assertTrue(server.getRequestCount(APP_DATA_PATH) >= 3);
+    } finally {
+      subscription.cancel();
+    }
+  }
+
+  private HoomiAccessToken issueToken(String userId) {
+    long expiresIn = 60 * 60 * 1000;
+    return new HoomiAccessToken(server.issueToken(userId,
+        FakeHoomiServer.appDataScopes(),
+        expiresIn),
+        FakeHoomiServer.appDataScopes(),
+        new Date(System.currentTimeMillis() + expiresIn));
+  }
+
+  private HttpEngine.Response conditionalGet(HoomiAccessToken token, String eTag)
+      throws Exception {
+    HttpEngine.Request request = new HttpEngine.Request("GET",
+        new URL(server.getBaseUrl() + APP_DATA_PATH));
+    request.addHeader("Authorization", "Bearer " + token.getTokenString());
+    if (eTag != null) {
+      request.addHeader("If-None-Match", eTag);
+    }
+    return client.getHttpEngine().execute(request);
+  }
+
+  /**
+   * Waits for a task, rethrowing its error.
+   */
+  static <T> T await(Task<T> task) throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    task.continueWith(new Continuation<T, Void>() {
+      @Override
+      public Void then(Task<T> task) throws Exception {
+        done.countDown();
+        return null;
+      }
+    });
+    assertTrue("Timed out", done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    if (task.isFaulted()) {
+      throw task.getError();
+    }
+    assertFalse("Cancelled", task.isCancelled());
+    return task.getResult();
+  }
+
+  /**
+   * Waits for a task and checks that it failed with the given HTTP status.
+   */
+  static void assertStatus(int status, Task<?> task) throws Exception {
+    try {
+      await(task);
+      fail("Expected HTTP " + status);
+    } catch (HoomiException e) {
+      assertEquals(status, e.getStatusCode());
+    }
+  }
+}
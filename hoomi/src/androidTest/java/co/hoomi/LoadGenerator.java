@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+import co.hoomi.response.AppData;
+import co.hoomi.testing.FakeHoomiServer;
+
+/**
+ * Drives one or more HoomiClients with many simulated users at once and reports how they
+ * held up.
+ *
+ * Each operation picks a random client and user, and one of four kinds of work, in
+ * proportion to the configured mix: token introspection (getTokenInformationAsync), an
+ * app data read (getAppDataAsync), a read/modify/write cycle that increments a counter
+ * in the user's app data and saves it with the ETag it read, or a login, which exchanges
+ * a code the server issued for the user as the redirect from the login dialog would. Up
+ * to a fixed number of operations are kept in flight until the configured duration has
+ * passed.
+ *
+ * The report has throughput, latency percentiles per kind of operation, the rate of
+ * ETag conflicts (412 responses) on writes, and thread and heap usage sampled during
+ * the run. Point the clients at a FakeHoomiServer so the load never reaches production.
+ *
+ * This lives in the co.hoomi package so that logins can drive the code exchange directly.
+ */
+public class LoadGenerator {
+  private static final int TOKEN_INFORMATION = 0;
+  private static final int READ = 1;
+  private static final int READ_MODIFY_WRITE = 2;
+  private static final int LOGIN = 3;
+  private static final String[] OPERATION_NAMES =
+      {"tokenInformation", "read", "readModifyWrite", "login"};
+  private static final String REDIRECT_URI = "hoomi-test://redirect";
+
+  private final List<HoomiClient> clients;
+  private final FakeHoomiServer server;
+  private final Random random;
+  private int users = 100;
+  private int concurrency = 32;
+  private long durationMillis = 30 * 1000;
+  private final int[] weights = {1, 3, 1, 0};
+
+  /**
+   * Creates a load generator for one client.
+   *
+   * @param client the client to drive, whose base URL should point at the server
+   * @param server the server that issues tokens and codes for the simulated users
+   * @param seed   the seed for choosing users and operations
+   */
+  public LoadGenerator(HoomiClient client, FakeHoomiServer server, long seed) {
+    this(Collections.singletonList(client), server, seed);
+  }
+
+  /**
+   * Creates a load generator that spreads its operations over several clients, as
+   * several applications in one process would.
+   *
+   * @param clients the clients to drive, whose base URLs should point at the server
+   * @param server  the server that issues tokens and codes for the simulated users
+   * @param seed    the seed for choosing clients, users and operations
+   */
+  public LoadGenerator(List<HoomiClient> clients, FakeHoomiServer server, long seed) {
+    this.clients = new ArrayList<HoomiClient>(clients);
+    this.server = server;
+    this.random = new Random(seed);
+  }
+
+  public LoadGenerator setUsers(int users) {
+    this.users = users;
+    return this;
+  }
+
+  public LoadGenerator setConcurrency(int concurrency) {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  public LoadGenerator setDurationMillis(long durationMillis) {
+    this.durationMillis = durationMillis;
+    return this;
+  }
+
+  /**
+   * Sets the relative frequency of each kind of operation, without logins.
+   */
+  public LoadGenerator setMix(int tokenInformation, int read, int readModifyWrite) {
+    return setMix(tokenInformation, read, readModifyWrite, 0);
+  }
+
+  /**
+   * Sets the relative frequency of each kind of operation.
+   */
+  public LoadGenerator setMix(int tokenInformation, int read, int readModifyWrite, int login) {
+    weights[TOKEN_INFORMATION] = tokenInformation;
+    weights[READ] = read;
+    weights[READ_MODIFY_WRITE] = readModifyWrite;
+    weights[LOGIN] = login;
+    return this;
+  }
+
+  /**
+   * The outcome of a run.
+   */
+  public static class Report {
+    private final long elapsedMillis;
+    private final List<List<Long>> latencies;
+    private final int[] errors;
+    private final int writes;
+    private final int conflicts;
+    private final int threadsBefore;
+    private final int threadsPeak;
+    private final int threadsAfter;
+    private final long heapBefore;
+    private final long heapPeak;
+    private final long heapAfter;
+
+    Report(long elapsedMillis,
+           List<List<Long>> latencies,
+           int[] errors,
+           int writes,
+           int conflicts,
+           int threadsBefore,
+           int threadsPeak,
+           int threadsAfter,
+           long heapBefore,
+           long heapPeak,
+           long heapAfter) {
+      this.elapsedMillis = elapsedMillis;
+      this.latencies = latencies;
+      this.errors = errors;
+      this.writes = writes;
+      this.conflicts = conflicts;
+      this.threadsBefore = threadsBefore;
+      this.threadsPeak = threadsPeak;
+      this.threadsAfter = threadsAfter;
+      this.heapBefore = heapBefore;
+      this.heapPeak = heapPeak;
+      this.heapAfter = heapAfter;
+    }
+
+    public int getCompleted() {
+      int completed = 0;
+      for (List<Long> operation : latencies) {
+        completed += operation.size();
+      }
+      return completed;
+    }
+
+    public int getErrors() {
+      int total = 0;
+      for (int count : errors) {
+        total += count;
+      }
+      return total;
+    }
+
+    public double getThroughput() {
+      return elapsedMillis > 0 ? getCompleted() * 1000.0 / elapsedMillis : 0;
+    }
+
+    /**
+     * Gets the fraction of writes that were rejected because the data changed since it
+     * was read.
+     */
+    public double getConflictRate() {
+      return writes > 0 ? (double) conflicts / writes : 0;
+    }
+
+    public int getThreadGrowth() {
+      return threadsAfter - threadsBefore;
+    }
+
+    public long getHeapGrowth() {
+      return heapAfter - heapBefore;
+    }
+
+    /**
+     * Gets a latency percentile for one kind of operation, in milliseconds.
+     *
+     * @param operation  0 for token information, 1 for reads, 2 for read/modify/write,
+     *                   3 for logins
+     * @param percentile between 0 and 100
+     */
+    public long getLatencyPercentile(int operation, double percentile) {
+      List<Long> sorted = latencies.get(operation);
+      if (sorted.isEmpty()) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+      return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder b = new StringBuilder();
+      b.append(String.format(Locale.US, "%d operations in %d ms (%.1f/s), %d errors%n",
+          getCompleted(), elapsedMillis, getThroughput(), getErrors()));
+      for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+        b.append(String.format(Locale.US,
+            "  %-16s n=%-6d p50=%-5d p90=%-5d p99=%-5d max=%-5d errors=%d%n",
+            OPERATION_NAMES[operation],
+            latencies.get(operation).size(),
+            getLatencyPercentile(operation, 50),
+            getLatencyPercentile(operation, 90),
+            getLatencyPercentile(operation, 99),
+            getLatencyPercentile(operation, 100),
+            errors[operation]));
+      }
+      b.append(String.format(Locale.US, "  conflicts %d of %d writes (%.1f%%)%n",
+          conflicts, writes, getConflictRate() * 100));
+      b.append(String.format(Locale.US, "  threads %d -> peak %d -> %d%n",
+          threadsBefore, threadsPeak, threadsAfter));
+      b.append(String.format(Locale.US, "  heap %d KB -> peak %d KB -> %d KB",
+          heapBefore / 1024, heapPeak / 1024, heapAfter / 1024));
+      return b.toString();
+    }
+  }
+
+  private static class Sampler extends Thread {
+    volatile boolean running = true;
+    int threadsPeak;
+    long heapPeak;
+
+    @Override
+    public void run() {
+      while (running) {
+        sample();
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    synchronized void sample() {
+      threadsPeak = Math.max(threadsPeak, Thread.activeCount());
+      heapPeak = Math.max(heapPeak, usedHeap());
+    }
+  }
+
+  /**
+   * Runs the load for the configured duration and waits for the operations still in
+   * flight.  Must not be called on the UI thread.
+   */
+  public Report run() throws InterruptedException {
+    List<HoomiAccessToken> tokens = new ArrayList<HoomiAccessToken>(users);
+    for (int i = 0; i < users; i++) {
+      long expiresIn = 24 * 60 * 60 * 1000;
+      String token = server.issueToken(getUserId(i),
+          FakeHoomiServer.appDataScopes(),
+          expiresIn);
+      tokens.add(new HoomiAccessToken(token,
+          FakeHoomiServer.appDataScopes(),
+          new Date(System.currentTimeMillis() + expiresIn)));
+    }
+
+    final List<List<Long>> latencies = new ArrayList<List<Long>>();
+    for (int i = 0; i < OPERATION_NAMES.length; i++) {
+      latencies.add(Collections.synchronizedList(new ArrayList<Long>()));
+    }
+    final int[] errors = new int[OPERATION_NAMES.length];
+    final AtomicInteger writes = new AtomicInteger();
+    final AtomicInteger conflicts = new AtomicInteger();
+
+    System.gc();
+    int threadsBefore = Thread.activeCount();
+    long heapBefore = usedHeap();
+    Sampler sampler = new Sampler();
+    sampler.start();
+
+    final Semaphore slots = new Semaphore(concurrency);
+    long started = System.currentTimeMillis();
+    long deadline = started + durationMillis;
+    while (System.currentTimeMillis() < deadline) {
+      if (!slots.tryAcquire(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+        break;
+      }
+      final int operation = pickOperation();
+      HoomiClient client = clients.get(random.nextInt(clients.size()));
+      int user = random.nextInt(tokens.size());
+      final long operationStarted = System.currentTimeMillis();
+      Task<Void> task;
+      try {
+        task = startOperation(operation, client, user, tokens.get(user), writes, conflicts);
+      } catch (Exception e) {
+        task = Task.forError(e);
+      }
+      task.continueWith(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          if (task.isFaulted()) {
+            synchronized (errors) {
+              errors[operation]++;
+            }
+          } else {
+            latencies.get(operation).add(System.currentTimeMillis() - operationStarted);
+          }
+          slots.release();
+          return null;
+        }
+      });
+    }
+    // Wait for the stragglers.
+    slots.acquire(concurrency);
+    long elapsed = System.currentTimeMillis() - started;
+
+    sampler.running = false;
+    sampler.join();
+    System.gc();
+
+    for (List<Long> operation : latencies) {
+      Collections.sort(operation);
+    }
+    return new Report(elapsed,
+        latencies,
+        Arrays.copyOf(errors, errors.length),
+        writes.get(),
+        conflicts.get(),
+        threadsBefore,
+        sampler.threadsPeak,
+        Thread.activeCount(),
+        heapBefore,
+        sampler.heapPeak,
+        usedHeap());
+  }
+
+  private static String getUserId(int user) {
+    return "load-user-" + user;
+  }
+
+  private int pickOperation() {
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+    int pick = random.nextInt(Math.max(1, total));
+    for (int operation = 0; operation < weights.length; operation++) {
+      pick -= weights[operation];
+      if (pick < 0) {
+        return operation;
+      }
+    }
+    return READ;
+  }
+
+  private Task<Void> startOperation(int operation,
+                                    final HoomiClient client,
+                                    int user,
+                                    final HoomiAccessToken token,
+                                    final AtomicInteger writes,
+                                    final AtomicInteger conflicts) {
+    switch (operation) {
+      case TOKEN_INFORMATION:
+        return client.getTokenInformationAsync(token).makeVoid();
+      case READ:
+        return client.getAppDataAsync(token).makeVoid();
+      case LOGIN:
+        String code = server.issueCode(getUserId(user), FakeHoomiServer.appDataScopes());
+        return client.exchangeCodeAsync(code,
+            "fake-client",
+            null,
+            REDIRECT_URI,
+            LoginTracer.getInstance().newTrace()).makeVoid();
+      default:
+        return client.getAppDataAsync(token)
+            .onSuccessTask(new Continuation<AppData, Task<AppData>>() {
+              @Override
+              public Task<AppData> then(Task<AppData> task) throws Exception {
+                JSONObject data = task.getResult().getData();
+                data.put("counter", data.optInt("counter") + 1);
+                writes.incrementAndGet();
+                return client.setAppDataAsync(token, data, task.getResult().getETag());
+              }
+            })
+            .continueWith(new Continuation<AppData, Void>() {
+              @Override
+              public Void then(Task<AppData> task) throws Exception {
+                if (task.isFaulted()) {
+                  Exception error = task.getError();
+                  if (error instanceof HoomiException &&
+                      ((HoomiException) error).getStatusCode() == 412) {
+                    // Lost a race with another simulated device; that is expected.
+                    conflicts.incrementAndGet();
+                    return null;
+                  }
+                  throw error;
+                }
+                return null;
+              }
+            });
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
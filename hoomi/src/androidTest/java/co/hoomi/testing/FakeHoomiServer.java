@@ -0,0 +1,660 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.testing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.hoomi.KeyPaths;
+
+/**
+ * An in-process stand-in for the Hoomi API, for tests that need to exercise the network
+ * paths of HoomiClient without touching production.
+ *
+ * The server listens on a local port and implements 1/authz/provision_client,
+ * 1/authz/provision_android_client, 1/authz/token, 1/token/current and
+ * 1/user/current/app/data (including ETags, If-Match, the fields parameter for
+ * partial reads and the wait parameter for long polls). Everything else, including
+ * 1/batch, answers 404. Pass {@link #getBaseUrl()} to the HoomiClient constructor to
+ * use it.
+ *
+ * Authorization codes and tokens are created by the test with {@link #issueCode} and
+ * {@link #issueToken}. Latency, errors and throttling can be injected to make load and
+ * failure behaviour reproducible; with a fixed seed the injected faults are the same on
+ * every run.
+ */
+public class FakeHoomiServer {
+  public static final String APPLICATION_ID = "fake-application";
+
+  private static class Grant {
+    final String userId;
+    final List<String> scopes;
+    final long issued;
+    final long expires;
+
+    Grant(String userId, List<String> scopes, long issued, long expires) {
+      this.userId = userId;
+      this.scopes = scopes;
+      this.issued = issued;
+      this.expires = expires;
+    }
+  }
+
+  private static class AppDataRecord {
+    final JSONObject data;
+    final String eTag;
+
+    AppDataRecord(JSONObject data, String eTag) {
+      this.data = data;
+      this.eTag = eTag;
+    }
+  }
+
+  private static class Request {
+    String method;
+    String path;
+    final Map<String, String> query = new HashMap<String, String>();
+    final Map<String, String> headers = new HashMap<String, String>();
+    byte[] body;
+
+    String header(String name) {
+      return headers.get(name.toLowerCase(Locale.US));
+    }
+  }
+
+  private static class Response {
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    final String body;
+
+    Response(int status, JSONObject body) {
+      this.status = status;
+      this.body = body != null ? body.toString() : "";
+    }
+  }
+
+  private final Random random;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+  private final Map<String, Grant> codes = new HashMap<String, Grant>();
+  private final Map<String, Grant> tokens = new HashMap<String, Grant>();
+  private final Map<String, AppDataRecord> appData = new HashMap<String, AppDataRecord>();
+  private final Map<String, AtomicInteger> requestCounts = new HashMap<String, AtomicInteger>();
+  private final AtomicInteger eTags = new AtomicInteger();
+  private ServerSocket serverSocket;
+
+  private long minLatencyMillis;
+  private long maxLatencyMillis;
+  private double errorRate;
+  private int errorStatus = 500;
+  private int failuresRemaining;
+  private int failureStatus;
+  private String failurePath;
+  private int maxRequestsPerSecond;
+  private long throttleWindowStart;
+  private int throttleWindowCount;
+
+  /**
+   * Creates a server whose injected faults are random.
+   */
+  public FakeHoomiServer() {
+    this(new Random());
+  }
+
+  /**
+   * Creates a server whose injected faults follow the given seed.
+   */
+  public FakeHoomiServer(long seed) {
+    this(new Random(seed));
+  }
+
+  private FakeHoomiServer(Random random) {
+    this.random = random;
+  }
+
+  /**
+   * Starts listening on a free local port.
+   */
+  public synchronized void start() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    final ServerSocket listening = serverSocket;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (!listening.isClosed()) {
+          try {
+            final Socket socket = listening.accept();
+            sockets.add(socket);
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            });
+          } catch (IOException e) {
+            // Closed by stop().
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops the server and drops every open connection.
+   */
+  public synchronized void stop() {
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    } catch (IOException e) {
+      // Already closed.
+    }
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        closeQuietly(socket);
+      }
+      sockets.clear();
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * Gets the base URL to pass to HoomiClient, ending in a slash.
+   */
+  public synchronized String getBaseUrl() {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+  }
+
+  /**
+   * Delays every response by a random time between the given bounds.
+   */
+  public synchronized void setLatency(long minMillis, long maxMillis) {
+    this.minLatencyMillis = minMillis;
+    this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+  }
+
+  /**
+   * Fails the given fraction of requests (between 0 and 1) with the given status code.
+   */
+  public synchronized void setErrorRate(double errorRate, int status) {
+    this.errorRate = errorRate;
+    this.errorStatus = status;
+  }
+
+  /**
+   * Fails the next requests with the given status code.
+   */
+  public synchronized void failNext(int count, int status) {
+    failNext(null, count, status);
+  }
+
+  /**
+   * Fails the next requests for a path (such as "1/user/current/app/data") with the given
+   * status code, leaving requests for other paths alone.
+   *
+   * @param path the path, or null for every path
+   */
+  public synchronized void failNext(String path, int count, int status) {
+    this.failurePath = path;
+    this.failuresRemaining = count;
+    this.failureStatus = status;
+  }
+
+  /**
+   * Answers 429 (with Retry-After) to requests beyond the given rate.  Zero turns
+   * throttling off.
+   */
+  public synchronized void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+  }
+
+  /**
+   * Creates an authorization code that 1/authz/token will exchange for a token.
+   */
+  public synchronized String issueCode(String userId, List<String> scopes) {
+    String code = UUID.randomUUID().toString();
+    long now = System.currentTimeMillis();
+    codes.put(code, new Grant(userId, scopes, now, now + 60 * 60 * 1000));
+    return code;
+  }
+
+  /**
+   * Creates an access token directly, skipping the login flow.
+   */
+  public synchronized String issueToken(String userId, List<String> scopes, long expiresInMillis) {
+    String token = UUID.randomUUID().toString();
+    long now = System.currentTimeMillis();
+    tokens.put(token, new Grant(userId, scopes, now, now + expiresInMillis));
+    return token;
+  }
+
+  /**
+   * Replaces the app data of a user, as another device would.
+   *
+   * @return the new ETag
+   */
+  public synchronized String putAppData(String userId, JSONObject data) {
+    String eTag = nextETag();
+    appData.put(userId, new AppDataRecord(data, eTag));
+    notifyAll();
+    return eTag;
+  }
+
+  /**
+   * Gets the app data of a user, or null if none was ever stored.
+   */
+  public synchronized JSONObject getAppData(String userId) {
+    AppDataRecord record = appData.get(userId);
+    return record != null ? record.data : null;
+  }
+
+  /**
+   * Gets the number of requests received for a path (such as "1/token/current"),
+   * including those that failed or were throttled.
+   */
+  public synchronized int getRequestCount(String path) {
+    AtomicInteger count = requestCounts.get(path);
+    return count != null ? count.get() : 0;
+  }
+
+  private void serve(Socket socket) {
+    try {
+      InputStream input = socket.getInputStream();
+      OutputStream output = socket.getOutputStream();
+      Request request;
+      // Keep the connection alive for as long as the client does.
+      while ((request = readRequest(input)) != null) {
+        writeResponse(output, handle(request));
+      }
+    } catch (IOException e) {
+      // The client went away.
+    } finally {
+      sockets.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  private Response handle(Request request) {
+    long latency;
+    Integer injected = null;
+    synchronized (this) {
+      AtomicInteger count = requestCounts.get(request.path);
+      if (count == null) {
+        count = new AtomicInteger();
+        requestCounts.put(request.path, count);
+      }
+      count.incrementAndGet();
+
+      latency = minLatencyMillis +
+          (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+      if (maxRequestsPerSecond > 0) {
+        long now = System.currentTimeMillis();
+        if (now - throttleWindowStart >= 1000) {
+          throttleWindowStart = now;
+          throttleWindowCount = 0;
+        }
+        if (++throttleWindowCount > maxRequestsPerSecond) {
+          injected = 429;
+        }
+      }
+      if (injected == null && failuresRemaining > 0 &&
+          (failurePath == null || failurePath.equals(request.path))) {
+        failuresRemaining--;
+        injected = failureStatus;
+      }
+      if (injected == null && errorRate > 0 && random.nextDouble() < errorRate) {
+        injected = errorStatus;
+      }
+    }
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (injected != null) {
+      Response response = error(injected, "injected");
+      if (injected == 429) {
+        response.headers.put("Retry-After", "1");
+      }
+      return response;
+    }
+
+    try {
+      if (request.path.equals("1/authz/provision_client") ||
+          request.path.equals("1/authz/provision_android_client")) {
+        return provisionClient(request);
+      } else if (request.path.equals("1/authz/token")) {
+        return exchangeCode(request);
+      } else if (request.path.equals("1/token/current")) {
+        return currentToken(request);
+      } else if (request.path.equals("1/user/current/app/data")) {
+        return appData(request);
+      }
+      return error(404, "not_found");
+    } catch (Exception e) {
+      return error(500, e.toString());
+    }
+  }
+
+  private Response provisionClient(Request request) throws Exception {
+    if (!request.method.equals("POST")) {
+      return error(405, "method_not_allowed");
+    }
+    JSONObject response = new JSONObject();
+    response.put("client_id", "fake-client-" + UUID.randomUUID());
+    if (request.path.equals("1/authz/provision_android_client")) {
+      response.put("client_secret", UUID.randomUUID().toString());
+    }
+    response.put("expires_in", 7 * 24 * 60 * 60);
+    return new Response(200, response);
+  }
+
+  private Response exchangeCode(Request request) throws Exception {
+    if (!request.method.equals("POST")) {
+      return error(405, "method_not_allowed");
+    }
+    Map<String, String> form = parseForm(new String(request.body, "UTF-8"));
+    Grant grant;
+    synchronized (this) {
+      grant = codes.remove(form.get("code"));
+    }
+    if (!"authorization_code".equals(form.get("grant_type")) || form.get("client_id") == null) {
+      return error(400, "invalid_request");
+    }
+    if (grant == null || grant.expires < System.currentTimeMillis()) {
+      return error(400, "invalid_grant");
+    }
+    String token = issueToken(grant.userId, grant.scopes, 24 * 60 * 60 * 1000);
+    JSONObject response = new JSONObject();
+    response.put("access_token", token);
+    response.put("token_type", "bearer");
+    response.put("scope", join(grant.scopes));
+    response.put("expires_in", 24 * 60 * 60);
+    return new Response(200, response);
+  }
+
+  private Response currentToken(Request request) throws Exception {
+    String tokenString = bearer(request);
+    Grant grant = authenticate(tokenString);
+    if (grant == null) {
+      return error(401, "invalid_token");
+    }
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+    format.setTimeZone(TimeZone.getDefault());
+    JSONObject response = new JSONObject();
+    response.put("token", tokenString);
+    response.put("application_id", APPLICATION_ID);
+    response.put("issued", format.format(new Date(grant.issued)));
+    response.put("expires", format.format(new Date(grant.expires)));
+    response.put("user_id", grant.userId);
+    response.put("scopes", new JSONArray(grant.scopes));
+    response.put("issued_to_authenticated_client", false);
+    return new Response(200, response);
+  }
+
+  private Response appData(Request request) throws Exception {
+    Grant grant = authenticate(bearer(request));
+    if (grant == null) {
+      return error(401, "invalid_token");
+    }
+    if (request.method.equals("GET")) {
+      if (!grant.scopes.contains("user:app:data:read")) {
+        return error(403, "insufficient_scope");
+      }
+      AppDataRecord record;
+      synchronized (this) {
+        record = appData.get(grant.userId);
+        if (record == null) {
+          record = new AppDataRecord(new JSONObject(), nextETag());
+          appData.put(grant.userId, record);
+        }
+        // A long poll holds the request until the data changes or the wait runs out.
+        String wait = request.query.get("wait");
+        if (wait != null) {
+          long deadline = System.currentTimeMillis() + Long.parseLong(wait) * 1000;
+          long remaining;
+          while (record.eTag.equals(request.header("If-None-Match")) &&
+              (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+            record = appData.get(grant.userId);
+          }
+        }
+      }
+      if (record.eTag.equals(request.header("If-None-Match"))) {
+        Response response = new Response(304, null);
+        response.headers.put("ETag", record.eTag);
+        return response;
+      }
+      JSONObject data = record.data;
+      String fields = request.query.get("fields");
+      if (fields != null) {
+        data = KeyPaths.project(data, Arrays.asList(fields.split(",")));
+      }
+      Response response = new Response(200, new JSONObject().put("data", data));
+      response.headers.put("ETag", record.eTag);
+      return response;
+    } else if (request.method.equals("PUT")) {
+      if (!grant.scopes.contains("user:app:data:write")) {
+        return error(403, "insufficient_scope");
+      }
+      JSONObject data = new JSONObject(new String(request.body, "UTF-8"));
+      String ifMatch = request.header("If-Match");
+      AppDataRecord record;
+      synchronized (this) {
+        AppDataRecord current = appData.get(grant.userId);
+        if (ifMatch != null && !ifMatch.equals("*") &&
+            (current == null || !current.eTag.equals(ifMatch))) {
+          return error(412, "precondition_failed");
+        }
+        record = new AppDataRecord(data, nextETag());
+        appData.put(grant.userId, record);
+        notifyAll();
+      }
+      Response response = new Response(200, new JSONObject().put("data", record.data));
+      response.headers.put("ETag", record.eTag);
+      return response;
+    }
+    return error(405, "method_not_allowed");
+  }
+
+  private synchronized Grant authenticate(String tokenString) {
+    Grant grant = tokenString != null ? tokens.get(tokenString) : null;
+    if (grant == null || grant.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    return grant;
+  }
+
+  private String nextETag() {
+    return "\"" + eTags.incrementAndGet() + "\"";
+  }
+
+  private static String bearer(Request request) {
+    String authorization = request.header("Authorization");
+    if (authorization == null || !authorization.startsWith("Bearer ")) {
+      return null;
+    }
+    return authorization.substring("Bearer ".length());
+  }
+
+  private static Response error(int status, String error) {
+    try {
+      return new Response(status, new JSONObject().put("error", error));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String join(List<String> scopes) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < scopes.size(); i++) {
+      if (i > 0) {
+        b.append(' ');
+      }
+      b.append(scopes.get(i));
+    }
+    return b.toString();
+  }
+
+  private static Map<String, String> parseForm(String body) throws IOException {
+    Map<String, String> form = new HashMap<String, String>();
+    for (String pair : body.split("&")) {
+      int equals = pair.indexOf('=');
+      if (equals > 0) {
+        form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return form;
+  }
+
+  private static Request readRequest(InputStream input) throws IOException {
+    String requestLine = readLine(input);
+    if (requestLine == null || requestLine.length() == 0) {
+      return null;
+    }
+    String[] parts = requestLine.split(" ");
+    if (parts.length < 2) {
+      throw new IOException("Bad request line: " + requestLine);
+    }
+    Request request = new Request();
+    request.method = parts[0];
+    String target = parts[1];
+    int query = target.indexOf('?');
+    request.path = (query >= 0 ? target.substring(0, query) : target).replaceFirst("^/", "");
+    if (query >= 0) {
+      request.query.putAll(parseForm(target.substring(query + 1)));
+    }
+    String line;
+    while ((line = readLine(input)) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+            line.substring(colon + 1).trim());
+      }
+    }
+    String contentLength = request.header("Content-Length");
+    int length = contentLength != null ? Integer.parseInt(contentLength) : 0;
+    request.body = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int n = input.read(request.body, read, length - read);
+      if (n < 0) {
+        throw new IOException("Truncated body");
+      }
+      read += n;
+    }
+    return request;
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = input.read()) != -1) {
+      if (b == '\n') {
+        break;
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return line.toString("ISO-8859-1");
+  }
+
+  private static void writeResponse(OutputStream output, Response response) throws IOException {
+    byte[] body = response.body.getBytes("UTF-8");
+    SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(response.status).append(' ')
+        .append(reason(response.status)).append("\r\n");
+    head.append("Date: ").append(httpDate.format(new Date())).append("\r\n");
+    if (body.length > 0) {
+      head.append("Content-Type: application/json; charset=utf-8\r\n");
+    }
+    head.append("Content-Length: ").append(body.length).append("\r\n");
+    for (Map.Entry<String, String> header : response.headers.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    head.append("\r\n");
+    output.write(head.toString().getBytes("ISO-8859-1"));
+    output.write(body);
+    output.flush();
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 304:
+        return "Not Modified";
+      case 400:
+        return "Bad Request";
+      case 401:
+        return "Unauthorized";
+      case 403:
+        return "Forbidden";
+      case 404:
+        return "Not Found";
+      case 405:
+        return "Method Not Allowed";
+      case 412:
+        return "Precondition Failed";
+      case 429:
+        return "Too Many Requests";
+      case 503:
+        return "Service Unavailable";
+      default:
+        return "Error";
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing more to do with it.
+    }
+  }
+
+  /**
+   * Convenience for tests: the scopes needed to read and write app data.
+   */
+  public static List<String> appDataScopes() {
+    return Arrays.asList("user:app:data:read", "user:app:data:write");
+  }
+}
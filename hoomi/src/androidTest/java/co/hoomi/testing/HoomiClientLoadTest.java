@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.testing;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import co.hoomi.HoomiClient;
+import co.hoomi.LoadGenerator;
+
+/**
+ * Runs a LoadGenerator against a local FakeHoomiServer and logs the report under the
+ * "HoomiLoad" tag.  Fails if requests error out without injected faults, or if the run
+ * leaves threads behind.
+ */
+public class HoomiClientLoadTest extends AndroidTestCase {
+  private static final String TAG = "HoomiLoad";
+  private static final int CLIENTS = 4;
+
+  private FakeHoomiServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new FakeHoomiServer(42);
+    server.start();
+    server.setLatency(5, 50);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testMixedLoad() throws Exception {
+    List<HoomiClient> clients = new ArrayList<HoomiClient>(CLIENTS);
+    LoadGenerator.Report report;
+    try {
+      for (int i = 0; i < CLIENTS; i++) {
+        clients.add(new HoomiClient(getContext(),
+            FakeHoomiServer.APPLICATION_ID,
+            server.getBaseUrl()));
+      }
+      report = new LoadGenerator(clients, server, 42)
+          .setUsers(200)
+          .setConcurrency(64)
+          .setDurationMillis(20 * 1000)
+          .setMix(1, 3, 1, 1)
+          .run();
+    } finally {
+      // Otherwise the clients stay registered with the shared engine for later tests.
+      for (HoomiClient client : clients) {
+        client.close();
+      }
+    }
+    Log.i(TAG, report.toString());
+
+    assertTrue(report.getCompleted() > 0);
+    assertEquals(0, report.getErrors());
+    // The engine's threads idle out, but none should be added per request.
+    assertTrue("Threads grew by " + report.getThreadGrowth(), report.getThreadGrowth() < 16);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.testing;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.hoomi.HoomiLoginButton;
+
+/**
+ * Checks that HoomiLoginButton doesn't allocate while it is measured, laid out and drawn
+ * at a size it has already been laid out at, once its artwork has been rendered.
+ *
+ * The passes run on the main thread, as they would in an application, since the button's
+ * callbacks invalidate it there.
+ */
+public class HoomiLoginButtonAllocationTest extends InstrumentationTestCase {
+  private static final int WIDTH = 600;
+  private static final int HEIGHT = 120;
+  private static final long SETTLE_MILLIS = 10 * 1000;
+  private static final int PASSES = 100;
+
+  private HoomiLoginButton button;
+  private Canvas canvas;
+  private int widthSpec;
+  private int heightSpec;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        button = new HoomiLoginButton(getInstrumentation().getTargetContext());
+      }
+    });
+    canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    widthSpec = View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY);
+    heightSpec = View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY);
+  }
+
+  public void testMeasureLayoutDrawDoesNotAllocate() throws Exception {
+    // The first passes lay the button out and load and render its artwork in the
+    // background, which allocates; wait for a pass that doesn't.
+    long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+    int allocations;
+    while ((allocations = countAllocations(1)) > 0) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Still allocating " + allocations + " objects per pass after " +
+            SETTLE_MILLIS + "ms");
+      }
+      Thread.sleep(50);
+    }
+
+    assertEquals(0, countAllocations(PASSES));
+  }
+
+  private int countAllocations(final int passes) {
+    final AtomicInteger allocations = new AtomicInteger();
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+          for (int i = 0; i < passes; i++) {
+            button.measure(widthSpec, heightSpec);
+            button.layout(0, 0, WIDTH, HEIGHT);
+            button.draw(canvas);
+          }
+        } finally {
+          Debug.stopAllocCounting();
+        }
+        allocations.set(Debug.getThreadAllocCount());
+      }
+    });
+    return allocations.get();
+  }
+}
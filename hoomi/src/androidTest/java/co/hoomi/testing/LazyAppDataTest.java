@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.testing;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import co.hoomi.response.LazyAppData;
+
+/**
+ * Checks that LazyAppData, which indexes the raw JSON with its own scanner, reads the
+ * same values as JSONTokener does for the whole document, both from bytes in memory and
+ * from a memory-mapped file.
+ */
+public class LazyAppDataTest extends AndroidTestCase {
+  private final List<File> files = new ArrayList<File>();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : files) {
+      file.delete();
+    }
+    super.tearDown();
+  }
+
+  public void testEscapes() throws Exception {
+    checkMatchesJSONTokener("{\"quote\\\"key\": \"a \\\"quoted\\\" value\", " +
+        "\"back\\\\slash\": \"ends in a backslash\\\\\", " +
+        "\"\\\\\": \"\\\\\\\"\", " +
+        "\"escapes\": \"\\/\\b\\f\\n\\r\\t\\u0041\"}");
+  }
+
+  public void testNonAscii() throws Exception {
+    checkMatchesJSONTokener("{\"cl\u00e9\": \"\u65e5\u672c\u8a9e\", " +
+        "\"emoji\": \"\ud83d\ude00 and \\u00e9\", " +
+        "\"\u00fcber\": {\"gr\u00f6\u00dfe\": \"\u00e7a\"}}");
+  }
+
+  public void testNestedArraysAndObjects() throws Exception {
+    checkMatchesJSONTokener("{\"list\": [1, [2, {\"x\": \"]}\"}], {}, []], " +
+        "\"object\": {\"inner\": {\"deep\": [true, null, {\"k\": \"{[\"}]}, \"after\": 1}, " +
+        "\"last\": [[[]]]}");
+    LazyAppData data = LazyAppData.fromResponse(
+        body("{\"object\": {\"inner\": {\"deep\": \"value\"}, \"after\": 1}}")
+            .getBytes("UTF-8"),
+        null);
+    assertEquals("value", data.optString("object", "inner", "deep"));
+    assertTrue(data.has("object", "after"));
+    assertFalse(data.has("object", "after", "more"));
+    assertNull(data.opt("object", "missing"));
+  }
+
+  public void testEmptyObjects() throws Exception {
+    checkMatchesJSONTokener("{}");
+    checkMatchesJSONTokener("{ \n }");
+    checkMatchesJSONTokener("{\"empty\": {}, \"spaced\": { }, \"array\": []}");
+    assertTrue(LazyAppData.fromResponse(body("{}").getBytes("UTF-8"), null).keys().isEmpty());
+  }
+
+  public void testNumbersAndLiteralsAtEndOfObject() throws Exception {
+    checkMatchesJSONTokener("{\"n\": -1.5e3}");
+    checkMatchesJSONTokener("{\"n\":42}");
+    checkMatchesJSONTokener("{\"t\": true }");
+    checkMatchesJSONTokener("{\"f\":false\n}");
+    checkMatchesJSONTokener("{\"z\": null}");
+    checkMatchesJSONTokener("{\"a\": {\"b\": 0}, \"c\": {\"d\": 1E-2\t}}");
+  }
+
+  public void testTruncatedInput() throws Exception {
+    String complete = "{\"data\": {\"s\": \"a\\\"b\u00e9\", \"n\": 12, " +
+        "\"o\": {\"l\": [1, {\"x\": null}]}, \"t\": true}}";
+    byte[] bytes = complete.getBytes("UTF-8");
+    for (int length = 0; length < bytes.length; length++) {
+      byte[] truncated = new byte[length];
+      System.arraycopy(bytes, 0, truncated, 0, length);
+      try {
+        LazyAppData.fromResponse(truncated, null);
+        fail("Accepted " + length + " of " + bytes.length + " bytes");
+      } catch (JSONException e) {
+        // Expected.
+      }
+      try {
+        LazyAppData.fromResponse(write(truncated), null);
+        fail("Accepted " + length + " of " + bytes.length + " bytes from a file");
+      } catch (JSONException e) {
+        // Expected.
+      }
+    }
+  }
+
+  public void testMissingData() throws Exception {
+    try {
+      LazyAppData.fromResponse(body("[]").getBytes("UTF-8"), null);
+      fail("Accepted data that isn't an object");
+    } catch (JSONException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Reads the given app data through LazyAppData, from bytes and from a file, and
+   * compares every value with what JSONTokener reads.
+   */
+  private void checkMatchesJSONTokener(String data) throws Exception {
+    JSONObject expected = new JSONObject(data);
+    byte[] bytes = body(data).getBytes("UTF-8");
+
+    checkMatches(expected, LazyAppData.fromResponse(bytes, "\"1\""));
+    checkMatches(expected, LazyAppData.fromResponse(write(bytes), "\"1\""));
+
+    LazyAppData materialized = LazyAppData.fromResponse(bytes, "\"1\"");
+    assertEquivalent(expected, materialized.getData());
+    assertTrue(materialized.isMaterialized());
+    checkMatches(expected, materialized);
+  }
+
+  private void checkMatches(JSONObject expected, LazyAppData actual) throws Exception {
+    Set<String> expectedKeys = new HashSet<String>();
+    Iterator<?> keys = expected.keys();
+    while (keys.hasNext()) {
+      expectedKeys.add((String) keys.next());
+    }
+    assertEquals(expectedKeys, new HashSet<String>(actual.keys()));
+    assertEquals(expectedKeys.size(), actual.keys().size());
+    for (String key : expectedKeys) {
+      assertTrue(key, actual.has(key));
+      assertEquivalent(expected.get(key), actual.opt(key));
+      Object value = expected.get(key);
+      if (value instanceof JSONObject) {
+        Iterator<?> nestedKeys = ((JSONObject) value).keys();
+        while (nestedKeys.hasNext()) {
+          String nestedKey = (String) nestedKeys.next();
+          assertEquivalent(((JSONObject) value).get(nestedKey), actual.opt(key, nestedKey));
+        }
+      }
+    }
+    assertFalse(actual.has("no such key"));
+  }
+
+  private static void assertEquivalent(Object expected, Object actual) throws JSONException {
+    if (expected instanceof JSONObject) {
+      assertTrue("Expected an object, got " + actual, actual instanceof JSONObject);
+      JSONObject expectedObject = (JSONObject) expected;
+      JSONObject actualObject = (JSONObject) actual;
+      assertEquals(expectedObject.length(), actualObject.length());
+      Iterator<?> keys = expectedObject.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        assertTrue(key, actualObject.has(key));
+        assertEquivalent(expectedObject.get(key), actualObject.get(key));
+      }
+    } else if (expected instanceof JSONArray) {
+      assertTrue("Expected an array, got " + actual, actual instanceof JSONArray);
+      JSONArray expectedArray = (JSONArray) expected;
+      JSONArray actualArray = (JSONArray) actual;
+      assertEquals(expectedArray.length(), actualArray.length());
+      for (int i = 0; i < expectedArray.length(); i++) {
+        assertEquivalent(expectedArray.get(i), actualArray.get(i));
+      }
+    } else {
+      assertEquals(expected, actual);
+    }
+  }
+
+  private static String body(String data) {
+    return "{\"data\": " + data + "}";
+  }
+
+  private File write(byte[] bytes) throws Exception {
+    File file = File.createTempFile("appdata", ".json", getContext().getCacheDir());
+    files.add(file);
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+    return file;
+  }
+}
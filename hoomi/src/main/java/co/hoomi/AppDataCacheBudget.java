@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits how much app data the ObservableAppData instances of one or more clients keep
+ * in memory.
+ *
+ * Each instance charges the size of its latest value, in characters of JSON. When the
+ * total goes over the budget, the least recently used values are dropped, skipping those
+ * of instances that have observers, since those are still being watched. A dropped value
+ * is simply read again the next time the app data is fetched.
+ */
+class AppDataCacheBudget {
+  static final int DEFAULT_MAX_CHARS = 1024 * 1024;
+
+  private static class Charge {
+    final int chars;
+    final long version;
+
+    Charge(int chars, long version) {
+      this.chars = chars;
+      this.version = version;
+    }
+  }
+
+  // In access order, so the first entry is always the least recently used.
+  private final LinkedHashMap<ObservableAppData, Charge> charges =
+      new LinkedHashMap<ObservableAppData, Charge>(16, 0.75f, true);
+  private long maxChars;
+  private long usedChars;
+
+  AppDataCacheBudget(long maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  synchronized long getMaxChars() {
+    return maxChars;
+  }
+
+  synchronized long getUsedChars() {
+    return usedChars;
+  }
+
+  void setMaxChars(long maxChars) {
+    synchronized (this) {
+      this.maxChars = maxChars;
+    }
+    trim();
+  }
+
+  /**
+   * Notes the size of an instance's new latest value, dropping others if that puts the
+   * total over the budget.  Call this without holding the instance's lock.
+   *
+   * @param owner   the instance
+   * @param chars   the size of the value
+   * @param version the instance's version for the value
+   */
+  void charge(ObservableAppData owner, int chars, long version) {
+    synchronized (this) {
+      Charge previous = charges.get(owner);
+      if (previous != null && previous.version > version) {
+        // A newer value was charged first.
+        return;
+      }
+      charges.put(owner, new Charge(chars, version));
+      usedChars += chars - (previous != null ? previous.chars : 0);
+    }
+    trim();
+  }
+
+  /**
+   * Stops counting an instance's value, which it has handed over to another instance.
+   */
+  synchronized void release(ObservableAppData owner) {
+    Charge charge = charges.remove(owner);
+    if (charge != null) {
+      usedChars -= charge.chars;
+    }
+  }
+
+  /**
+   * Marks an instance's value as recently used.
+   */
+  synchronized void touch(ObservableAppData owner) {
+    charges.get(owner);
+  }
+
+  private void trim() {
+    List<ObservableAppData> victims = new ArrayList<ObservableAppData>();
+    List<Long> versions = new ArrayList<Long>();
+    synchronized (this) {
+      Iterator<Map.Entry<ObservableAppData, Charge>> iterator =
+          charges.entrySet().iterator();
+      while (usedChars > maxChars && iterator.hasNext()) {
+        Map.Entry<ObservableAppData, Charge> entry = iterator.next();
+        if (entry.getKey().hasObservers()) {
+          continue;
+        }
+        usedChars -= entry.getValue().chars;
+        iterator.remove();
+        victims.add(entry.getKey());
+        versions.add(entry.getValue().version);
+      }
+    }
+    // Outside the lock, so that the budget's lock is never held waiting for an
+    // instance's.  An instance that has moved on to a newer value keeps it.
+    for (int i = 0; i < victims.size(); i++) {
+      victims.get(i).evict(versions.get(i));
+    }
+  }
+}
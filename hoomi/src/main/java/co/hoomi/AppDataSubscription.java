@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+/**
+ * A listener's subscription to changes in a user's app data, returned by
+ * {@link HoomiClient#subscribeToAppData}.
+ */
+public class AppDataSubscription {
+  private final HoomiClient client;
+  private final AppDataWatcher watcher;
+  private final HoomiClient.AppDataListener listener;
+  private boolean cancelled;
+
+  AppDataSubscription(HoomiClient client,
+                      AppDataWatcher watcher,
+                      HoomiClient.AppDataListener listener) {
+    this.client = client;
+    this.watcher = watcher;
+    this.listener = listener;
+  }
+
+  /**
+   * Stops delivering changes to the listener.  The connection to the server is closed
+   * once no listeners for the user remain.
+   */
+  public synchronized void cancel() {
+    if (cancelled) {
+      return;
+    }
+    cancelled = true;
+    if (watcher.removeListener(listener)) {
+      client.removeAppDataWatcher(watcher);
+    }
+  }
+
+  /**
+   * Gets whether the subscription has been cancelled.
+   *
+   * @return true once cancel has been called
+   */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+}
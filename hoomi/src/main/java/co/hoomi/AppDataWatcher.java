@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Continuation;
+import bolts.Task;
+import co.hoomi.response.AppData;
+
+/**
+ * Watches one user's app data with a long poll and tells its listeners when it changes.
+ *
+ * Each poll is a GET conditioned on the last ETag seen (If-None-Match) with a wait
+ * parameter, which the server holds until the data changes or the wait runs out. There
+ * is one watcher, and so one outstanding request, per token however many listeners
+ * there are. Servers that answer 304 straight away instead of holding the request are
+ * polled at a fixed interval. Transient failures are retried with jittered exponential
+ * backoff; authorization failures stop the watcher and are reported to the listeners.
+ */
+class AppDataWatcher {
+  static final int WAIT_SECONDS = 60;
+  static final long FALLBACK_POLL_MILLIS = 30 * 1000;
+  static final long MIN_BACKOFF_MILLIS = 1000;
+  static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  private final HoomiClient client;
+  private final HoomiAccessToken token;
+  private final HttpEngine engine;
+  private final List<HoomiClient.AppDataListener> listeners =
+      new CopyOnWriteArrayList<HoomiClient.AppDataListener>();
+  private final Random random = new Random();
+  private String latestBody;
+  private String latestETag;
+  private int failures;
+  private boolean stopped;
+  private ScheduledFuture<?> pendingPoll;
+  private HttpEngine.Request currentRequest;
+
+  AppDataWatcher(HoomiClient client, HoomiAccessToken token, HttpEngine engine) {
+    this.client = client;
+    this.token = token;
+    this.engine = engine;
+  }
+
+  HoomiAccessToken getToken() {
+    return token;
+  }
+
+  /**
+   * Adds a listener, which is sent the latest app data straight away if there is any.
+   * A watcher that has stopped takes no more listeners, since it will never poll again.
+   *
+   * @return true if the listener was added, or false if the watcher has stopped
+   */
+  synchronized boolean addListener(final HoomiClient.AppDataListener listener) {
+    if (stopped) {
+      return false;
+    }
+    listeners.add(listener);
+    if (latestBody != null) {
+      final String body = latestBody;
+      final String eTag = latestETag;
+      BackgroundScheduler.get().execute(new Runnable() {
+        @Override
+        public void run() {
+          deliver(listener, body, eTag);
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Removes a listener, stopping the watcher when it was the last one.
+   *
+   * @return true if the watcher has stopped
+   */
+  synchronized boolean removeListener(HoomiClient.AppDataListener listener) {
+    listeners.remove(listener);
+    if (listeners.isEmpty()) {
+      stop();
+    }
+    return stopped;
+  }
+
+  void start() {
+    poll();
+  }
+
+  synchronized void stop() {
+    stopped = true;
+    if (pendingPoll != null) {
+      pendingPoll.cancel(false);
+      pendingPoll = null;
+    }
+    // Close the long poll too, rather than leaving it open until the server answers.
+    if (currentRequest != null) {
+      currentRequest.cancel();
+      currentRequest = null;
+    }
+  }
+
+  private void poll() {
+    String eTag;
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      pendingPoll = null;
+      eTag = latestETag;
+    }
+    HttpEngine.Request request;
+    try {
+      request = client.newRequest("1/user/current/app/data",
+          "GET",
+          token,
+          eTag != null ? HoomiClient.buildJSONObject("wait", WAIT_SECONDS) : null,
+          false,
+          null);
+      if (eTag != null) {
+        request.addHeader("If-None-Match", eTag);
+      }
+      // Leave the server time to answer once the wait runs out.
+      request.setTimeoutMillis(WAIT_SECONDS * 1000 + HttpEngine.DEFAULT_TIMEOUT_MILLIS);
+    } catch (Exception e) {
+      fail(e);
+      return;
+    }
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      currentRequest = request;
+    }
+    final HttpEngine.Request sent = request;
+    final long started = System.currentTimeMillis();
+    engine.executeAsync(request).continueWith(new Continuation<HttpEngine.Response, Void>() {
+      @Override
+      public Void then(Task<HttpEngine.Response> task) throws Exception {
+        synchronized (AppDataWatcher.this) {
+          if (currentRequest == sent) {
+            currentRequest = null;
+          }
+        }
+        if (task.isCancelled()) {
+          // Stopped while the request was out.
+          return null;
+        } else if (task.isFaulted()) {
+          retryLater(null);
+        } else {
+          handle(task.getResult(), System.currentTimeMillis() - started);
+        }
+        return null;
+      }
+    });
+  }
+
+  private void handle(HttpEngine.Response response, long elapsedMillis) {
+    int status = response.getStatusCode();
+    String eTag = response.getHeader("ETag");
+    synchronized (this) {
+      if (status == 200 && eTag != null && eTag.equals(latestETag)) {
+        // The server ignored If-None-Match; nothing has changed.
+        status = 304;
+      }
+    }
+    if (status == 200) {
+      synchronized (this) {
+        failures = 0;
+        if (stopped) {
+          return;
+        }
+        latestBody = response.getBody();
+        latestETag = eTag;
+      }
+      for (HoomiClient.AppDataListener listener : listeners) {
+        deliver(listener, response.getBody(), eTag);
+      }
+      try {
+        // A change pushed by the server is the newest data there is.
+        client.publishAppData(token,
+            new AppData(new JSONObject(response.getBody()).getJSONObject("data"), eTag));
+      } catch (Exception e) {
+        // Malformed data; the listeners have already skipped it too.
+      }
+      poll();
+    } else if (status == 304) {
+      synchronized (this) {
+        failures = 0;
+      }
+      if (elapsedMillis < WAIT_SECONDS * 1000 / 2) {
+        // The server doesn't hold requests, so fall back to plain polling.
+        schedule(FALLBACK_POLL_MILLIS);
+      } else {
+        poll();
+      }
+    } else if (status == 408 || status == 429 || status >= 500) {
+      retryLater(response.getHeader("Retry-After"));
+    } else {
+      try {
+        HttpEngine.checkStatus(response);
+      } catch (HoomiException e) {
+        fail(e);
+      }
+    }
+  }
+
+  private void retryLater(String retryAfter) {
+    long delay;
+    synchronized (this) {
+      failures++;
+      long backoff = MIN_BACKOFF_MILLIS << Math.min(failures - 1, 16);
+      delay = Math.min(MAX_BACKOFF_MILLIS, backoff);
+      // Spread reconnects out so that many clients don't return at once.
+      delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+    if (retryAfter != null) {
+      try {
+        delay = Math.max(delay, Long.parseLong(retryAfter.trim()) * 1000);
+      } catch (NumberFormatException e) {
+        // Ignore dates; the backoff is enough.
+      }
+    }
+    schedule(delay);
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (stopped) {
+      return;
+    }
+    pendingPoll = BackgroundScheduler.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void fail(Exception error) {
+    stop();
+    client.removeAppDataWatcher(this);
+    for (HoomiClient.AppDataListener listener : listeners) {
+      try {
+        listener.onError(error);
+      } catch (RuntimeException e) {
+        // One listener must not keep the others from hearing about it.
+      }
+    }
+  }
+
+  private void deliver(HoomiClient.AppDataListener listener, String body, String eTag) {
+    try {
+      // Each listener gets its own copy, since AppData is mutable.
+      listener.onAppDataChanged(new AppData(new JSONObject(body).getJSONObject("data"), eTag));
+    } catch (Exception e) {
+      // Malformed data or a failing listener; the others still get theirs.
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single daemon thread for the SDK's timers: retries, hedges and renewals.  Scheduled
+ * work should only start asynchronous operations, so that it never holds the thread.
+ */
+class BackgroundScheduler {
+  private static ScheduledExecutorService scheduler;
+
+  private BackgroundScheduler() {
+  }
+
+  static synchronized ScheduledExecutorService get() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "HoomiScheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scheduler;
+  }
+}
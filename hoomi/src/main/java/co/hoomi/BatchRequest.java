@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+import co.hoomi.response.BatchResult;
+
+/**
+ * Runs the same GET request for many tokens.
+ *
+ * When the client has the batch endpoint enabled, tokens are sent in chunks to
+ * 1/batch; otherwise (or if the server turns out not to support it) each token is
+ * requested individually. Either way at most a fixed number of requests are in flight.
+ * A chunk that fails for a transient reason, such as a timeout or a 5xx, is retried one
+ * token at a time. Tokens that fail the client's local checks are answered without a
+ * request at all. Keeping the number of concurrent requests within the HTTP connection
+ * pool's limit lets every request reuse a kept-alive connection.
+ *
+ * @param <T> the type of result for each token
+ */
+abstract class BatchRequest<T> {
+  static final int MAX_BATCH_ENDPOINT_SIZE = 50;
+
+  private final HoomiClient client;
+  private final String path;
+  private final List<HoomiAccessToken> tokens;
+  private final HoomiClient.BatchListener<T> listener;
+  private final int parallelism;
+  private final List<BatchResult<T>> results;
+  private final AtomicInteger remaining;
+  private final Task<List<BatchResult<T>>>.TaskCompletionSource tcs = Task.create();
+  // Work waiting for a free slot: chunks for the batch endpoint and single tokens.
+  private final List<Unit> queue = new ArrayList<Unit>();
+  private int inFlight;
+
+  private static class Unit {
+    final List<Integer> indices;
+    final boolean batched;
+
+    Unit(List<Integer> indices, boolean batched) {
+      this.indices = indices;
+      this.batched = batched;
+    }
+  }
+
+  BatchRequest(HoomiClient client,
+               String path,
+               Collection<HoomiAccessToken> tokens,
+               HoomiClient.BatchListener<T> listener) {
+    this.client = client;
+    this.path = path;
+    this.tokens = new ArrayList<HoomiAccessToken>(tokens);
+    this.listener = listener;
+    this.parallelism = Math.max(1, client.getMaxBatchParallelism());
+    this.results = new ArrayList<BatchResult<T>>(this.tokens.size());
+    for (int i = 0; i < this.tokens.size(); i++) {
+      results.add(null);
+    }
+    this.remaining = new AtomicInteger(this.tokens.size());
+  }
+
+  /**
+   * Requests the item for a single token.
+   */
+  abstract Task<T> requestAsync(HoomiAccessToken token);
+
+  /**
+   * Parses the item for a single token from a response returned by the batch endpoint.
+   */
+  abstract T parse(HoomiClient.ApiResponse response) throws Exception;
+
+  /**
+   * Checks a token before it is sent.
+   *
+   * @return the error the token's request would certainly fail with, or null to send it
+   */
+  Exception checkLocally(HoomiAccessToken token) {
+    return null;
+  }
+
+  /**
+   * Starts the batch.
+   *
+   * @return the results for every token, in the order the tokens were given (asynchronously)
+   */
+  Task<List<BatchResult<T>>> runAsync() {
+    if (tokens.isEmpty()) {
+      return Task.forResult(results);
+    }
+    List<Integer> toSend = new ArrayList<Integer>(tokens.size());
+    final Map<Integer, Exception> rejected = new LinkedHashMap<Integer, Exception>();
+    for (int i = 0; i < tokens.size(); i++) {
+      Exception error = checkLocally(tokens.get(i));
+      if (error == null) {
+        toSend.add(i);
+      } else {
+        rejected.put(i, error);
+      }
+    }
+    if (client.isBatchEndpointEnabled() && !client.isBatchEndpointUnsupported()) {
+      synchronized (queue) {
+        for (int start = 0; start < toSend.size(); start += MAX_BATCH_ENDPOINT_SIZE) {
+          queue.add(new Unit(new ArrayList<Integer>(toSend.subList(start,
+              Math.min(toSend.size(), start + MAX_BATCH_ENDPOINT_SIZE))), true));
+        }
+      }
+    } else {
+      enqueueIndividually(toSend);
+    }
+    startNext();
+    if (!rejected.isEmpty()) {
+      // Answer these on a background thread as well, as the listener expects.
+      Task.callInBackground(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (Map.Entry<Integer, Exception> rejection : rejected.entrySet()) {
+            complete(rejection.getKey(), null, rejection.getValue());
+          }
+          return null;
+        }
+      });
+    }
+    return tcs.getTask();
+  }
+
+  private void enqueueIndividually(List<Integer> indices) {
+    synchronized (queue) {
+      for (int i : indices) {
+        queue.add(new Unit(Collections.singletonList(i), false));
+      }
+    }
+  }
+
+  private void startNext() {
+    while (true) {
+      final Unit unit;
+      synchronized (queue) {
+        if (queue.isEmpty() || inFlight >= parallelism) {
+          return;
+        }
+        unit = queue.remove(0);
+        inFlight++;
+      }
+      Task<Void> task;
+      if (!unit.batched) {
+        task = runIndividuallyAsync(unit.indices.get(0));
+      } else if (client.isBatchEndpointUnsupported()) {
+        // Another chunk found out that the server doesn't support batching.
+        enqueueIndividually(unit.indices);
+        task = Task.forResult(null);
+      } else {
+        task = runChunkAsync(unit.indices);
+      }
+      task.continueWith(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          synchronized (queue) {
+            inFlight--;
+          }
+          startNext();
+          return null;
+        }
+      });
+    }
+  }
+
+  private Task<Void> runChunkAsync(final List<Integer> chunk) {
+    JSONArray requests = new JSONArray();
+    for (int i : chunk) {
+      requests.put(HoomiClient.buildJSONObject("method", "GET",
+          "path", path,
+          "headers", HoomiClient.buildJSONObject("Authorization",
+              "Bearer " + tokens.get(i).getTokenString())));
+    }
+    return client.requestAsync("1/batch",
+        "POST",
+        null,
+        HoomiClient.buildJSONObject("requests", requests))
+        .continueWith(new Continuation<HoomiClient.ApiResponse, Void>() {
+          @Override
+          public Void then(Task<HoomiClient.ApiResponse> task) throws Exception {
+            if (task.isFaulted() || task.isCancelled()) {
+              if (task.isFaulted() && isUnsupported(task.getError())) {
+                client.setBatchEndpointUnsupported();
+              }
+              // Timeouts, 5xx and throttling only affect this chunk; its tokens are still
+              // owed answers, so send them one by one.
+              enqueueIndividually(chunk);
+              return null;
+            }
+            JSONArray responses = task.getResult().getJsonData().optJSONArray("responses");
+            if (responses == null || responses.length() != chunk.size()) {
+              // Whatever answered doesn't speak the batch protocol; stop trying.
+              client.setBatchEndpointUnsupported();
+              enqueueIndividually(chunk);
+              return null;
+            }
+            for (int position = 0; position < chunk.size(); position++) {
+              int i = chunk.get(position);
+              JSONObject response = responses.optJSONObject(position);
+              int status = response != null ? response.optInt("status", 500) : 500;
+              if (status < 200 || status > 399) {
+                complete(i, null, new HoomiException("HTTP Error: " + status, status));
+                continue;
+              }
+              try {
+                complete(i, parse(client.new ApiResponse(response.getJSONObject("body"),
+                    parseHeaders(response.optJSONObject("headers")))), null);
+              } catch (Exception e) {
+                complete(i, null, e);
+              }
+            }
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Whether a failed batch request shows that the server has no batch endpoint, as
+   * opposed to failing for a reason that may go away.
+   */
+  private static boolean isUnsupported(Exception error) {
+    if (error instanceof JSONException) {
+      // A success response that isn't JSON.
+      return true;
+    }
+    if (!(error instanceof HoomiException)) {
+      return false;
+    }
+    int status = ((HoomiException) error).getStatusCode();
+    return status == 404 || status == 405 || status == 501;
+  }
+
+  private Task<Void> runIndividuallyAsync(final int index) {
+    Task<T> task;
+    try {
+      task = requestAsync(tokens.get(index));
+    } catch (Exception e) {
+      task = Task.forError(e);
+    }
+    return task.continueWith(new Continuation<T, Void>() {
+      @Override
+      public Void then(Task<T> task) throws Exception {
+        complete(index, task.isFaulted() ? null : task.getResult(), task.getError());
+        return null;
+      }
+    });
+  }
+
+  private void complete(int index, T result, Exception error) {
+    BatchResult<T> batchResult = new BatchResult<T>(tokens.get(index), result, error);
+    synchronized (results) {
+      results.set(index, batchResult);
+    }
+    if (listener != null) {
+      try {
+        listener.onResult(batchResult);
+      } catch (RuntimeException e) {
+        // A failing listener must not stall the rest of the batch.
+      }
+    }
+    if (remaining.decrementAndGet() == 0) {
+      synchronized (results) {
+        tcs.setResult(new ArrayList<BatchResult<T>>(results));
+      }
+    }
+  }
+
+  /**
+   * Parses the headers of a response returned by the batch endpoint.  Header names are
+   * case-insensitive, and the map looks them up that way.
+   */
+  private static Map<String, List<String>> parseHeaders(JSONObject headers) {
+    Map<String, List<String>> result =
+        new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    if (headers == null) {
+      return result;
+    }
+    Iterator<String> keys = headers.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      List<String> values = result.get(key);
+      if (values == null) {
+        values = new ArrayList<String>();
+        result.put(key, values);
+      }
+      JSONArray array = headers.optJSONArray(key);
+      if (array != null) {
+        for (int i = 0; i < array.length(); i++) {
+          values.add(array.optString(i));
+        }
+      } else {
+        values.add(headers.optString(key));
+      }
+    }
+    return result;
+  }
+}
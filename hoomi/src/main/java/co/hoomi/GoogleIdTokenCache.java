@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.android.gms.auth.GooglePlayServicesAvailabilityException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Caches the Google account and the ID token, issued for the Web Google Client ID, that
+ * authenticate the client when a client ID is provisioned.
+ *
+ * Asking AccountManager and Google Play Services for these is the slowest part of
+ * provisioning, so the token is kept (in memory and in the client's preferences) until
+ * shortly before it expires, and fetched in the background ahead of need. Callers that
+ * can't wait for Google Play Services are given null after a bounded wait instead, and
+ * can provision an unauthenticated client ID in the meantime.
+ */
+class GoogleIdTokenCache {
+  static final String PREFERENCE_KEY = "googleIdToken";
+  // Don't hand out a token that might expire before the server has checked it.
+  static final long EXPIRY_MARGIN_MILLIS = 5 * 60 * 1000;
+  // Google ID tokens last an hour; assume a little less of one that can't be decoded.
+  static final long DEFAULT_LIFETIME_MILLIS = 50 * 60 * 1000;
+  static final long UNAVAILABLE_RETRY_MILLIS = 60 * 60 * 1000;
+
+  private final Context context;
+  private final SharedPreferences preferences;
+  private final String audience;
+  private final ServerClock clock;
+  private String accountName;
+  private String token;
+  // By the server's clock, which is closer to Google's than the device's may be.
+  private long expires;
+  private long unavailableUntil;
+  private Task<String> fetch;
+
+  GoogleIdTokenCache(Context context,
+                     SharedPreferences preferences,
+                     String webGoogleClientId,
+                     ServerClock clock) {
+    this.context = context;
+    this.preferences = preferences;
+    this.audience = "audience:server:client_id:" + webGoogleClientId;
+    this.clock = clock;
+    String json = preferences.getString(PREFERENCE_KEY, null);
+    if (json != null) {
+      try {
+        JSONObject stored = new JSONObject(json);
+        accountName = stored.optString("account", null);
+        // A token for another Web Google Client ID is no use, but the account still is.
+        if (audience.equals(stored.optString("audience"))) {
+          token = stored.optString("token", null);
+          expires = stored.optLong("expires", 0);
+        }
+      } catch (JSONException e) {
+        // Ignore this error -- the token will just be fetched again.
+      }
+    }
+  }
+
+  /**
+   * Gets the cached token if it is still good.
+   *
+   * @return the token, or null if there is none or it expires soon
+   */
+  synchronized String getCachedToken() {
+    return token != null && expires - EXPIRY_MARGIN_MILLIS > clock.now() ? token : null;
+  }
+
+  /**
+   * Starts fetching a token in the background, unless one is cached or already on its way.
+   */
+  void prefetch() {
+    getTokenAsync();
+  }
+
+  /**
+   * Gets a token, from the cache if possible.
+   *
+   * @return the token (asynchronously), or null if there is no Google account on the
+   * device or Google Play Services is unavailable
+   */
+  synchronized Task<String> getTokenAsync() {
+    String cached = getCachedToken();
+    if (cached != null) {
+      return Task.forResult(cached);
+    }
+    if (fetch != null) {
+      return fetch;
+    }
+    if (clock.now() < unavailableUntil) {
+      return Task.forResult(null);
+    }
+    fetch = Task.callInBackground(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return fetchToken();
+      }
+    }).continueWithTask(new Continuation<String, Task<String>>() {
+      @Override
+      public Task<String> then(Task<String> task) throws Exception {
+        synchronized (GoogleIdTokenCache.this) {
+          fetch = null;
+        }
+        return task;
+      }
+    });
+    return fetch;
+  }
+
+  /**
+   * Gets a token, waiting at most the given time for Google Play Services.  The fetch
+   * carries on after the wait runs out, so the token is cached for next time.
+   *
+   * @param maxWaitMillis how long to wait, or -1 to wait as long as it takes
+   * @return the token (asynchronously), or null if there is none or it took too long
+   */
+  Task<String> getTokenAsync(long maxWaitMillis) {
+    final Task<String>.TaskCompletionSource tcs = Task.create();
+    getTokenAsync().continueWith(new Continuation<String, Void>() {
+      @Override
+      public Void then(Task<String> task) throws Exception {
+        tcs.trySetResult(task.isFaulted() ? null : task.getResult());
+        return null;
+      }
+    });
+    if (maxWaitMillis >= 0 && !tcs.getTask().isCompleted()) {
+      BackgroundScheduler.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          tcs.trySetResult(null);
+        }
+      }, maxWaitMillis, TimeUnit.MILLISECONDS);
+    }
+    return tcs.getTask();
+  }
+
+  /**
+   * Forgets a token that the server rejected, so that a new one is fetched next time.
+   */
+  void invalidate(final String rejected) {
+    synchronized (this) {
+      if (rejected.equals(token)) {
+        token = null;
+        store();
+      }
+    }
+    // Google Play Services would otherwise hand out the same token again.
+    Task.callInBackground(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        GoogleAuthUtil.invalidateToken(context, rejected);
+        return null;
+      }
+    });
+  }
+
+  private String fetchToken() throws Exception {
+    String account = getAccountName();
+    if (account == null) {
+      return null;
+    }
+    String jwt;
+    try {
+      jwt = GoogleAuthUtil.getToken(context, account, audience);
+    } catch (GooglePlayServicesAvailabilityException e) {
+      synchronized (this) {
+        unavailableUntil = clock.now() + UNAVAILABLE_RETRY_MILLIS;
+      }
+      return null;
+    } catch (GoogleAuthException e) {
+      // The account may have been removed; look it up again next time.
+      synchronized (this) {
+        accountName = null;
+        store();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      token = jwt;
+      expires = getExpiry(jwt);
+      store();
+    }
+    return jwt;
+  }
+
+  private String getAccountName() {
+    synchronized (this) {
+      if (accountName != null) {
+        return accountName;
+      }
+    }
+    Account[] accounts = AccountManager.get(context).getAccountsByType("com.google");
+    if (accounts == null || accounts.length == 0) {
+      return null;
+    }
+    synchronized (this) {
+      accountName = accounts[0].name;
+      store();
+      return accountName;
+    }
+  }
+
+  /**
+   * Reads the expiry time out of a JWT's payload.
+   */
+  private long getExpiry(String jwt) {
+    String[] parts = jwt.split("\\.");
+    if (parts.length >= 2) {
+      try {
+        byte[] payload = Base64.decode(parts[1],
+            Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+        long exp = new JSONObject(new String(payload, "UTF-8")).optLong("exp", 0);
+        if (exp > 0) {
+          return exp * 1000;
+        }
+      } catch (IllegalArgumentException e) {
+        // Not Base64; fall through to the default.
+      } catch (JSONException e) {
+        // Not JSON; fall through to the default.
+      } catch (IOException e) {
+        // Can't happen; every device supports UTF-8.
+      }
+    }
+    return clock.now() + DEFAULT_LIFETIME_MILLIS;
+  }
+
+  private void store() {
+    try {
+      JSONObject stored = new JSONObject();
+      stored.put("account", accountName);
+      if (token != null) {
+        stored.put("audience", audience);
+        stored.put("token", token);
+        stored.put("expires", expires);
+      }
+      preferences.edit().putString(PREFERENCE_KEY, stored.toString()).apply();
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Sends a second copy of a slow GET request, to cut the tail of the latency distribution.
+ *
+ * For each API path the policy keeps a window of recent latencies, as the caller saw them:
+ * from when the request was sent until the first answer, whichever copy gave it. Once a
+ * request has taken longer than a chosen percentile of them, the same request is sent
+ * again, and whichever copy answers first wins; the other is cancelled. A budget limits
+ * the extra requests to a fraction of all requests, so hedging can't multiply the load on
+ * a server that is slow across the board.
+ *
+ * Only use this for idempotent requests. HoomiClient applies it to its GET requests when
+ * set with {@link HoomiClient#setHedgingPolicy}.
+ */
+public class HedgingPolicy {
+  public static final double DEFAULT_PERCENTILE = 95;
+  public static final double DEFAULT_BUDGET = 0.05;
+  static final int WINDOW_SIZE = 128;
+  static final int MIN_SAMPLES = 20;
+  static final long MIN_DELAY_MILLIS = 20;
+  // The most hedges that can be saved up for a burst of slow requests.
+  static final double MAX_CREDITS = 10;
+
+  private static class Window {
+    final long[] samples = new long[WINDOW_SIZE];
+    int count;
+    int next;
+    long delayMillis = -1;
+  }
+
+  private final double percentile;
+  private final double budget;
+  private final Map<String, Window> windows = new HashMap<String, Window>();
+  private double credits = 1;
+  private int requests;
+  private int hedges;
+  private int hedgeWins;
+
+  /**
+   * Creates a policy that hedges requests slower than the 95th percentile, adding at
+   * most 5% more requests.
+   */
+  public HedgingPolicy() {
+    this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+  }
+
+  /**
+   * Creates a hedging policy.
+   *
+   * @param percentile the percentile of recent latencies (between 0 and 100) after which
+   *                   a request is hedged
+   * @param budget     the largest fraction of extra requests hedging may add, such as
+   *                   0.05 for 5%
+   */
+  public HedgingPolicy(double percentile, double budget) {
+    this.percentile = percentile;
+    this.budget = budget;
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public double getBudget() {
+    return budget;
+  }
+
+  /**
+   * Gets the number of requests sent through this policy.
+   */
+  public synchronized int getRequestCount() {
+    return requests;
+  }
+
+  /**
+   * Gets the number of hedge requests sent.
+   */
+  public synchronized int getHedgeCount() {
+    return hedges;
+  }
+
+  /**
+   * Gets the number of hedge requests that answered before the original.
+   */
+  public synchronized int getHedgeWinCount() {
+    return hedgeWins;
+  }
+
+  /**
+   * Gets how long a request for a path may take before it is hedged.
+   *
+   * @return the delay in milliseconds, or -1 if too few latencies have been seen yet
+   */
+  public synchronized long getDelayMillis(String path) {
+    Window window = windows.get(path);
+    return window != null ? window.delayMillis : -1;
+  }
+
+  /**
+   * Sends a request, hedging it if it is slow.
+   *
+   * @param engine  the engine to send through
+   * @param path    the API path, whose latencies decide when to hedge
+   * @param request the request, which must be idempotent
+   * @return the first final response (asynchronously)
+   */
+  Task<HttpEngine.Response> executeAsync(HttpEngine engine,
+                                         String path,
+                                         HttpEngine.Request request) {
+    long delay;
+    synchronized (this) {
+      requests++;
+      credits = Math.min(MAX_CREDITS, credits + budget);
+      delay = getDelayMillis(path);
+    }
+    final HedgedRequest hedged = new HedgedRequest(engine, path, request);
+    hedged.launch(request);
+    if (delay >= 0) {
+      BackgroundScheduler.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          hedged.hedge();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    return hedged.tcs.getTask();
+  }
+
+  private synchronized boolean tryAcquireHedge() {
+    if (credits < 1) {
+      return false;
+    }
+    credits--;
+    hedges++;
+    return true;
+  }
+
+  private synchronized void recordLatency(String path, long latencyMillis) {
+    Window window = windows.get(path);
+    if (window == null) {
+      window = new Window();
+      windows.put(path, window);
+    }
+    window.samples[window.next] = latencyMillis;
+    window.next = (window.next + 1) % WINDOW_SIZE;
+    window.count = Math.min(WINDOW_SIZE, window.count + 1);
+    // Sorting the window on every sample would cost more than it saves.
+    if (window.count >= MIN_SAMPLES && (window.delayMillis < 0 || window.next % 16 == 0)) {
+      long[] sorted = Arrays.copyOf(window.samples, window.count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      window.delayMillis = Math.max(MIN_DELAY_MILLIS,
+          sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+  }
+
+  /**
+   * The attempts for one request.
+   */
+  private class HedgedRequest {
+    final HttpEngine engine;
+    final String path;
+    final HttpEngine.Request primary;
+    final Task<HttpEngine.Response>.TaskCompletionSource tcs = Task.create();
+    final long started = System.currentTimeMillis();
+    HttpEngine.Request hedge;
+    int outstanding;
+    boolean done;
+
+    HedgedRequest(HttpEngine engine, String path, HttpEngine.Request primary) {
+      this.engine = engine;
+      this.path = path;
+      this.primary = primary;
+    }
+
+    void launch(final HttpEngine.Request attempt) {
+      synchronized (this) {
+        outstanding++;
+      }
+      engine.executeAsync(attempt).continueWith(new Continuation<HttpEngine.Response, Void>() {
+        @Override
+        public Void then(Task<HttpEngine.Response> task) throws Exception {
+          finish(attempt, task);
+          return null;
+        }
+      });
+    }
+
+    void hedge() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+      }
+      if (!tryAcquireHedge()) {
+        return;
+      }
+      HttpEngine.Request copy;
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        hedge = primary.copy();
+        copy = hedge;
+      }
+      launch(copy);
+    }
+
+    void finish(HttpEngine.Request attempt, Task<HttpEngine.Response> task) {
+      // Server errors might be specific to one connection or backend, so give the other
+      // attempt a chance; anything else is the server's real answer.
+      boolean answered = !task.isFaulted() && !task.isCancelled() &&
+          task.getResult().getStatusCode() < 500;
+      HttpEngine.Request loser;
+      synchronized (this) {
+        outstanding--;
+        if (done || (!answered && outstanding > 0)) {
+          return;
+        }
+        done = true;
+        loser = attempt == primary ? hedge : primary;
+      }
+      if (loser != null) {
+        loser.cancel();
+      }
+      if (answered) {
+        // From the primary's start, so a hedge that wins counts the wait before it too.
+        recordLatency(path, System.currentTimeMillis() - started);
+      }
+      if (answered && attempt != primary) {
+        synchronized (HedgingPolicy.this) {
+          hedgeWins++;
+        }
+      }
+      if (task.isCancelled()) {
+        tcs.setCancelled();
+      } else if (task.isFaulted()) {
+        tcs.setError(task.getError());
+      } else {
+        tcs.setResult(task.getResult());
+      }
+    }
+  }
+}
@@ -9,16 +9,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a Hoomi access token.
+ *
+ * Tokens are immutable and compare equal when their token strings are equal, so they can
+ * be used as keys. The known scopes are held in an interned set that is shared by every
+ * token with the same scopes, which makes scope checks cheap.
  */
 public class HoomiAccessToken {
-  private String tokenString;
-  private List<String> knownScopes;
-  private Date knownExpiration;
+  // Canonical scope sets, so tokens with the same scopes share one set.
+  private static final Map<Set<String>, Set<String>> scopeSets =
+      new HashMap<Set<String>, Set<String>>();
+
+  private final String tokenString;
+  private final List<String> knownScopes;
+  private final Set<String> knownScopeSet;
+  private final Date knownExpiration;
 
   /**
    * Creates a HoomiAccessToken instance.
@@ -39,8 +54,29 @@ public class HoomiAccessToken {
    */
   public HoomiAccessToken(String tokenString, List<String> knownScopes, Date knownExpiration) {
     this.tokenString = tokenString;
-    this.knownScopes = knownScopes;
-    this.knownExpiration = knownExpiration;
+    if (knownScopes != null) {
+      this.knownScopes = Collections.unmodifiableList(new ArrayList<String>(knownScopes));
+      this.knownScopeSet = internScopes(knownScopes);
+    } else {
+      this.knownScopes = null;
+      this.knownScopeSet = null;
+    }
+    this.knownExpiration = knownExpiration != null ? new Date(knownExpiration.getTime()) : null;
+  }
+
+  private static Set<String> internScopes(Collection<String> scopes) {
+    Set<String> set = new HashSet<String>();
+    for (String scope : scopes) {
+      set.add(scope.intern());
+    }
+    synchronized (scopeSets) {
+      Set<String> interned = scopeSets.get(set);
+      if (interned == null) {
+        interned = Collections.unmodifiableSet(set);
+        scopeSets.put(interned, interned);
+      }
+      return interned;
+    }
   }
 
   /**
@@ -56,12 +92,53 @@ public class HoomiAccessToken {
    * Gets the set of scopes known to be provided by this token.  Users may revoke
    * access to these scopes.
    *
-   * @return the set of scopes issued for the token, or null if the scopes are unknown
+   * @return the set of scopes issued for the token (which cannot be modified), or null
+   * if the scopes are unknown
    */
   public List<String> getKnownScopes() {
     return knownScopes;
   }
 
+  /**
+   * Gets the scopes known to be provided by this token as a set.
+   *
+   * @return the set of scopes issued for the token (which cannot be modified), or null
+   * if the scopes are unknown
+   */
+  public Set<String> getKnownScopeSet() {
+    return knownScopeSet;
+  }
+
+  /**
+   * Determines whether this token is known to provide all of the given scopes.
+   *
+   * @param scopes the scopes to check for
+   * @return true if the known scopes include all of them, false if any is missing or the
+   * scopes are unknown
+   */
+  public boolean hasScopes(String... scopes) {
+    if (knownScopeSet == null) {
+      return false;
+    }
+    for (String scope : scopes) {
+      if (!knownScopeSet.contains(scope)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Determines whether this token is known to lack any of the given scopes.  Unlike
+   * !hasScopes, this is false when the scopes are unknown.
+   *
+   * @param scopes the scopes to check for
+   * @return true if the scopes are known and any of the given scopes is missing
+   */
+  public boolean isKnownToLackScopes(String... scopes) {
+    return knownScopeSet != null && !hasScopes(scopes);
+  }
+
   /**
    * Gets the expiration known for this token.  The token may become invalid
    * before its expiration date.
@@ -69,7 +146,28 @@ public class HoomiAccessToken {
    * @return the known expiration time, or null if the expiration time is unknown
    */
   public Date getKnownExpiration() {
-    return knownExpiration;
+    return knownExpiration != null ? new Date(knownExpiration.getTime()) : null;
+  }
+
+  /**
+   * Determines whether this token is known to have expired.
+   *
+   * @return true if the known expiration time has passed, false if it has not or it is
+   * unknown
+   */
+  public boolean isKnownExpired() {
+    return knownExpiration != null && knownExpiration.getTime() <= System.currentTimeMillis();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof HoomiAccessToken &&
+        tokenString.equals(((HoomiAccessToken) o).tokenString);
+  }
+
+  @Override
+  public int hashCode() {
+    return tokenString.hashCode();
   }
 
   String serialize() {
@@ -4,49 +4,75 @@
 
 package co.hoomi;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 
-import com.google.android.gms.auth.GoogleAuthUtil;
-import com.google.android.gms.auth.GooglePlayServicesAvailabilityException;
-
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.lang.ref.WeakReference;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import bolts.Continuation;
 import bolts.Task;
 import co.hoomi.response.AppData;
+import co.hoomi.response.BatchResult;
+import co.hoomi.response.LazyAppData;
+import co.hoomi.response.LoginResult;
 import co.hoomi.response.TokenInformation;
 
 /**
  * The main entry point for working with Hoomi.
  */
 public class HoomiClient {
-  private static final String BASE_API_URL = "https://api.hoomi.co/";
+  /**
+   * The base URL of the production Hoomi API.
+   */
+  public static final String DEFAULT_BASE_API_URL = "https://api.hoomi.co/";
+  /**
+   * The scope needed to read a user's app data.
+   */
+  public static final String SCOPE_APP_DATA_READ = "user:app:data:read";
+  /**
+   * The scope needed to write a user's app data.
+   */
+  public static final String SCOPE_APP_DATA_WRITE = "user:app:data:write";
+  // A client ID is no longer used this close to its expiry.
+  static final long CLIENT_ID_SAFETY_MARGIN_MILLIS = 60 * 1000;
+  // A client ID is renewed in the background once a tenth of its lifetime, but at least
+  // this long, remains.
+  static final long MIN_CLIENT_ID_RENEWAL_MARGIN_MILLIS = 5 * 60 * 1000;
+  static final long CLIENT_ID_RENEWAL_RETRY_MILLIS = 60 * 1000;
+  // How long provisioning waits for a Google ID token before going without one.
+  static final long GOOGLE_ID_TOKEN_WAIT_MILLIS = 500;
+  static final int MAX_KNOWN_TOKEN_USERS = 64;
+  private static final String USER_KEY_PREFIX = "user:";
+  private static final String TOKEN_KEY_PREFIX = "token:";
   private static final String BASE_DIALOG_URL = "https://dialog.hoomi.co/";
   private static final String BASE_APP_URL = "hoomi://hoomi/";
 
@@ -66,15 +92,107 @@ public class HoomiClient {
     public Map<String, List<String>> getHeaders() {
       return headers;
     }
+
+    /**
+     * Gets the first value of a response header, ignoring the case of its name.
+     *
+     * @return the value, or null if the header is not present
+     */
+    public String getHeader(String name) {
+      if (headers == null) {
+        return null;
+      }
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) &&
+            !header.getValue().isEmpty()) {
+          return header.getValue().get(0);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Receives the result for each token of a batch request as soon as it completes.
+   *
+   * @param <T> the type of result for each token
+   */
+  public static interface BatchListener<T> {
+    /**
+     * Called (on a background thread) when the item for one token has completed.
+     *
+     * @param result the result or error for the token
+     */
+    public void onResult(BatchResult<T> result);
+  }
+
+  /**
+   * Receives changes to a user's app data.
+   */
+  public static interface AppDataListener {
+    /**
+     * Called (on a background thread) with the current app data when subscribing, and
+     * again each time it changes.
+     *
+     * @param appData the new app data
+     */
+    public void onAppDataChanged(AppData appData);
+
+    /**
+     * Called (on a background thread) if the subscription can't continue, for example
+     * because the token has expired.  No further changes are delivered.
+     *
+     * @param error the reason
+     */
+    public void onError(Exception error);
   }
 
   private static HoomiClient currentClient;
+  // The latest open client for each application ID and API, for completing logins that
+  // outlived the process that started them.  Weak, so that clients can still be dropped.
+  private static final Map<String, WeakReference<HoomiClient>> liveClients =
+      new HashMap<String, WeakReference<HoomiClient>>();
 
   private Context context;
   private String applicationId;
+  private volatile String baseApiUrl;
+  private final String preferencesName;
+  private final String liveClientKey;
   private HoomiAccessToken currentToken;
   private Task<JSONObject> clientIdTask;
   private String webGoogleClientId;
+  private volatile GoogleIdTokenCache googleIdTokens;
+  private final Map<String, Task<HoomiAccessToken>> codeExchanges =
+      new HashMap<String, Task<HoomiAccessToken>>();
+  private int maxBatchParallelism = 4;
+  private boolean batchEndpointEnabled;
+  private volatile boolean batchEndpointUnsupported;
+  private HttpEngine httpEngine = HttpEngine.getSharedEngine();
+  private volatile boolean localTokenChecksEnabled = true;
+  private volatile HedgingPolicy hedgingPolicy;
+  private final ServerClock serverClock;
+  // Null when the registry samples the clock for all of its clients.
+  private final ServerClockSampler clockSampler;
+  private ScheduledFuture<?> clientIdRenewal;
+  private boolean clientIdRenewing;
+  private boolean closed;
+  private final Map<String, AppDataWatcher> appDataWatchers =
+      new HashMap<String, AppDataWatcher>();
+  private HttpEngine longPollEngine;
+  private final HoomiClientRegistry registry;
+  private final AppDataCacheBudget appDataCacheBudget;
+  // Keyed by user once the user of a token is known, and by token until then.
+  private final Map<String, ObservableAppData> observableAppData =
+      new HashMap<String, ObservableAppData>();
+  // The users of recently seen tokens, as told by token information.  Guarded by
+  // observableAppData.
+  private final Map<String, String> tokenUserIds =
+      new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_KNOWN_TOKEN_USERS;
+        }
+      };
 
   /**
    * Creates a HoomiClient with the given application ID from Hoomi.
@@ -83,12 +201,181 @@ public class HoomiClient {
    * @param applicationId the application ID that this client will use
    */
   public HoomiClient(Context context, String applicationId) {
+    this(context, applicationId, DEFAULT_BASE_API_URL);
+  }
+
+  /**
+   * Creates a HoomiClient with the given application ID that talks to the Hoomi API at
+   * the given URL, for example a local test server.
+   *
+   * @param context       an Android context
+   * @param applicationId the application ID that this client will use
+   * @param baseApiUrl    the base URL of the API, ending in a slash
+   */
+  public HoomiClient(Context context, String applicationId, String baseApiUrl) {
+    this(context, applicationId, baseApiUrl, null);
+  }
+
+  /**
+   * Creates a HoomiClient that shares the engines and app data cache budget of a
+   * registry, if given.
+   */
+  HoomiClient(Context context,
+              String applicationId,
+              String baseApiUrl,
+              HoomiClientRegistry registry) {
+    this(context, applicationId, baseApiUrl, registry, false);
+  }
+
+  /**
+   * Creates a client, which unless it is only for exchanging one code also becomes the
+   * current client if there is none, provisions its client ID and can be found by
+   * findLiveClient.
+   */
+  private HoomiClient(Context context,
+                      String applicationId,
+                      String baseApiUrl,
+                      HoomiClientRegistry registry,
+                      boolean codeExchangeOnly) {
     this.context = context.getApplicationContext();
     this.applicationId = applicationId;
-    if (currentClient == null) {
-      currentClient = this;
+    this.baseApiUrl = baseApiUrl;
+    this.registry = registry;
+    if (registry != null) {
+      httpEngine = registry.getHttpEngine();
+      longPollEngine = registry.getLongPollEngine();
+      appDataCacheBudget = registry.getAppDataCacheBudget();
+    } else {
+      appDataCacheBudget = new AppDataCacheBudget(AppDataCacheBudget.DEFAULT_MAX_CHARS);
+    }
+    // Keep client IDs and tokens for other servers apart from the production ones.
+    this.preferencesName = "co.hoomi.HoomiClient|" + applicationId +
+        (DEFAULT_BASE_API_URL.equals(baseApiUrl) ? "" : "|" + baseApiUrl);
+    this.liveClientKey = applicationId + "|" + baseApiUrl;
+    if (registry != null) {
+      clockSampler = null;
+      serverClock = registry.getServerClock();
+    } else {
+      clockSampler = new ServerClockSampler(getSharedPreferences(), baseApiUrl);
+      serverClock = clockSampler.getClock();
+      if (!codeExchangeOnly) {
+        httpEngine.addListener(clockSampler);
+      }
+    }
+    if (codeExchangeOnly) {
+      closed = true;
+      return;
+    }
+    synchronized (HoomiClient.class) {
+      if (currentClient == null) {
+        currentClient = this;
+      }
+      liveClients.put(liveClientKey, new WeakReference<HoomiClient>(this));
+    }
+    // Clear out login requests abandoned by earlier runs of the application.  Every client
+    // asks, but the registry purges at most once a minute unless forced.
+    PendingLoginRegistry.getInstance().purgeAsync(this.context, false);
+    provisionClientIdAsync(null);
+  }
+
+  /**
+   * Creates a client that only exchanges the code of a login started by an earlier
+   * process, when the application has no client of its own for the application ID yet.
+   * It shares that client's preferences, so the token is stored where the application's
+   * client will find it, but it doesn't become the current client, provision a client ID
+   * or renew anything, and needs no closing.
+   */
+  static HoomiClient createForCodeExchange(Context context,
+                                           String applicationId,
+                                           String baseApiUrl) {
+    return new HoomiClient(context, applicationId, baseApiUrl, null, true);
+  }
+
+  /**
+   * Finds the latest client created (directly or by a registry) for an application ID and
+   * API that hasn't been closed.
+   *
+   * @return the client, or null if there is none
+   */
+  static synchronized HoomiClient findLiveClient(String applicationId, String baseApiUrl) {
+    String key = applicationId + "|" + baseApiUrl;
+    WeakReference<HoomiClient> reference = liveClients.get(key);
+    HoomiClient client = reference != null ? reference.get() : null;
+    if (client == null) {
+      liveClients.remove(key);
+    }
+    return client;
+  }
+
+  /**
+   * Gets the application ID that this client uses.
+   *
+   * @return the application ID
+   */
+  public String getApplicationId() {
+    return applicationId;
+  }
+
+  /**
+   * Gets the registry that created this client.
+   *
+   * @return the registry, or null if the client was created directly
+   */
+  public HoomiClientRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Gets how far the Hoomi server's clock is estimated to be ahead of the device's, from
+   * the Date headers of recent responses.  Expiry times are adjusted by this, so a wrong
+   * device clock doesn't make client IDs and tokens look expired (or valid) when they
+   * aren't.
+   *
+   * @return the offset in milliseconds, negative if the device clock is ahead
+   */
+  public long getServerClockOffsetMillis() {
+    return serverClock.getOffsetMillis();
+  }
+
+  /**
+   * Releases what the client has registered outside itself: it stops sampling the server
+   * clock from its engine's responses, stops renewing its client ID and ends its app data
+   * subscriptions.  Call this before discarding a client created directly, especially
+   * one that uses the shared engine.  Clients made by a registry are closed with it.
+   *
+   * Requests can still be made afterwards, but the client ID is no longer kept fresh.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (clientIdRenewal != null) {
+        clientIdRenewal.cancel(false);
+        clientIdRenewal = null;
+      }
+      if (clockSampler != null) {
+        httpEngine.removeListener(clockSampler);
+      }
+    }
+    List<AppDataWatcher> watchers;
+    synchronized (appDataWatchers) {
+      watchers = new ArrayList<AppDataWatcher>(appDataWatchers.values());
+      appDataWatchers.clear();
+    }
+    for (AppDataWatcher watcher : watchers) {
+      watcher.stop();
+    }
+    synchronized (HoomiClient.class) {
+      if (currentClient == this) {
+        currentClient = null;
+      }
+      WeakReference<HoomiClient> reference = liveClients.get(liveClientKey);
+      if (reference != null && reference.get() == this) {
+        liveClients.remove(liveClientKey);
+      }
     }
-    provisionClientIdAsync();
   }
 
   /**
@@ -107,9 +394,28 @@ public class HoomiClient {
    */
   public void setWebGoogleClientId(String webGoogleClientId) {
     this.webGoogleClientId = webGoogleClientId;
+    if (webGoogleClientId == null) {
+      googleIdTokens = null;
+    } else {
+      googleIdTokens = new GoogleIdTokenCache(context,
+          getSharedPreferences(),
+          webGoogleClientId,
+          serverClock);
+      // Have the token ready by the time a client ID is next provisioned.
+      googleIdTokens.prefetch();
+    }
+  }
+
+  private Task<JSONObject> provisionClientIdAsync(LoginTracer.Trace trace) {
+    return updateClientIdAsync(trace);
   }
 
-  private Task<JSONObject> provisionClientIdAsync() {
+  /**
+   * Chains a check of the client ID onto the previous one.  A missing or expired client
+   * ID is provisioned straight away; one that is merely close to expiry is renewed off
+   * the chain (see renewClientIdInBackground), so that logins don't wait for it.
+   */
+  private synchronized Task<JSONObject> updateClientIdAsync(final LoginTracer.Trace trace) {
     if (clientIdTask == null) {
       try {
         String cachedIdJson = getSharedPreferences().getString("cachedClientId", null);
@@ -127,53 +433,208 @@ public class HoomiClient {
     clientIdTask = clientIdTask.continueWithTask(new Continuation<JSONObject, Task<JSONObject>>() {
       @Override
       public Task<JSONObject> then(Task<JSONObject> task) throws Exception {
-        JSONObject current = task.getResult();
-        if (current != null && current.optLong("expires", 0) > new Date().getTime()) {
-          if (getWebGoogleClientId() != null && !current.has("client_secret")) {
-            // We should try again to authenticate the client
+        JSONObject current = task.isFaulted() ? null : task.getResult();
+        if (isClientIdUsable(current)) {
+          GoogleIdTokenCache idTokens = googleIdTokens;
+          boolean unauthenticated = idTokens != null && !current.has("client_secret");
+          if (unauthenticated) {
+            // Authenticate the client in the background rather than making logins wait.
+            authenticateClientIdLater(idTokens);
+          }
+          if (serverClock.now() >= getClientIdRenewalTime(current)) {
+            // Overdue, perhaps because the device slept through the scheduled renewal.
+            renewClientIdInBackground();
           } else {
-            return task;
+            scheduleClientIdRenewal(current);
           }
+          return Task.forResult(current);
         }
-        Continuation<ApiResponse, JSONObject> continuation = new Continuation<ApiResponse, JSONObject>() {
-          @Override
-          public JSONObject then(Task<ApiResponse> task) throws Exception {
-            JSONObject copy = new JSONObject(task.getResult().getJsonData().toString());
-            long expiresIn = task.getResult().getJsonData().optLong("expires_in", 60 * 60);
-            // Set the expiry back by an hour to be conservative.
-            expiresIn -= 60 * 60;
-            copy.put("expires", new Date().getTime() + 1000 * expiresIn);
-            getSharedPreferences().edit().putString("cachedClientId", copy.toString()).apply();
-            return copy;
+        return fetchClientIdAsync(trace, false);
+      }
+    }, Task.BACKGROUND_EXECUTOR);
+    return clientIdTask;
+  }
+
+  private boolean isClientIdUsable(JSONObject clientId) {
+    return clientId != null &&
+        clientId.optLong("expires", 0) - CLIENT_ID_SAFETY_MARGIN_MILLIS > serverClock.now();
+  }
+
+  /**
+   * Gets the server time at which a client ID should be renewed.
+   */
+  private long getClientIdRenewalTime(JSONObject clientId) {
+    long expires = clientId.optLong("expires", 0);
+    long issued = clientId.optLong("issued", 0);
+    // IDs cached by older versions have no issue time; renew those an hour early.
+    long margin = issued > 0 ?
+        Math.max(MIN_CLIENT_ID_RENEWAL_MARGIN_MILLIS, (expires - issued) / 10) : 60 * 60 * 1000;
+    return expires - margin;
+  }
+
+  private void scheduleClientIdRenewal(JSONObject clientId) {
+    long delay = getClientIdRenewalTime(clientId) - serverClock.now();
+    if (delay <= 0) {
+      // Either the renewal just failed or it is already overdue; try again shortly.
+      delay = CLIENT_ID_RENEWAL_RETRY_MILLIS;
+    }
+    scheduleClientIdRenewal(delay);
+  }
+
+  private synchronized void scheduleClientIdRenewal(long delayMillis) {
+    if (closed) {
+      return;
+    }
+    if (clientIdRenewal != null) {
+      clientIdRenewal.cancel(false);
+    }
+    clientIdRenewal = BackgroundScheduler.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        renewClientIdInBackground();
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Provisions a new client ID without holding up the chain of client ID checks, which
+   * logins wait on.  They keep getting the current ID until the new one has arrived, and
+   * if it can't be had the current one stays and renewal is tried again later.
+   */
+  private synchronized void renewClientIdInBackground() {
+    if (clientIdRenewing || closed) {
+      return;
+    }
+    clientIdRenewing = true;
+    Task<JSONObject> renewal;
+    try {
+      renewal = fetchClientIdAsync(null, true);
+    } catch (Exception e) {
+      renewal = Task.forError(e);
+    }
+    renewal.continueWith(new Continuation<JSONObject, Void>() {
+      @Override
+      public Void then(Task<JSONObject> task) throws Exception {
+        synchronized (HoomiClient.this) {
+          clientIdRenewing = false;
+          if (task.isFaulted() || task.isCancelled()) {
+            scheduleClientIdRenewal(CLIENT_ID_RENEWAL_RETRY_MILLIS);
+            return null;
           }
-        };
-        if (getWebGoogleClientId() != null) {
-          try {
-            // If there's a google account on the device, attempt client authentication
-            AccountManager accountManager = AccountManager.get(context);
-            Account[] accounts = accountManager.getAccountsByType("com.google");
-            if (accounts != null && accounts.length > 0) {
-              String jwt = GoogleAuthUtil.getToken(context,
-                  accounts[0].name,
-                  "audience:server:client_id:" + getWebGoogleClientId());
-              return requestAsync("1/authz/provision_android_client",
-                  "POST",
-                  null,
-                  buildJSONObject("application_id", applicationId, "token", jwt))
-                  .onSuccess(continuation);
+          final JSONObject renewed = task.getResult();
+          // Swap the new ID in behind whatever the chain is doing, keeping the ID that
+          // lasts longer if a login had to provision one meanwhile.
+          clientIdTask = clientIdTask.continueWith(new Continuation<JSONObject, JSONObject>() {
+            @Override
+            public JSONObject then(Task<JSONObject> task) throws Exception {
+              JSONObject current = task.isFaulted() ? null : task.getResult();
+              if (isClientIdUsable(current) &&
+                  current.optLong("expires", 0) > renewed.optLong("expires", 0)) {
+                return current;
+              }
+              return renewed;
             }
-          } catch (GooglePlayServicesAvailabilityException e) {
-            // Ignore these exceptions if Google Play Services are not available on the device
-          }
+          });
         }
-        return requestAsync("1/authz/provision_client",
-            "POST",
-            null,
-            buildJSONObject("application_id", applicationId))
-            .onSuccess(continuation);
+        return null;
       }
-    }, Task.BACKGROUND_EXECUTOR);
-    return clientIdTask;
+    });
+  }
+
+  /**
+   * Provisions a client ID once the Google ID token is in hand, unless there is no token
+   * to be had.  This is a background renewal, so no login waits for the token.
+   */
+  private void authenticateClientIdLater(GoogleIdTokenCache idTokens) {
+    idTokens.getTokenAsync().onSuccess(new Continuation<String, Void>() {
+      @Override
+      public Void then(Task<String> task) throws Exception {
+        if (task.getResult() != null) {
+          renewClientIdInBackground();
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Provisions a new client ID, authenticated with a Google ID token if one can be had.
+   *
+   * @param trace    the login waiting for it, or null
+   * @param renewing whether this is a background renewal (see renewClientIdInBackground),
+   *                 which no login waits on and so can wait for Google Play Services for
+   *                 as long as it takes
+   */
+  private Task<JSONObject> fetchClientIdAsync(LoginTracer.Trace trace, boolean renewing)
+      throws Exception {
+    final LoginTracer.Span provisioning = trace != null ?
+        trace.begin("provision_client") : null;
+    final Continuation<ApiResponse, JSONObject> continuation =
+        new Continuation<ApiResponse, JSONObject>() {
+      @Override
+      public JSONObject then(Task<ApiResponse> task) throws Exception {
+        if (provisioning != null) {
+          provisioning.end();
+        }
+        JSONObject copy = new JSONObject(task.getResult().getJsonData().toString());
+        long expiresIn = task.getResult().getJsonData().optLong("expires_in", 60 * 60);
+        // Expiry is kept by the server's clock, so a wrong device clock doesn't matter.
+        long now = serverClock.now();
+        copy.put("issued", now);
+        copy.put("expires", now + 1000 * expiresIn);
+        getSharedPreferences().edit().putString("cachedClientId", copy.toString()).apply();
+        scheduleClientIdRenewal(copy);
+        return copy;
+      }
+    };
+    final GoogleIdTokenCache idTokens = googleIdTokens;
+    if (idTokens == null) {
+      return provisionUnauthenticatedClientAsync().onSuccess(continuation);
+    }
+    final LoginTracer.Span googleToken = trace != null ?
+        trace.begin("google_auth_token") : null;
+    return idTokens.getTokenAsync(renewing ? -1 : GOOGLE_ID_TOKEN_WAIT_MILLIS)
+        .continueWithTask(new Continuation<String, Task<JSONObject>>() {
+          @Override
+          public Task<JSONObject> then(Task<String> task) throws Exception {
+            if (googleToken != null) {
+              googleToken.end();
+            }
+            final String jwt = task.getResult();
+            if (jwt == null) {
+              // Google Play Services is slow or unavailable.  Go without client
+              // authentication for now; the ID is replaced once the token arrives.
+              authenticateClientIdLater(idTokens);
+              return provisionUnauthenticatedClientAsync().onSuccess(continuation);
+            }
+            return requestAsync("1/authz/provision_android_client",
+                "POST",
+                null,
+                buildJSONObject("application_id", applicationId, "token", jwt))
+                .continueWithTask(new Continuation<ApiResponse, Task<ApiResponse>>() {
+                  @Override
+                  public Task<ApiResponse> then(Task<ApiResponse> task) throws Exception {
+                    if (task.isFaulted() && task.getError() instanceof HoomiException) {
+                      int status = ((HoomiException) task.getError()).getStatusCode();
+                      if (status >= 400 && status < 500) {
+                        // The server rejected the token; don't offer it again.
+                        idTokens.invalidate(jwt);
+                        return provisionUnauthenticatedClientAsync();
+                      }
+                    }
+                    return task;
+                  }
+                })
+                .onSuccess(continuation);
+          }
+        });
+  }
+
+  private Task<ApiResponse> provisionUnauthenticatedClientAsync() throws Exception {
+    return requestAsync("1/authz/provision_client",
+        "POST",
+        null,
+        buildJSONObject("application_id", applicationId));
   }
 
   private String serializeScopes(List<String> scopes) {
@@ -212,11 +673,21 @@ public class HoomiClient {
    * @return a HoomiAccessToken (asynchronously)
    */
   public Task<HoomiAccessToken> authorizeAsync(final Uri redirectUri, final List<String> scopes) {
+    final LoginTracer.Trace trace = LoginTracer.getInstance().newTrace();
+    return finishTrace(authorizeAsync(redirectUri, scopes, trace), trace);
+  }
+
+  Task<HoomiAccessToken> authorizeAsync(final Uri redirectUri,
+                                        final List<String> scopes,
+                                        final LoginTracer.Trace trace) {
     final Task<HoomiAccessToken>.TaskCompletionSource tcs = Task.create();
-    provisionClientIdAsync().onSuccess(new Continuation<JSONObject, Void>() {
+    final LoginTracer.Span clientId = trace.begin("provision_client_id");
+    provisionClientIdAsync(trace).onSuccess(new Continuation<JSONObject, Void>() {
       @Override
       public Void then(Task<JSONObject> task) throws Exception {
+        clientId.end();
         String state = UUID.randomUUID().toString();
+        LoginTracer.getInstance().bind(trace, state);
         String clientId = task.getResult().getString("client_id");
         String clientSecret = task.getResult().optString("client_secret");
         Uri.Builder toOpenWeb = Uri.parse(BASE_DIALOG_URL).buildUpon();
@@ -225,10 +696,12 @@ public class HoomiClient {
         addLoginParameters(toOpenNative, clientId, state, redirectUri, scopes);
         HoomiLoginActivity.registerLoginRequest(context,
             state,
+            HoomiClient.this,
             redirectUri.toString(),
             clientId,
             clientSecret,
             tcs);
+        LoginTracer.Span resolving = trace.begin("resolve_intent");
         Intent webAuthorizeIntent = new Intent(Intent.ACTION_VIEW, toOpenWeb.build());
         Intent appAuthorizeIntent = new Intent(Intent.ACTION_VIEW, toOpenNative.build());
         Intent authorizeIntent;
@@ -239,13 +712,173 @@ public class HoomiClient {
           authorizeIntent = webAuthorizeIntent;
         }
         authorizeIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        resolving.end();
+        // Ended by HoomiLoginActivity when the redirect comes back.
+        trace.begin("external_dialog");
         context.startActivity(authorizeIntent);
         return null;
       }
+    }).continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        // The login can't go ahead without a client ID, or if starting the dialog failed;
+        // the caller's trace is finished along with its task.
+        if (task.isFaulted()) {
+          tcs.trySetError(task.getError());
+        } else if (task.isCancelled()) {
+          tcs.trySetCancelled();
+        }
+        return null;
+      }
     });
     return tcs.getTask();
   }
 
+  private static <T> Task<T> finishTrace(Task<T> task, final LoginTracer.Trace trace) {
+    return task.continueWithTask(new Continuation<T, Task<T>>() {
+      @Override
+      public Task<T> then(Task<T> task) throws Exception {
+        if (task.isFaulted()) {
+          trace.finish(task.getError().toString());
+        } else if (task.isCancelled()) {
+          trace.finish("cancelled");
+        } else {
+          trace.finish("success");
+        }
+        return task;
+      }
+    });
+  }
+
+  /**
+   * Begins the process of authorizing with Hoomi and, once a token has been issued,
+   * fetches the token information and/or app data for the new user in parallel.
+   *
+   * Errors while prefetching do not fail the login; they are reported on the LoginResult.
+   *
+   * @param redirectUri              the redirect URL to use to return to your app
+   * @param scopes                   the set of scopes to request access to
+   * @param prefetchTokenInformation whether to fetch token information after login
+   * @param prefetchAppData          whether to fetch app data after login (the scopes
+   *                                 must include user:app:data:read)
+   * @return a LoginResult (asynchronously)
+   */
+  public Task<LoginResult> authorizeAsync(final Uri redirectUri,
+                                          final List<String> scopes,
+                                          final boolean prefetchTokenInformation,
+                                          final boolean prefetchAppData) {
+    return authorizeAsync(redirectUri,
+        scopes,
+        prefetchTokenInformation,
+        prefetchAppData,
+        LoginTracer.getInstance().newTrace());
+  }
+
+  Task<LoginResult> authorizeAsync(final Uri redirectUri,
+                                   final List<String> scopes,
+                                   final boolean prefetchTokenInformation,
+                                   final boolean prefetchAppData,
+                                   final LoginTracer.Trace trace) {
+    return finishTrace(authorizeAsync(redirectUri, scopes, trace)
+        .onSuccessTask(new Continuation<HoomiAccessToken, Task<LoginResult>>() {
+          @Override
+          public Task<LoginResult> then(Task<HoomiAccessToken> task) throws Exception {
+            final LoginTracer.Span prefetching = trace.begin("prefetch");
+            return prefetchAsync(task.getResult(), prefetchTokenInformation, prefetchAppData)
+                .continueWithTask(new Continuation<LoginResult, Task<LoginResult>>() {
+                  @Override
+                  public Task<LoginResult> then(Task<LoginResult> task) throws Exception {
+                    prefetching.end();
+                    return task;
+                  }
+                });
+          }
+        }), trace);
+  }
+
+  private Task<LoginResult> prefetchAsync(final HoomiAccessToken token,
+                                          boolean prefetchTokenInformation,
+                                          boolean prefetchAppData) {
+    final Task<TokenInformation> tokenInformationTask = prefetchTokenInformation ?
+        getTokenInformationAsync(token) : Task.<TokenInformation>forResult(null);
+    final Task<AppData> appDataTask = prefetchAppData ?
+        getAppDataAsync(token) : Task.<AppData>forResult(null);
+    return Task.whenAll(Arrays.asList(tokenInformationTask, appDataTask))
+        .continueWith(new Continuation<Void, LoginResult>() {
+          @Override
+          public LoginResult then(Task<Void> task) throws Exception {
+            return new LoginResult(token,
+                tokenInformationTask.isFaulted() ? null : tokenInformationTask.getResult(),
+                tokenInformationTask.getError(),
+                appDataTask.isFaulted() ? null : appDataTask.getResult(),
+                appDataTask.getError());
+          }
+        });
+  }
+
+  /**
+   * Exchanges an authorization code for an access token and makes it the current token.
+   * Concurrent exchanges of the same code share a single request.
+   */
+  Task<HoomiAccessToken> exchangeCodeAsync(final String code,
+                                           String clientId,
+                                           String clientSecret,
+                                           String redirectUri,
+                                           final LoginTracer.Trace trace) {
+    synchronized (codeExchanges) {
+      Task<HoomiAccessToken> existing = codeExchanges.get(code);
+      if (existing != null) {
+        return existing;
+      }
+      JSONObject parameters = buildJSONObject("client_id", clientId,
+          "grant_type", "authorization_code",
+          "code", code,
+          "redirect_uri", redirectUri);
+      if (clientSecret != null) {
+        try {
+          parameters.put("client_secret", clientSecret);
+        } catch (JSONException e) {
+          // This can't happen.
+        }
+      }
+      final LoginTracer.Span exchanging = trace.begin("token_exchange");
+      Task<HoomiAccessToken> exchange = requestAsync("1/authz/token",
+          "POST",
+          null,
+          parameters,
+          true).onSuccess(new Continuation<ApiResponse, HoomiAccessToken>() {
+        @Override
+        public HoomiAccessToken then(Task<ApiResponse> task) throws Exception {
+          exchanging.end();
+          // expires_in is relative, so counting it from the device clock is right however
+          // far that clock is from the server's.
+          HoomiAccessToken token = new HoomiAccessToken(task.getResult()
+              .getJsonData()
+              .getString("access_token"),
+              Arrays.asList(task.getResult().getJsonData().getString("scope").split(" ")),
+              new Date(new Date().getTime() +
+                  task.getResult().getJsonData().getLong("expires_in") * 1000));
+          LoginTracer.Span storing = trace.begin("set_current_token");
+          setCurrentToken(token);
+          storing.end();
+          return token;
+        }
+      });
+      codeExchanges.put(code, exchange);
+      exchange.continueWith(new Continuation<HoomiAccessToken, Void>() {
+        @Override
+        public Void then(Task<HoomiAccessToken> task) throws Exception {
+          exchanging.end();
+          synchronized (codeExchanges) {
+            codeExchanges.remove(code);
+          }
+          return null;
+        }
+      });
+      return exchange;
+    }
+  }
+
   private Date parseIso8601Date(String date) throws ParseException {
     SimpleDateFormat decimalDf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSSSZ", Locale.getDefault());
     SimpleDateFormat nonDecimalDf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.getDefault());
@@ -263,40 +896,83 @@ public class HoomiClient {
    * @return TokenInformation (asynchronously)
    */
   public Task<TokenInformation> getTokenInformationAsync(HoomiAccessToken token) {
+    HoomiException localError = checkToken(token);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
     return requestAsync("1/token/current", "GET", token, null)
         .onSuccess(new Continuation<ApiResponse, TokenInformation>() {
           @Override
           public TokenInformation then(Task<ApiResponse> task) throws Exception {
-            String tokenString = task.getResult().getJsonData().getString("token");
-            String applicationId = task.getResult().getJsonData().getString("application_id");
-            Date issued = parseIso8601Date(task.getResult().getJsonData().getString("issued"));
-            Date expires = parseIso8601Date(task.getResult().getJsonData().getString("expires"));
-            boolean issuedToAuthenticatedClient = task.getResult().getJsonData()
-                .optBoolean("issued_to_authenticated_client", false);
-            String userId = task.getResult().getJsonData().optString("user_id");
-            JSONArray scopesArray = task.getResult().getJsonData().getJSONArray("scopes");
-            ArrayList<String> scopes = new ArrayList<String>();
-            for (int i = 0; i < scopesArray.length(); i++) {
-              scopes.add(scopesArray.getString(i));
-            }
-            HoomiAccessToken token = new HoomiAccessToken(tokenString, scopes, expires);
-            HoomiAccessToken currentToken = getCurrentToken();
-            // If this is already the current token, we'd might as well store
-            // the latest data locally.
-            if (currentToken != null &&
-                applicationId.equals(HoomiClient.this.applicationId) &&
-                token.getTokenString().equals(currentToken.getTokenString())) {
-              setCurrentToken(token);
-            }
-            return new TokenInformation(token,
-                applicationId,
-                issued,
-                userId,
-                issuedToAuthenticatedClient);
+            return parseTokenInformation(task.getResult());
           }
         });
   }
 
+  /**
+   * Gets token information for many Hoomi access tokens, with a bounded number of
+   * requests in flight.  A failure for one token does not fail the others.
+   *
+   * @param tokens   the tokens to fetch information for
+   * @param listener a listener that receives each result as soon as it completes, or null
+   * @return the results for every token, in the order given (asynchronously)
+   */
+  public Task<List<BatchResult<TokenInformation>>> getTokenInformationAsync(
+      Collection<HoomiAccessToken> tokens,
+      BatchListener<TokenInformation> listener) {
+    return new BatchRequest<TokenInformation>(this, "1/token/current", tokens, listener) {
+      @Override
+      Task<TokenInformation> requestAsync(HoomiAccessToken token) {
+        return getTokenInformationAsync(token);
+      }
+
+      @Override
+      Exception checkLocally(HoomiAccessToken token) {
+        return checkToken(token);
+      }
+
+      @Override
+      TokenInformation parse(ApiResponse response) throws Exception {
+        return parseTokenInformation(response);
+      }
+    }.runAsync();
+  }
+
+  private TokenInformation parseTokenInformation(ApiResponse response) throws Exception {
+    String tokenString = response.getJsonData().getString("token");
+    String applicationId = response.getJsonData().getString("application_id");
+    Date issued = parseIso8601Date(response.getJsonData().getString("issued"));
+    Date expires = parseIso8601Date(response.getJsonData().getString("expires"));
+    boolean issuedToAuthenticatedClient = response.getJsonData()
+        .optBoolean("issued_to_authenticated_client", false);
+    String userId = response.getJsonData().optString("user_id");
+    JSONArray scopesArray = response.getJsonData().getJSONArray("scopes");
+    ArrayList<String> scopes = new ArrayList<String>();
+    for (int i = 0; i < scopesArray.length(); i++) {
+      scopes.add(scopesArray.getString(i));
+    }
+    // The token compares its expiry with the device clock.
+    HoomiAccessToken token = new HoomiAccessToken(tokenString,
+        scopes,
+        new Date(serverClock.toLocal(expires.getTime())));
+    if (applicationId.equals(HoomiClient.this.applicationId) && userId.length() > 0) {
+      noteTokenUser(tokenString, userId);
+    }
+    HoomiAccessToken currentToken = getCurrentToken();
+    // If this is already the current token, we'd might as well store
+    // the latest data locally.
+    if (currentToken != null &&
+        applicationId.equals(HoomiClient.this.applicationId) &&
+        token.getTokenString().equals(currentToken.getTokenString())) {
+      setCurrentToken(token);
+    }
+    return new TokenInformation(token,
+        applicationId,
+        issued,
+        userId,
+        issuedToAuthenticatedClient);
+  }
+
   /**
    * Gets the app data for the current user (the current token must have the
    * user:app:data:read scope).
@@ -314,16 +990,292 @@ public class HoomiClient {
    * @return AppData (asynchronously)
    */
   public Task<AppData> getAppDataAsync(HoomiAccessToken token) {
+    HoomiException localError = checkToken(token, SCOPE_APP_DATA_READ);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
+    final ObservableAppData observable = findObservableAppData(token);
+    final long version = observable != null ? observable.getVersion() : 0;
     return requestAsync("1/user/current/app/data", "GET", token, null)
         .onSuccess(new Continuation<ApiResponse, AppData>() {
           @Override
           public AppData then(Task<ApiResponse> task) throws Exception {
-            return new AppData(task.getResult().getJsonData().getJSONObject("data"),
-                task.getResult().getHeaders().get("ETag").get(0));
+            AppData appData = parseAppData(task.getResult());
+            if (observable != null) {
+              observable.publishRead(appData, version);
+            }
+            return appData;
           }
         });
   }
 
+  /**
+   * Gets some fields of the app data for a user.  Only the given key paths are requested
+   * from the server, and the result can be changed and saved with
+   * {@link #setAppDataAsync(HoomiAccessToken, AppData)} without touching the other fields.
+   *
+   * @param token  the access token (which must have the user:app:data:read scope) for the user
+   * @param fields dotted key paths (such as "settings.theme") of the fields to get
+   * @return partial AppData (asynchronously)
+   */
+  public Task<AppData> getAppDataAsync(HoomiAccessToken token, final Collection<String> fields) {
+    HoomiException localError = checkToken(token, SCOPE_APP_DATA_READ);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
+    return requestAsync("1/user/current/app/data", "GET", token,
+        buildJSONObject("fields", KeyPaths.join(fields)))
+        .onSuccess(new Continuation<ApiResponse, AppData>() {
+          @Override
+          public AppData then(Task<ApiResponse> task) throws Exception {
+            AppData full = parseAppData(task.getResult());
+            // Servers that ignore the fields parameter send everything.
+            return new AppData(KeyPaths.project(full.getData(), fields),
+                full.getETag(),
+                fields);
+          }
+        });
+  }
+
+  /**
+   * Gets the app data for many users, with a bounded number of requests in flight.  A
+   * failure for one user does not fail the others.
+   *
+   * @param tokens   the access tokens (which must have the user:app:data:read scope) for the users
+   * @param listener a listener that receives each result as soon as it completes, or null
+   * @return the results for every token, in the order given (asynchronously)
+   */
+  public Task<List<BatchResult<AppData>>> getAppDataAsync(Collection<HoomiAccessToken> tokens,
+                                                          BatchListener<AppData> listener) {
+    return new BatchRequest<AppData>(this, "1/user/current/app/data", tokens, listener) {
+      @Override
+      Task<AppData> requestAsync(HoomiAccessToken token) {
+        return getAppDataAsync(token);
+      }
+
+      @Override
+      Exception checkLocally(HoomiAccessToken token) {
+        return checkToken(token, SCOPE_APP_DATA_READ);
+      }
+
+      @Override
+      AppData parse(ApiResponse response) throws Exception {
+        return parseAppData(response);
+      }
+    }.runAsync();
+  }
+
+  private AppData parseAppData(ApiResponse response) throws JSONException {
+    return new AppData(response.getJsonData().getJSONObject("data"),
+        response.getHeader("ETag"));
+  }
+
+  /**
+   * Gets the app data for a user without parsing it up front.  The response is kept as
+   * raw bytes, and only the values that are read from it are parsed; use this instead of
+   * getAppDataAsync when the data is large and only a few values are needed.
+   *
+   * @param token the access token (which must have the user:app:data:read scope) for the user
+   * @return LazyAppData (asynchronously)
+   */
+  public Task<LazyAppData> getLazyAppDataAsync(HoomiAccessToken token) {
+    return getLazyAppDataAsync(token, null);
+  }
+
+  /**
+   * Gets the app data for a user without parsing it up front, streaming the response into
+   * a file and memory-mapping it so the data is never held on the heap.
+   *
+   * @param token     the access token (which must have the user:app:data:read scope) for the user
+   * @param cacheFile the file to hold the response, which is overwritten; or null to keep
+   *                  the response in memory
+   * @return LazyAppData (asynchronously)
+   */
+  public Task<LazyAppData> getLazyAppDataAsync(HoomiAccessToken token, final File cacheFile) {
+    HoomiException localError = checkToken(token, SCOPE_APP_DATA_READ);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
+    HttpEngine.Request request;
+    try {
+      request = newRequest("1/user/current/app/data", "GET", token, null, false, null);
+    } catch (Exception e) {
+      return Task.forError(e);
+    }
+    return httpEngine.executeAsync(request, new HttpEngine.BodyParser<LazyAppData>() {
+      @Override
+      public LazyAppData parse(HttpEngine.Response response, InputStream input)
+          throws Exception {
+        String eTag = response.getHeader("ETag");
+        if (cacheFile == null) {
+          return LazyAppData.fromResponse(IOUtils.toByteArray(input), eTag);
+        }
+        OutputStream output = new FileOutputStream(cacheFile);
+        try {
+          IOUtils.copy(input, output);
+        } finally {
+          output.close();
+        }
+        return LazyAppData.fromResponse(cacheFile, eTag);
+      }
+    });
+  }
+
+  /**
+   * Gets the maximum number of requests a batch method keeps in flight at once.
+   *
+   * @return the maximum number of concurrent requests per batch
+   */
+  public int getMaxBatchParallelism() {
+    return maxBatchParallelism;
+  }
+
+  /**
+   * Sets the maximum number of requests a batch method keeps in flight at once.  Values
+   * above the HTTP connection pool size (5 by default) stop connections from being reused.
+   *
+   * @param maxBatchParallelism the maximum number of concurrent requests per batch
+   */
+  public void setMaxBatchParallelism(int maxBatchParallelism) {
+    this.maxBatchParallelism = maxBatchParallelism;
+  }
+
+  /**
+   * Gets whether requests fail immediately, without going to the server, when their token
+   * is known to have expired or to lack a scope the request needs.
+   *
+   * @return whether local token checks are enabled
+   */
+  public boolean isLocalTokenChecksEnabled() {
+    return localTokenChecksEnabled;
+  }
+
+  /**
+   * Sets whether requests fail immediately, without going to the server, when their token
+   * is known to have expired or to lack a scope the request needs.  This is on by
+   * default; turn it off to always get the server's answer, for example if scopes may
+   * have been granted since the token's scopes were last learned.
+   *
+   * @param localTokenChecksEnabled whether local token checks are enabled
+   */
+  public void setLocalTokenChecksEnabled(boolean localTokenChecksEnabled) {
+    this.localTokenChecksEnabled = localTokenChecksEnabled;
+  }
+
+  /**
+   * Checks what is known locally about a token before it is sent with a request.
+   *
+   * @return the error the request would certainly fail with, or null if it may succeed
+   */
+  HoomiException checkToken(HoomiAccessToken token, String... requiredScopes) {
+    if (!localTokenChecksEnabled || token == null) {
+      return null;
+    }
+    if (token.isKnownExpired()) {
+      return new HoomiException("Access token expired at " + token.getKnownExpiration());
+    }
+    if (token.isKnownToLackScopes(requiredScopes)) {
+      return new HoomiException("Access token lacks a required scope: " +
+          serializeScopes(Arrays.asList(requiredScopes)));
+    }
+    return null;
+  }
+
+  /**
+   * Gets the base URL of the API this client talks to.
+   *
+   * @return the base URL, ending in a slash
+   */
+  public String getBaseApiUrl() {
+    return baseApiUrl;
+  }
+
+  /**
+   * Sets the base URL of the API this client talks to.  This only affects requests made
+   * after the call; pass the URL to the constructor instead to have the client ID
+   * provisioned from it as well.
+   *
+   * @param baseApiUrl the base URL, ending in a slash
+   */
+  public void setBaseApiUrl(String baseApiUrl) {
+    this.baseApiUrl = baseApiUrl;
+    if (clockSampler != null) {
+      clockSampler.setBaseApiUrl(baseApiUrl);
+    }
+  }
+
+  /**
+   * Gets the engine this client sends its requests through.
+   *
+   * @return the HTTP engine
+   */
+  public HttpEngine getHttpEngine() {
+    return httpEngine;
+  }
+
+  /**
+   * Sets the engine this client sends its requests through.  By default this is the
+   * shared engine, so the client's connections and limits are shared with any other code
+   * in the application that uses it.
+   *
+   * @param httpEngine the HTTP engine
+   */
+  public synchronized void setHttpEngine(HttpEngine httpEngine) {
+    if (clockSampler != null && !closed) {
+      this.httpEngine.removeListener(clockSampler);
+      httpEngine.addListener(clockSampler);
+    }
+    this.httpEngine = httpEngine;
+  }
+
+  /**
+   * Gets the policy for hedging slow GET requests.
+   *
+   * @return the hedging policy, or null if requests are never hedged
+   */
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  /**
+   * Sets a policy for hedging slow GET requests (such as 1/token/current and
+   * 1/user/current/app/data): a request slower than most recent ones is sent a second
+   * time, and the first answer is used.  Hedging is off by default.
+   *
+   * @param hedgingPolicy the hedging policy, or null to stop hedging
+   */
+  public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
+  }
+
+  /**
+   * Gets whether batch methods send their requests through the 1/batch endpoint.
+   *
+   * @return true if the batch endpoint is used
+   */
+  public boolean isBatchEndpointEnabled() {
+    return batchEndpointEnabled;
+  }
+
+  /**
+   * Sets whether batch methods send their requests through the 1/batch endpoint, which
+   * answers many requests in a single round-trip.  If the server does not support it, the
+   * client falls back to individual requests for the rest of its lifetime.
+   *
+   * @param batchEndpointEnabled true to use the batch endpoint
+   */
+  public void setBatchEndpointEnabled(boolean batchEndpointEnabled) {
+    this.batchEndpointEnabled = batchEndpointEnabled;
+  }
+
+  boolean isBatchEndpointUnsupported() {
+    return batchEndpointUnsupported;
+  }
+
+  void setBatchEndpointUnsupported() {
+    batchEndpointUnsupported = true;
+  }
+
   /**
    * Sets the app data for the current user (the current token must have the
    * user:app:data:write scope).
@@ -369,22 +1321,254 @@ public class HoomiClient {
    * @return thew new AppData (asynchronously)
    */
   public Task<AppData> setAppDataAsync(HoomiAccessToken token, final JSONObject json, String eTag) {
+    HoomiException localError = checkToken(token, SCOPE_APP_DATA_WRITE);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
     Map<String, List<String>> headers = new HashMap<String, List<String>>();
     headers.put("If-Match", new ArrayList<String>());
     headers.get("If-Match").add(eTag);
+    final ObservableAppData observable = findObservableAppData(token);
     return requestAsync("1/user/current/app/data", "PUT", token, json, false, headers)
         .onSuccess(new Continuation<ApiResponse, AppData>() {
           @Override
           public AppData then(Task<ApiResponse> task) throws Exception {
-            return new AppData(json,
-                task.getResult().getHeaders().get("ETag").get(0));
+            AppData appData = new AppData(json, task.getResult().getHeader("ETag"));
+            if (observable != null) {
+              observable.publishWrite(appData);
+            }
+            return appData;
           }
         });
   }
 
+  /**
+   * Gets the observable app data for the user with the given token.  It is kept up to
+   * date by every full read and successful write of that user's app data made through
+   * this client, so observers see local changes without reading again.
+   *
+   * There is one instance per user: the first time it sees a token, the client asks the
+   * server whose it is, and from then on that token and the user's other tokens (after a
+   * new login, say) share an instance.  Instances handed out before that are merged into
+   * the user's and keep working.
+   *
+   * @param token the access token for the user
+   * @return the observable app data
+   */
+  public ObservableAppData getObservableAppData(HoomiAccessToken token) {
+    ObservableAppData observable;
+    boolean userUnknown = false;
+    synchronized (observableAppData) {
+      pruneObservableAppData();
+      String key = getAppDataKey(token.getTokenString());
+      observable = observableAppData.get(key);
+      if (observable == null) {
+        observable = new ObservableAppData(this, key, appDataCacheBudget);
+        observableAppData.put(key, observable);
+        userUnknown = key.startsWith(TOKEN_KEY_PREFIX);
+      }
+    }
+    if (userUnknown) {
+      // The answer goes through parseTokenInformation, which notes the user.
+      getTokenInformationAsync(token);
+    }
+    return observable;
+  }
+
+  void publishAppData(HoomiAccessToken token, AppData appData) {
+    ObservableAppData observable = findObservableAppData(token);
+    if (observable != null) {
+      observable.publishWrite(appData);
+    }
+  }
+
+  private ObservableAppData findObservableAppData(HoomiAccessToken token) {
+    if (token == null) {
+      return null;
+    }
+    synchronized (observableAppData) {
+      return observableAppData.get(getAppDataKey(token.getTokenString()));
+    }
+  }
+
+  /**
+   * Notes the user a token belongs to, merging the token's observable app data into the
+   * user's.
+   */
+  private void noteTokenUser(String tokenString, String userId) {
+    ObservableAppData byToken;
+    ObservableAppData byUser;
+    synchronized (observableAppData) {
+      if (userId.equals(tokenUserIds.put(tokenString, userId))) {
+        return;
+      }
+      byToken = observableAppData.remove(TOKEN_KEY_PREFIX + tokenString);
+      if (byToken == null) {
+        return;
+      }
+      byUser = observableAppData.get(USER_KEY_PREFIX + userId);
+      if (byUser == null) {
+        observableAppData.put(USER_KEY_PREFIX + userId, byToken);
+        return;
+      }
+    }
+    byToken.mergeInto(byUser);
+  }
+
+  /**
+   * Takes back observable app data that was pruned while a caller still held it, or
+   * merges it into the instance that has replaced it since.
+   *
+   * @return the instance that now stands for the user
+   */
+  ObservableAppData reattachObservableAppData(ObservableAppData orphan) {
+    synchronized (observableAppData) {
+      String key = orphan.getKey();
+      if (key.startsWith(TOKEN_KEY_PREFIX)) {
+        key = getAppDataKey(key.substring(TOKEN_KEY_PREFIX.length()));
+      }
+      ObservableAppData existing = observableAppData.get(key);
+      if (existing == null) {
+        observableAppData.put(key, orphan);
+        orphan.reattach();
+        return orphan;
+      }
+      // The orphan has neither observers nor a value, so there is nothing to carry over.
+      orphan.mergeInto(existing);
+      return existing;
+    }
+  }
+
+  /**
+   * Forgets observable app data that has neither observers nor a value, so that
+   * instances for tokens and users no longer in use don't pile up.  Call this with the
+   * lock on observableAppData held.
+   */
+  private void pruneObservableAppData() {
+    Iterator<ObservableAppData> iterator = observableAppData.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().detachIfUnused()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private String getAppDataKey(String tokenString) {
+    String userId = tokenUserIds.get(tokenString);
+    return userId != null ? USER_KEY_PREFIX + userId : TOKEN_KEY_PREFIX + tokenString;
+  }
+
+  /**
+   * Saves app data for the user with the given token, using its ETag for optimistic
+   * concurrency control.  Partial app data (read with a list of fields) only replaces
+   * those fields: the current data is read, the fields are merged into it and the result
+   * is written back, failing with a 412 HoomiException if the data changed since the
+   * partial app data was read.
+   *
+   * @param token   the access token (which must have the user:app:data:write and, for
+   *                partial app data, user:app:data:read scopes) for the user
+   * @param appData the app data to save
+   * @return the new AppData, with the same fields as the one given (asynchronously)
+   */
+  public Task<AppData> setAppDataAsync(final HoomiAccessToken token, final AppData appData) {
+    if (!appData.isPartial()) {
+      return setAppDataAsync(token, appData.getData(), appData.getETag());
+    }
+    HoomiException localError = checkToken(token,
+        SCOPE_APP_DATA_READ,
+        SCOPE_APP_DATA_WRITE);
+    if (localError != null) {
+      return Task.forError(localError);
+    }
+    final Set<String> fields = appData.getFields();
+    return getAppDataAsync(token).onSuccessTask(new Continuation<AppData, Task<AppData>>() {
+      @Override
+      public Task<AppData> then(Task<AppData> task) throws Exception {
+        AppData current = task.getResult();
+        if (!"*".equals(appData.getETag()) &&
+            (current.getETag() == null || !current.getETag().equals(appData.getETag()))) {
+          throw new HoomiException("App data changed since it was read", 412);
+        }
+        JSONObject merged = current.getData();
+        KeyPaths.merge(merged, appData.getData(), fields);
+        // Guard the write with the ETag just read, so nothing written in between is lost.
+        return setAppDataAsync(token, merged, current.getETag());
+      }
+    }).onSuccess(new Continuation<AppData, AppData>() {
+      @Override
+      public AppData then(Task<AppData> task) throws Exception {
+        return new AppData(KeyPaths.project(task.getResult().getData(), fields),
+            task.getResult().getETag(),
+            fields);
+      }
+    });
+  }
+
+  /**
+   * Subscribes to changes in a user's app data, made here or on other devices.  The
+   * listener is sent the current data and then each new version as it is saved.
+   *
+   * Changes arrive through a long poll that the server holds open until the data
+   * changes, rather than through repeated reads, and all subscriptions for the same
+   * token share one connection.  Lost connections are re-established with backoff.
+   *
+   * @param token    the access token (which must have the user:app:data:read scope) for the user
+   * @param listener the listener for changes
+   * @return the subscription, which must be cancelled when changes are no longer needed
+   */
+  public AppDataSubscription subscribeToAppData(HoomiAccessToken token,
+                                                final AppDataListener listener) {
+    AppDataWatcher watcher;
+    boolean created = false;
+    synchronized (appDataWatchers) {
+      watcher = appDataWatchers.get(token.getTokenString());
+      // A watcher that stopped after its last subscription was cancelled refuses the
+      // listener, and is replaced.
+      if (watcher == null || !watcher.addListener(listener)) {
+        watcher = new AppDataWatcher(this, token, getLongPollEngine());
+        watcher.addListener(listener);
+        appDataWatchers.put(token.getTokenString(), watcher);
+        created = true;
+      }
+    }
+    AppDataSubscription subscription = new AppDataSubscription(this, watcher, listener);
+    final HoomiException localError = checkToken(token, SCOPE_APP_DATA_READ);
+    if (localError != null) {
+      subscription.cancel();
+      Task.callInBackground(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          listener.onError(localError);
+          return null;
+        }
+      });
+    } else if (created) {
+      watcher.start();
+    }
+    return subscription;
+  }
+
+  void removeAppDataWatcher(AppDataWatcher watcher) {
+    synchronized (appDataWatchers) {
+      String key = watcher.getToken().getTokenString();
+      if (appDataWatchers.get(key) == watcher) {
+        appDataWatchers.remove(key);
+      }
+    }
+  }
+
+  private synchronized HttpEngine getLongPollEngine() {
+    // Long polls get their own engine so they never hold slots that ordinary requests
+    // are waiting for.
+    if (longPollEngine == null) {
+      longPollEngine = new HttpEngine();
+      longPollEngine.setDefaultMaxRequestsPerHost(Integer.MAX_VALUE);
+    }
+    return longPollEngine;
+  }
+
   private SharedPreferences getSharedPreferences() {
-    return context.getSharedPreferences("co.hoomi.HoomiClient|" + applicationId,
-        Context.MODE_PRIVATE);
+    return context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
   }
 
   /**
@@ -432,7 +1616,7 @@ public class HoomiClient {
    *
    * @return the current HoomiClient
    */
-  public static HoomiClient getCurrentClient() {
+  public static synchronized HoomiClient getCurrentClient() {
     return currentClient;
   }
 
@@ -442,7 +1626,7 @@ public class HoomiClient {
    *
    * @param client the new current HoomiClient
    */
-  public static void setCurrentClient(HoomiClient client) {
+  public static synchronized void setCurrentClient(HoomiClient client) {
     currentClient = client;
   }
 
@@ -480,69 +1664,70 @@ public class HoomiClient {
                                  final JSONObject parameters,
                                  final boolean useFormEncoding,
                                  final Map<String, List<String>> extraHeaders) {
-    return Task.callInBackground(new Callable<ApiResponse>() {
-      @Override
-      public ApiResponse call() throws Exception {
-        Uri.Builder builder = Uri.parse(BASE_API_URL + path)
-            .buildUpon();
-        if (method.equals("GET") && parameters != null) {
-          Iterator<String> keys = parameters.keys();
-          while (keys.hasNext()) {
-            String key = keys.next();
-            builder.appendQueryParameter(key, parameters.get(key).toString());
-          }
-        }
-        URL url = new URL(builder.build().toString());
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(method);
-
-        if (extraHeaders != null) {
-          for (String key : extraHeaders.keySet()) {
-            for (String value : extraHeaders.get(key)) {
-              connection.addRequestProperty(key, value);
-            }
+    HttpEngine.Request request;
+    try {
+      request = newRequest(path, method, token, parameters, useFormEncoding, extraHeaders);
+    } catch (Exception e) {
+      return Task.forError(e);
+    }
+
+    Task<HttpEngine.Response> responseTask;
+    HedgingPolicy policy = hedgingPolicy;
+    if (policy != null && method.equals("GET")) {
+      responseTask = policy.executeAsync(httpEngine, path, request);
+    } else {
+      responseTask = httpEngine.executeAsync(request);
+    }
+    return responseTask
+        .onSuccess(new Continuation<HttpEngine.Response, ApiResponse>() {
+          @Override
+          public ApiResponse then(Task<HttpEngine.Response> task) throws Exception {
+            HttpEngine.Response response = HttpEngine.checkStatus(task.getResult());
+            return new ApiResponse(new JSONObject(response.getBody()), response.getHeaders());
           }
-        }
+        });
+  }
 
-        if (token != null) {
-          connection.setRequestProperty("Authorization", "Bearer " + token.getTokenString());
-        }
+  HttpEngine.Request newRequest(String path,
+                                String method,
+                                HoomiAccessToken token,
+                                JSONObject parameters,
+                                boolean useFormEncoding,
+                                Map<String, List<String>> extraHeaders)
+      throws Exception {
+    Uri.Builder builder = Uri.parse(baseApiUrl + path)
+        .buildUpon();
+    if (method.equals("GET") && parameters != null) {
+      Iterator<String> keys = parameters.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        builder.appendQueryParameter(key, parameters.get(key).toString());
+      }
+    }
+    HttpEngine.Request request = new HttpEngine.Request(method,
+        new URL(builder.build().toString()));
+    request.setTag(this);
 
-        if (!method.equals("GET") && parameters != null) {
-          String body;
-          if (!useFormEncoding) {
-            connection.setRequestProperty("Content-Type", "application/json");
-            body = parameters.toString();
-          } else {
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            StringBuilder sb = new StringBuilder();
-            Iterator<String> keys = parameters.keys();
-            while (keys.hasNext()) {
-              String key = keys.next();
-              sb.append(URLEncoder.encode(key, "UTF-8"));
-              sb.append("=");
-              sb.append(URLEncoder.encode(parameters.get(key).toString(), "UTF-8"));
-              if (keys.hasNext()) {
-                sb.append("&");
-              }
-            }
-            body = sb.toString();
-          }
-          OutputStream output = connection.getOutputStream();
-          OutputStreamWriter writer = new OutputStreamWriter(output);
-          writer.write(body);
-          writer.close();
+    if (extraHeaders != null) {
+      for (String key : extraHeaders.keySet()) {
+        for (String value : extraHeaders.get(key)) {
+          request.addHeader(key, value);
         }
+      }
+    }
 
-        InputStream input = connection.getInputStream();
-        String result = IOUtils.toString(input);
+    if (token != null) {
+      request.addHeader("Authorization", "Bearer " + token.getTokenString());
+    }
 
-        if (connection.getResponseCode() < 200 || connection.getResponseCode() > 399) {
-          throw new HoomiException("HTTP Error: " + connection.getResponseCode() +
-              " " + connection.getResponseMessage());
-        }
-        return new ApiResponse(new JSONObject(result), connection.getHeaderFields());
+    if (!method.equals("GET") && parameters != null) {
+      if (!useFormEncoding) {
+        request.setBody("application/json", parameters.toString());
+      } else {
+        request.setBody("application/x-www-form-urlencoded",
+            HttpEngine.encodeForm(parameters));
       }
-    });
+    }
+    return request;
   }
 }
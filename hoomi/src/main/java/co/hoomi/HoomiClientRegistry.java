@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Creates and holds the HoomiClients of an application that works with several Hoomi
+ * application IDs.
+ *
+ * There is one client per application ID, created the first time it is asked for, so
+ * each application ID's client ID is provisioned once. Every client keeps its own tokens
+ * and client ID, in preferences of its own, but they all send their requests through
+ * the registry's engine (and so share its connections, threads and per-host limits),
+ * share one engine for app data subscriptions, share one estimate of the server's clock,
+ * and share one budget for the app data they keep in memory. Listeners added to the
+ * registry hear about every request its clients make, tagged with the application ID.
+ *
+ * Logins started by any of the clients are completed by the same client, so the tokens
+ * always end up with the right application ID.
+ */
+public class HoomiClientRegistry {
+  /**
+   * Receives the outcome of every request the registry's clients make, for example to
+   * record metrics.
+   */
+  public static interface Listener {
+    /**
+     * Called on the engine's thread when a request has completed or failed.
+     *
+     * @param applicationId the application ID of the client that made the request
+     * @param request       the request
+     * @param response      the response, or null if the request failed
+     * @param error         the failure, or null if there was a response
+     * @param queuedMillis  how long the request waited for a free slot
+     * @param elapsedMillis how long the request took once it was sent
+     */
+    public void onRequestCompleted(String applicationId,
+                                   HttpEngine.Request request,
+                                   HttpEngine.Response response,
+                                   Exception error,
+                                   long queuedMillis,
+                                   long elapsedMillis);
+  }
+
+  private final Context context;
+  private final String baseApiUrl;
+  private final HttpEngine httpEngine;
+  private final HttpEngine longPollEngine;
+  private final ServerClockSampler clockSampler;
+  private final AppDataCacheBudget appDataCacheBudget =
+      new AppDataCacheBudget(AppDataCacheBudget.DEFAULT_MAX_CHARS);
+  private final Map<String, HoomiClient> clients = new LinkedHashMap<String, HoomiClient>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private final HttpEngine.Listener engineListener = new HttpEngine.Listener() {
+    @Override
+    public void onRequestCompleted(HttpEngine.Request request,
+                                   HttpEngine.Response response,
+                                   Exception error,
+                                   long queuedMillis,
+                                   long elapsedMillis) {
+      if (listeners.isEmpty() || !(request.getTag() instanceof HoomiClient)) {
+        return;
+      }
+      HoomiClient client = (HoomiClient) request.getTag();
+      if (client.getRegistry() != HoomiClientRegistry.this) {
+        // Someone else's request through the same engine.
+        return;
+      }
+      for (Listener listener : listeners) {
+        try {
+          listener.onRequestCompleted(client.getApplicationId(),
+              request,
+              response,
+              error,
+              queuedMillis,
+              elapsedMillis);
+        } catch (RuntimeException e) {
+          // A failing listener must not break the request or the other listeners.
+        }
+      }
+    }
+  };
+
+  /**
+   * Creates a registry whose clients talk to the production Hoomi API through the shared
+   * engine.
+   *
+   * @param context an Android context
+   */
+  public HoomiClientRegistry(Context context) {
+    this(context, HoomiClient.DEFAULT_BASE_API_URL, HttpEngine.getSharedEngine());
+  }
+
+  /**
+   * Creates a registry.
+   *
+   * @param context    an Android context
+   * @param baseApiUrl the base URL of the API, ending in a slash
+   * @param httpEngine the engine the clients send their requests through
+   */
+  public HoomiClientRegistry(Context context, String baseApiUrl, HttpEngine httpEngine) {
+    this.context = context.getApplicationContext();
+    this.baseApiUrl = baseApiUrl;
+    this.httpEngine = httpEngine;
+    // Long polls get their own engine so they never hold slots that ordinary requests
+    // are waiting for; one is enough for all the clients.
+    this.longPollEngine = new HttpEngine();
+    longPollEngine.setDefaultMaxRequestsPerHost(Integer.MAX_VALUE);
+    this.clockSampler = new ServerClockSampler(this.context.getSharedPreferences(
+        "co.hoomi.HoomiClientRegistry" +
+            (HoomiClient.DEFAULT_BASE_API_URL.equals(baseApiUrl) ? "" : "|" + baseApiUrl),
+        Context.MODE_PRIVATE), baseApiUrl);
+    httpEngine.addListener(engineListener);
+    httpEngine.addListener(clockSampler);
+    longPollEngine.addListener(engineListener);
+  }
+
+  /**
+   * Gets the client for an application ID, creating it if this is the first time it has
+   * been asked for.
+   *
+   * @param applicationId the application ID from Hoomi
+   * @return the client
+   */
+  public synchronized HoomiClient getClient(String applicationId) {
+    HoomiClient client = clients.get(applicationId);
+    if (client == null) {
+      client = new HoomiClient(context, applicationId, baseApiUrl, this);
+      clients.put(applicationId, client);
+    }
+    return client;
+  }
+
+  /**
+   * Gets the clients created so far, in the order they were created.
+   *
+   * @return the clients
+   */
+  public synchronized List<HoomiClient> getClients() {
+    return new ArrayList<HoomiClient>(clients.values());
+  }
+
+  public String getBaseApiUrl() {
+    return baseApiUrl;
+  }
+
+  /**
+   * Gets the engine the clients send their requests through.
+   *
+   * @return the HTTP engine
+   */
+  public HttpEngine getHttpEngine() {
+    return httpEngine;
+  }
+
+  /**
+   * Closes the clients and stops listening to the engine, which outlives the registry
+   * when it is the shared engine.  Call this before discarding the registry.
+   */
+  public void close() {
+    List<HoomiClient> closing;
+    synchronized (this) {
+      closing = new ArrayList<HoomiClient>(clients.values());
+      clients.clear();
+    }
+    for (HoomiClient client : closing) {
+      client.close();
+    }
+    httpEngine.removeListener(engineListener);
+    httpEngine.removeListener(clockSampler);
+    longPollEngine.removeListener(engineListener);
+  }
+
+  HttpEngine getLongPollEngine() {
+    return longPollEngine;
+  }
+
+  ServerClock getServerClock() {
+    return clockSampler.getClock();
+  }
+
+  AppDataCacheBudget getAppDataCacheBudget() {
+    return appDataCacheBudget;
+  }
+
+  /**
+   * Gets the budget for the latest app data that all the clients together keep in
+   * memory, in characters of JSON.
+   */
+  public long getMaxAppDataCacheChars() {
+    return appDataCacheBudget.getMaxChars();
+  }
+
+  /**
+   * Sets the budget for the latest app data that all the clients together keep in
+   * memory, in characters of JSON.  Beyond it the least recently used values are
+   * dropped, except those of ObservableAppData that are being observed.
+   *
+   * @param maxChars the budget
+   */
+  public void setMaxAppDataCacheChars(long maxChars) {
+    appDataCacheBudget.setMaxChars(maxChars);
+  }
+
+  /**
+   * Gets how much of the app data cache budget is in use.
+   *
+   * @return the size of the cached app data in characters of JSON
+   */
+  public long getAppDataCacheChars() {
+    return appDataCacheBudget.getUsedChars();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+}
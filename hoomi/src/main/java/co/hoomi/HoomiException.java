@@ -8,12 +8,34 @@ package co.hoomi;
  * Represents an Exception thrown while authorizing with Hoomi.
  */
 public class HoomiException extends Exception {
+  private final int statusCode;
+
   /**
    * Creates a new HoomiException with the given message.
    *
    * @param message the message for the exception.
    */
   public HoomiException(String message) {
+    this(message, 0);
+  }
+
+  /**
+   * Creates a new HoomiException for an HTTP error response.
+   *
+   * @param message    the message for the exception.
+   * @param statusCode the HTTP status code of the response.
+   */
+  public HoomiException(String message, int statusCode) {
     super(message);
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * Gets the HTTP status code that caused this exception.
+   *
+   * @return the status code, or 0 if the exception was not caused by an HTTP error.
+   */
+  public int getStatusCode() {
+    return statusCode;
   }
 }
@@ -7,18 +7,9 @@ package co.hoomi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-
 import bolts.Continuation;
 import bolts.Task;
 
@@ -29,11 +20,9 @@ import bolts.Task;
  * in your AndroidManifest.xml so that it can intercept login attempts.
  */
 public class HoomiLoginActivity extends Activity {
-  private static final Map<String, Task<HoomiAccessToken>.TaskCompletionSource> pendingTasks =
-      new HashMap<String, Task<HoomiAccessToken>.TaskCompletionSource>();
-
   @Override
   protected void onCreate(Bundle savedInstanceState) {
+    long created = System.currentTimeMillis();
     super.onCreate(savedInstanceState);
     Intent intent = getIntent();
     Uri data = intent.getData();
@@ -42,56 +31,68 @@ public class HoomiLoginActivity extends Activity {
     String error = data.getQueryParameter("error");
     String errorDescription = data.getQueryParameter("error_description");
     String errorUri = data.getQueryParameter("error_uri");
-    completeLogin(state, code, error, errorDescription, errorUri);
+    completeLogin(created, state, code, error, errorDescription, errorUri);
     finish();
   }
 
   static void registerLoginRequest(Context context,
                                    String state,
+                                   HoomiClient client,
                                    String redirectUri,
                                    String clientId,
                                    String clientSecret,
                                    Task<HoomiAccessToken>.TaskCompletionSource tcs) {
-    synchronized (pendingTasks) {
-      pendingTasks.put(state, tcs);
-    }
-    SharedPreferences prefs = context.getSharedPreferences("co.hoomi.HoomiLoginActivity",
-        Context.MODE_PRIVATE);
-    prefs.edit()
-        .putString("state: " + state,
-            HoomiClient.buildJSONObject("clientId", clientId,
-                "clientSecret", clientSecret,
-                "redirectUri", redirectUri).toString())
-        .apply();
+    PendingLoginRegistry.getInstance()
+        .register(context, state, client, redirectUri, clientId, clientSecret, tcs);
   }
 
-  private void completeLogin(String state,
+  /**
+   * Gets the number of login requests that were abandoned, i.e. that expired or were
+   * superseded before their redirect came back, since the application started.
+   *
+   * @return the number of abandoned login requests
+   */
+  public static long getAbandonedLoginCount() {
+    return PendingLoginRegistry.getInstance().getAbandonedCount();
+  }
+
+  /**
+   * Gets the number of login requests whose redirect came back before they expired,
+   * since the application started.
+   *
+   * @return the number of completed login requests
+   */
+  public static long getCompletedLoginCount() {
+    return PendingLoginRegistry.getInstance().getCompletedCount();
+  }
+
+  /**
+   * Gets the number of login requests that are still waiting for their redirect.
+   *
+   * @return the number of pending login requests
+   */
+  public static int getPendingLoginCount() {
+    return PendingLoginRegistry.getInstance().getPendingCount();
+  }
+
+  private void completeLogin(long created,
+                             String state,
                              String code,
                              String error,
                              String errorDescription,
                              String errorUri) {
-    SharedPreferences prefs = this.getSharedPreferences("co.hoomi.HoomiLoginActivity",
-        Context.MODE_PRIVATE);
-    if (!prefs.contains("state: " + state)) {
+    PendingLoginRegistry.PendingLogin login =
+        PendingLoginRegistry.getInstance().take(this, state);
+    if (login == null) {
       return;
     }
-    String clientId = null;
-    String clientSecret = null;
-    String redirectUri = null;
-    try {
-      JSONObject obj = new JSONObject(prefs.getString("state: " + state, null));
-      clientId = obj.getString("clientId");
-      clientSecret = obj.optString("clientSecret");
-      redirectUri = obj.getString("redirectUri");
-      prefs.edit().remove("state: " + state).apply();
-    } catch (JSONException e) {
-      // This shouldn't happen.
-      throw new RuntimeException(e);
-    }
-    final Task<HoomiAccessToken>.TaskCompletionSource tcs;
-    synchronized (pendingTasks) {
-      tcs = pendingTasks.remove(state);
-    }
+    final LoginTracer.Trace trace = LoginTracer.getInstance().forState(state, login.getCreated());
+    trace.end("external_dialog", login.getCreated());
+    trace.record("login_activity", created, System.currentTimeMillis());
+    String clientId = login.getClientId();
+    String clientSecret = login.getClientSecret();
+    String redirectUri = login.getRedirectUri();
+    final Task<HoomiAccessToken>.TaskCompletionSource tcs = login.getTaskCompletionSource();
     if (error != null) {
       if (tcs != null) {
         String errorMessage = error;
@@ -102,42 +103,54 @@ public class HoomiLoginActivity extends Activity {
           errorMessage += " (" + errorUri + ")";
         }
         tcs.setError(new HoomiException(errorMessage));
+      } else {
+        trace.finish(error);
       }
       return;
     }
-    JSONObject parameters = HoomiClient.buildJSONObject("client_id", clientId,
-        "grant_type", "authorization_code",
-        "code", code,
-        "redirect_uri", redirectUri);
-    if (clientSecret != null) {
-      try {
-        parameters.put("client_secret", clientSecret);
-      } catch (JSONException e) {
-        // This can't happen.
+    // The code must be exchanged by the client that asked for it, so that the token ends
+    // up with the right application.
+    HoomiClient client = login.getClient();
+    if (client == null && login.getApplicationId() != null) {
+      // The request outlived its process.  Prefer the application's own client for the
+      // same application ID and API, so that the token it holds in memory is replaced too;
+      // failing that, one that only exchanges the code reads and writes the same
+      // preferences, so the token is there for the application's client to find.
+      client = HoomiClient.findLiveClient(login.getApplicationId(), login.getBaseApiUrl());
+      if (client == null) {
+        client = HoomiClient.createForCodeExchange(getApplicationContext(),
+            login.getApplicationId(),
+            login.getBaseApiUrl());
       }
+    } else if (client == null) {
+      // Requests made by older versions didn't record their application ID.
+      client = HoomiClient.getCurrentClient();
     }
-    HoomiClient.getCurrentClient().requestAsync("1/authz/token",
-        "POST",
-        null,
-        parameters,
-        true).continueWith(new Continuation<HoomiClient.ApiResponse, Void>() {
-      @Override
-      public Void then(Task<HoomiClient.ApiResponse> task) throws Exception {
-        if (tcs != null && task.isFaulted()) {
-          tcs.trySetError(task.getError());
-        }
-        HoomiAccessToken token = new HoomiAccessToken(task.getResult()
-            .getJsonData()
-            .getString("access_token"),
-            Arrays.asList(task.getResult().getJsonData().getString("scope").split(" ")),
-            new Date(new Date().getTime() +
-                task.getResult().getJsonData().getLong("expires_in") * 1000));
-        HoomiClient.getCurrentClient().setCurrentToken(token);
-        if (tcs != null) {
-          tcs.trySetResult(token);
-        }
-        return null;
+    if (client == null) {
+      String message = "No HoomiClient to complete the login with.";
+      if (tcs != null) {
+        tcs.setError(new HoomiException(message));
+      } else {
+        trace.finish(message);
       }
-    });
+      return;
+    }
+    client.exchangeCodeAsync(code, clientId, clientSecret, redirectUri, trace)
+        .continueWith(new Continuation<HoomiAccessToken, Void>() {
+          @Override
+          public Void then(Task<HoomiAccessToken> task) throws Exception {
+            if (tcs == null) {
+              // Nobody in this process is waiting for the login to end its trace.
+              trace.finish(task.isFaulted() ? task.getError().toString() : "success");
+              return null;
+            }
+            if (task.isFaulted()) {
+              tcs.trySetError(task.getError());
+            } else {
+              tcs.trySetResult(task.getResult());
+            }
+            return null;
+          }
+        });
   }
 }
@@ -6,6 +6,7 @@ package co.hoomi;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -13,18 +14,18 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
 import com.larvalabs.svgandroid.SVG;
-import com.larvalabs.svgandroid.SVGBuilder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import bolts.Continuation;
 import bolts.Task;
+import co.hoomi.response.LoginResult;
 
 /**
  * Provides a button that can be used to initiate login with Hoomi.
@@ -42,21 +43,68 @@ public class HoomiLoginButton extends View {
     public void onLogIn(HoomiAccessToken token);
   }
 
+  /**
+   * Defines a listener that receives the token along with any data prefetched
+   * after login when using a HoomiLoginButton.
+   */
+  public static interface LogInResultListener {
+    /**
+     * Called upon login when using a HoomiLoginButton.
+     *
+     * @param result the token and prefetched data for the logged in user
+     */
+    public void onLogIn(LoginResult result);
+  }
+
   private static final int WHITE_COLOR = Color.WHITE;
   private static final int GREEN_COLOR = Color.argb(255, 0, 110, 46);
 
-  private SVG logo;
-  private SVG hoomiName;
+  private int pressedForegroundColor;
+  private int pressedBackgroundColor;
   private RectF hoomiNameLimits;
-  private RectF logoRect;
-  private RectF hoomiNameRect;
-  private RectF textRect;
-  private RectF backgroundRect;
-  private float margin;
   private Paint paint;
   private Paint backgroundPaint;
-
-  private boolean imagesBuilt;
+  private Paint bitmapPaint;
+
+  // Layout geometry, reused across layout passes and only recomputed when the size or
+  // text size changes.
+  private final Rect textBounds = new Rect();
+  private final Rect spaceBounds = new Rect();
+  private final RectF logoRect = new RectF();
+  private final RectF hoomiNameRect = new RectF();
+  private final RectF textRect = new RectF();
+  private final RectF backgroundRect = new RectF();
+  private float margin;
+  private float cornerRadius;
+  private boolean layoutValid;
+  private int layoutWidth;
+  private int layoutHeight;
+  private float layoutTextSize;
+  private int layoutGeneration;
+
+  // The minimum size of the button, cached for the text size and artwork it was measured with.
+  private float minimumWidth;
+  private float minimumHeight;
+  private float minimumSizeTextSize;
+  private RectF minimumSizeLimits;
+
+  // Cache keys of the artwork for the current layout, indexed by pressed state.  The
+  // bitmaps themselves stay in HoomiLogoCache, so its budget bounds their memory.
+  private final String[] logoKeys = new String[2];
+  private final String[] hoomiNameKeys = new String[2];
+  // Asks for artwork that went missing between layouts, outside of onDraw.
+  private final Runnable requestImagesRunnable = new Runnable() {
+    @Override
+    public void run() {
+      imageRequestPosted = false;
+      requestImages();
+    }
+  };
+  private boolean imageRequestPosted;
+  // The layout generation whose missing artwork onDraw has asked for again, or 0 (which no
+  // layout has) once all of it has been drawn.  Once per layout is enough: if the cache
+  // can't hold it all, asking again would only evict the rest and redraw forever.
+  private int reRequestedGeneration;
 
   private boolean isPressed;
 
@@ -64,6 +112,9 @@ public class HoomiLoginButton extends View {
   private List<String> scopes;
   private Uri redirectUri;
   private List<LogInListener> logInListeners;
+  private List<LogInResultListener> logInResultListeners;
+  private boolean prefetchTokenInformation;
+  private boolean prefetchAppData;
 
   /**
    * Creates a HoomiLoginButton.
@@ -112,7 +163,13 @@ public class HoomiLoginButton extends View {
 
   private void setUp() {
     logInListeners = new ArrayList<LogInListener>();
-    setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+    logInResultListeners = new ArrayList<LogInResultListener>();
+    pressedForegroundColor = darkenColor(getForegroundColor());
+    pressedBackgroundColor = darkenColor(getBackgroundColor());
+    paint = new Paint();
+    paint.setTextAlign(Paint.Align.LEFT);
+    backgroundPaint = new Paint();
+    bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     buildImages();
     setOnClickListener(new OnClickListener() {
       @Override
@@ -120,14 +177,22 @@ public class HoomiLoginButton extends View {
         if (getClient() == null) {
           throw new IllegalStateException("You must first set the client for this button.");
         }
+        // The trace starts at the click, so it covers everything the user waits for.
+        final LoginTracer.Trace trace = LoginTracer.getInstance().newTrace();
         final ProgressDialog dlg = new ProgressDialog(getContext());
         dlg.setMessage("Please wait...");
         dlg.show();
-        getClient().authorizeAsync(redirectUri, scopes)
-            .onSuccess(new Continuation<HoomiAccessToken, Object>() {
+        getClient().authorizeAsync(redirectUri,
+            scopes,
+            prefetchTokenInformation,
+            prefetchAppData,
+            trace)
+            .onSuccess(new Continuation<LoginResult, Object>() {
               @Override
-              public Object then(Task<HoomiAccessToken> task) throws Exception {
+              public Object then(Task<LoginResult> task) throws Exception {
+                LoginTracer.Span delivering = trace.begin("deliver_result");
                 onLogIn(task.getResult());
+                delivering.end();
                 return null;
               }
             }, Task.UI_THREAD_EXECUTOR)
@@ -203,6 +268,44 @@ public class HoomiLoginButton extends View {
     this.redirectUri = uri;
   }
 
+  /**
+   * Gets whether token information is fetched for the user as part of login.
+   *
+   * @return true if token information is prefetched
+   */
+  public boolean getPrefetchTokenInformation() {
+    return prefetchTokenInformation;
+  }
+
+  /**
+   * Sets whether token information is fetched for the user as part of login.  The result
+   * is delivered to LogInResultListeners.
+   *
+   * @param prefetchTokenInformation true to prefetch token information
+   */
+  public void setPrefetchTokenInformation(boolean prefetchTokenInformation) {
+    this.prefetchTokenInformation = prefetchTokenInformation;
+  }
+
+  /**
+   * Gets whether app data is fetched for the user as part of login.
+   *
+   * @return true if app data is prefetched
+   */
+  public boolean getPrefetchAppData() {
+    return prefetchAppData;
+  }
+
+  /**
+   * Sets whether app data is fetched for the user as part of login.  The scopes must
+   * include user:app:data:read.  The result is delivered to LogInResultListeners.
+   *
+   * @param prefetchAppData true to prefetch app data
+   */
+  public void setPrefetchAppData(boolean prefetchAppData) {
+    this.prefetchAppData = prefetchAppData;
+  }
+
   /**
    * Adds a LogInListener.
    *
@@ -233,6 +336,37 @@ public class HoomiLoginButton extends View {
     }
   }
 
+  /**
+   * Adds a LogInResultListener.
+   *
+   * @param listener the listener
+   */
+  public void addLogInResultListener(LogInResultListener listener) {
+    logInResultListeners.add(listener);
+  }
+
+  /**
+   * Removes a LogInResultListener.
+   *
+   * @param listener the listener
+   */
+  public void removeLogInResultListener(LogInResultListener listener) {
+    logInResultListeners.remove(listener);
+  }
+
+  /**
+   * Invokes the listeners after login and any prefetching have completed.  You may
+   * override this method instead of registering listeners.
+   *
+   * @param result the token and prefetched data retrieved when authorizing.
+   */
+  protected void onLogIn(LoginResult result) {
+    onLogIn(result.getToken());
+    for (LogInResultListener listener : logInResultListeners) {
+      listener.onLogIn(result);
+    }
+  }
+
   @Override
   public boolean onTouchEvent(MotionEvent event) {
     boolean clicked = false;
@@ -255,122 +389,238 @@ public class HoomiLoginButton extends View {
   }
 
   private void buildImages() {
-    int background = isPressed ? darkenColor(getBackgroundColor()) : getBackgroundColor();
-    int foreground = isPressed ? darkenColor(getForegroundColor()) : getForegroundColor();
-    paint = new Paint();
-    paint.setTextAlign(Paint.Align.LEFT);
     paint.setTextSize(getResources().getDisplayMetrics().scaledDensity *
         18 * getResources().getConfiguration().fontScale);
-    paint.setColor(foreground);
-    backgroundPaint = new Paint();
-    backgroundPaint.setColor(background);
-    if (!isInEditMode()) {
-      logo = new SVGBuilder()
-          .readFromResource(getResources(), R.raw.hoomi_icon_only)
-          .setColorSwap(Color.WHITE, foreground)
-          .build();
-      hoomiName = new SVGBuilder()
-          .readFromResource(getResources(), R.raw.hoomi_text_only)
-          .setColorSwap(Color.WHITE, foreground)
-          .build();
-      hoomiNameLimits = hoomiName.getLimits();
-    } else {
-      Rect hoomiNameLimitsTemp = new Rect();
-      paint.getTextBounds("Hoomi", 0, 0, hoomiNameLimitsTemp);
-      hoomiNameLimits = new RectF(hoomiNameLimitsTemp);
+    paint.setColor(isPressed ? pressedForegroundColor : getForegroundColor());
+    backgroundPaint.setColor(isPressed ? pressedBackgroundColor : getBackgroundColor());
+    if (hoomiNameLimits == null) {
+      SVG hoomiName = isInEditMode() ?
+          null : HoomiLogoCache.peekSvg(R.raw.hoomi_text_only, getForegroundColor());
+      if (hoomiName != null) {
+        hoomiNameLimits = hoomiName.getLimits();
+      } else {
+        // Lay out around the plain text until the artwork has been loaded.
+        paint.getTextBounds("Hoomi", 0, 5, textBounds);
+        hoomiNameLimits = new RectF(textBounds);
+        if (!isInEditMode()) {
+          loadImages();
+        }
+      }
     }
-    imagesBuilt = true;
   }
 
-  @Override
-  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-    super.onSizeChanged(w, h, oldw, oldh);
-    if (!imagesBuilt) {
-      buildImages();
+  private void loadImages() {
+    int foreground = getForegroundColor();
+    HoomiLogoCache.getSvgAsync(getResources(), R.raw.hoomi_icon_only, foreground);
+    HoomiLogoCache.getSvgAsync(getResources(), R.raw.hoomi_icon_only, pressedForegroundColor);
+    HoomiLogoCache.getSvgAsync(getResources(), R.raw.hoomi_text_only, pressedForegroundColor);
+    HoomiLogoCache.getSvgAsync(getResources(), R.raw.hoomi_text_only, foreground)
+        .onSuccess(new Continuation<SVG, Void>() {
+          @Override
+          public Void then(Task<SVG> task) throws Exception {
+            hoomiNameLimits = task.getResult().getLimits();
+            layoutValid = false;
+            if (updateLayout(getWidth(), getHeight())) {
+              requestImages();
+            }
+            requestLayout();
+            invalidate();
+            return null;
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Computes the cache keys of the artwork for the current layout, so that drawing only
+   * has to look them up.
+   */
+  private void updateImageKeys() {
+    if (isInEditMode() || layoutWidth <= 0 || layoutHeight <= 0) {
+      Arrays.fill(logoKeys, null);
+      Arrays.fill(hoomiNameKeys, null);
+      return;
+    }
+    int logoWidth = Math.round(logoRect.width());
+    int logoHeight = Math.round(logoRect.height());
+    int hoomiNameWidth = Math.round(hoomiNameRect.width());
+    int hoomiNameHeight = Math.round(hoomiNameRect.height());
+    for (int variant = 0; variant < 2; variant++) {
+      int color = variant == 0 ? getForegroundColor() : pressedForegroundColor;
+      logoKeys[variant] =
+          HoomiLogoCache.bitmapKey(R.raw.hoomi_icon_only, color, logoWidth, logoHeight);
+      hoomiNameKeys[variant] = HoomiLogoCache.bitmapKey(R.raw.hoomi_text_only,
+          color,
+          hoomiNameWidth,
+          hoomiNameHeight);
+    }
+  }
+
+  private void requestImages() {
+    if (logoKeys[0] == null) {
+      return;
+    }
+    int generation = layoutGeneration;
+    int logoWidth = Math.round(logoRect.width());
+    int logoHeight = Math.round(logoRect.height());
+    int hoomiNameWidth = Math.round(hoomiNameRect.width());
+    int hoomiNameHeight = Math.round(hoomiNameRect.height());
+    // Render both the normal and pressed variants so that presses never wait on rendering.
+    for (int variant = 0; variant < 2; variant++) {
+      int color = variant == 0 ? getForegroundColor() : pressedForegroundColor;
+      if (HoomiLogoCache.peekBitmap(logoKeys[variant]) == null) {
+        requestBitmap(R.raw.hoomi_icon_only, color, logoWidth, logoHeight, generation);
+      }
+      if (HoomiLogoCache.peekBitmap(hoomiNameKeys[variant]) == null) {
+        requestBitmap(R.raw.hoomi_text_only,
+            color,
+            hoomiNameWidth,
+            hoomiNameHeight,
+            generation);
+      }
+    }
+  }
+
+  private void requestBitmap(int resourceId,
+                             int color,
+                             int width,
+                             int height,
+                             final int generation) {
+    HoomiLogoCache.getBitmapAsync(getResources(), resourceId, color, width, height)
+        .onSuccess(new Continuation<Bitmap, Void>() {
+          @Override
+          public Void then(Task<Bitmap> task) throws Exception {
+            // Nothing is rendered for an empty size, and redrawing wouldn't change that.
+            if (generation == layoutGeneration && task.getResult() != null) {
+              invalidate();
+            }
+            return null;
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Computes the positions of the button's parts for the given size into the reused
+   * geometry fields.
+   *
+   * @return true if the layout changed
+   */
+  private boolean updateLayout(int w, int h) {
+    float textSize = paint.getTextSize();
+    if (layoutValid && w == layoutWidth && h == layoutHeight && textSize == layoutTextSize) {
+      return false;
     }
+    layoutValid = true;
+    layoutWidth = w;
+    layoutHeight = h;
+    layoutTextSize = textSize;
+    layoutGeneration++;
     margin = h * 0.1f;
 
     String buttonText = getButtonText();
-    Rect textRectTemp = new Rect();
-    paint.getTextBounds(buttonText, 0, buttonText.length(), textRectTemp);
-    textRect = new RectF(textRectTemp);
+    paint.getTextBounds(buttonText, 0, buttonText.length(), textBounds);
+    textRect.set(textBounds);
     textRect.sort();
 
     float hoomiNameScale = textRect.height() / hoomiNameLimits.height();
     // Get the width of a space
-    paint.getTextBounds("_", 0, 1, textRectTemp);
-    hoomiNameRect = new RectF(0,
+    paint.getTextBounds("_", 0, 1, spaceBounds);
+    hoomiNameRect.set(0,
         0,
         hoomiNameLimits.width() * hoomiNameScale,
         hoomiNameLimits.height() * hoomiNameScale);
-    hoomiNameRect.offsetTo(textRect.right + textRectTemp.width(),
+    hoomiNameRect.offsetTo(textRect.right + spaceBounds.width(),
         (h - hoomiNameRect.height()) * 0.5f);
 
     float right = hoomiNameRect.right;
 
     float logoSize = Math.max(Math.min(h - (2 * margin),
         w - right - (2 * margin)), hoomiNameRect.height() * 2);
-    logoRect = new RectF(margin, margin, margin + logoSize, margin + logoSize);
+    logoRect.set(margin, margin, margin + logoSize, margin + logoSize);
     textRect.offsetTo(logoRect.right + margin, logoRect.centerY() - textRect.height() * 0.5f);
-    hoomiNameRect.offsetTo(textRect.right + textRectTemp.width(),
+    hoomiNameRect.offsetTo(textRect.right + spaceBounds.width(),
         logoRect.centerY() - hoomiNameRect.height() * 0.5f);
 
-    backgroundRect = new RectF(0,
+    backgroundRect.set(0,
         0,
         Math.max(w, hoomiNameRect.right + margin),
         Math.max(h, logoRect.height() + 2 * margin));
+    cornerRadius = backgroundRect.height() * 0.05f;
 
     // Now center the text in the space
     float textOffset = (backgroundRect.right - hoomiNameRect.right - logoRect.right) / 2 - margin;
     hoomiNameRect.offset(textOffset, 0);
     textRect.offset(textOffset, 0);
+    updateImageKeys();
+    return true;
+  }
 
-    Log.d("SizeChanged", "New size is: " + backgroundRect.width() + ", " + backgroundRect.height());
+  /**
+   * Computes the smallest size the button can be drawn at, which is the layout that
+   * updateLayout produces for a size of zero.
+   */
+  private void updateMinimumSize() {
+    float textSize = paint.getTextSize();
+    if (textSize == minimumSizeTextSize && hoomiNameLimits == minimumSizeLimits) {
+      return;
+    }
+    minimumSizeTextSize = textSize;
+    minimumSizeLimits = hoomiNameLimits;
+    String buttonText = getButtonText();
+    paint.getTextBounds(buttonText, 0, buttonText.length(), textBounds);
+    paint.getTextBounds("_", 0, 1, spaceBounds);
+    float textHeight = textBounds.height();
+    float hoomiNameWidth = hoomiNameLimits.width() * textHeight / hoomiNameLimits.height();
+    float logoSize = textHeight * 2;
+    minimumWidth = logoSize + textBounds.width() + spaceBounds.width() + hoomiNameWidth;
+    minimumHeight = logoSize;
   }
 
   @Override
-  protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-    boolean hasPrevious = backgroundRect != null;
-    float prevHeight = 0, prevWidth = 0;
-    if (hasPrevious) {
-      prevHeight = backgroundRect.height();
-      prevWidth = backgroundRect.width();
-      Log.d("OnMeasure", "Measuring with previous size: " + prevWidth + ", " + prevHeight);
-    }
-    float width = MeasureSpec.getSize(widthMeasureSpec);
-    float height = MeasureSpec.getSize(heightMeasureSpec);
-    Log.d("OnMeasure", "Measure 1");
-    onSizeChanged(0, 0, 0, 0);
-    float minHeight = backgroundRect.width();
-    float minWidth = backgroundRect.height();
-    if (height < minHeight) {
-      height = minHeight;
-    }
-    if (width < minWidth) {
-      width = minWidth;
-    }
-    if (hasPrevious) {
-      Log.d("OnMeasure", "Measure 2");
-      onSizeChanged((int) prevWidth, (int) prevHeight, 0, 0);
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    if (updateLayout(w, h)) {
+      requestImages();
     }
-    setMeasuredDimension(resolveSize((int) width, widthMeasureSpec),
-        resolveSize((int) height, heightMeasureSpec));
+  }
+
+  @Override
+  protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    updateMinimumSize();
+    int width = Math.max(MeasureSpec.getSize(widthMeasureSpec), (int) minimumWidth);
+    int height = Math.max(MeasureSpec.getSize(heightMeasureSpec), (int) minimumHeight);
+    setMeasuredDimension(resolveSize(width, widthMeasureSpec),
+        resolveSize(height, heightMeasureSpec));
   }
 
   @Override
   protected void onDraw(Canvas canvas) {
     super.onDraw(canvas);
-    canvas.drawRoundRect(backgroundRect,
-        backgroundRect.height() * 0.05f,
-        backgroundRect.height() * 0.05f,
-        backgroundPaint);
+    canvas.drawRoundRect(backgroundRect, cornerRadius, cornerRadius, backgroundPaint);
     canvas.drawText(getButtonText(), textRect.left, textRect.bottom, paint);
-    if (!isInEditMode()) {
-      canvas.drawPicture(logo.getPicture(), logoRect);
-      canvas.drawPicture(hoomiName.getPicture(), hoomiNameRect);
+    int variant = isPressed ? 1 : 0;
+    Bitmap logo = logoKeys[variant] != null ? HoomiLogoCache.peekBitmap(logoKeys[variant]) : null;
+    Bitmap hoomiName = hoomiNameKeys[variant] != null ?
+        HoomiLogoCache.peekBitmap(hoomiNameKeys[variant]) : null;
+    if (logo != null) {
+      canvas.drawBitmap(logo, null, logoRect, bitmapPaint);
+    }
+    if (hoomiName != null) {
+      canvas.drawBitmap(hoomiName, null, hoomiNameRect, bitmapPaint);
     } else {
       canvas.drawText("Hoomi", hoomiNameRect.left, hoomiNameRect.bottom, paint);
     }
+    if ((logo == null && logoKeys[variant] != null) ||
+        (hoomiName == null && hoomiNameKeys[variant] != null)) {
+      // Evicted from the cache (or still rendering); this view is invalidated once the
+      // artwork is ready again.
+      if (!imageRequestPosted && reRequestedGeneration != layoutGeneration) {
+        imageRequestPosted = true;
+        reRequestedGeneration = layoutGeneration;
+        post(requestImagesRunnable);
+      }
+    } else {
+      reRequestedGeneration = 0;
+    }
   }
 
   private static int darkenColor(int color) {
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.support.v4.util.LruCache;
+
+import com.larvalabs.svgandroid.SVG;
+import com.larvalabs.svgandroid.SVGBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * A process-wide cache of the Hoomi logo artwork used by HoomiLoginButton.
+ *
+ * SVG resources are parsed once per (resource, color) on a background thread, and
+ * rasterized into bitmaps once per (resource, color, pixel size). Since the bitmaps are
+ * sized in pixels, buttons on displays of different densities get their own variants.
+ * Drawing bitmaps rather than Pictures lets the button render on a hardware layer.
+ */
+class HoomiLogoCache {
+  private static final int MAX_BITMAP_BYTES = 1024 * 1024;
+
+  private static final Map<String, Task<SVG>> svgs = new HashMap<String, Task<SVG>>();
+  private static final Map<String, Task<Bitmap>> pendingBitmaps =
+      new HashMap<String, Task<Bitmap>>();
+  private static final LruCache<String, Bitmap> bitmaps =
+      new LruCache<String, Bitmap>(MAX_BITMAP_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+          return value.getRowBytes() * value.getHeight();
+        }
+      };
+
+  private HoomiLogoCache() {
+  }
+
+  private static String svgKey(int resourceId, int color) {
+    return resourceId + ":" + color;
+  }
+
+  static String bitmapKey(int resourceId, int color, int width, int height) {
+    return resourceId + ":" + color + ":" + width + "x" + height;
+  }
+
+  /**
+   * Gets the parsed SVG for a resource with white swapped for the given color, if it has
+   * already been loaded.
+   *
+   * @return the SVG, or null if it is not loaded yet
+   */
+  static SVG peekSvg(int resourceId, int color) {
+    Task<SVG> task;
+    synchronized (svgs) {
+      task = svgs.get(svgKey(resourceId, color));
+    }
+    if (task == null || !task.isCompleted() || task.isFaulted()) {
+      return null;
+    }
+    return task.getResult();
+  }
+
+  /**
+   * Loads the SVG for a resource with white swapped for the given color on a background
+   * thread.
+   */
+  static Task<SVG> getSvgAsync(final Resources resources, final int resourceId, final int color) {
+    String key = svgKey(resourceId, color);
+    synchronized (svgs) {
+      Task<SVG> task = svgs.get(key);
+      if (task == null || task.isFaulted()) {
+        task = Task.callInBackground(new Callable<SVG>() {
+          @Override
+          public SVG call() throws Exception {
+            return new SVGBuilder()
+                .readFromResource(resources, resourceId)
+                .setColorSwap(Color.WHITE, color)
+                .build();
+          }
+        });
+        svgs.put(key, task);
+      }
+      return task;
+    }
+  }
+
+  /**
+   * Gets a rasterized version of a resource, if one is cached.  Views should look their
+   * bitmaps up here each time they draw rather than hold on to them, so that the cache's
+   * budget bounds the memory they use; this doesn't allocate.
+   *
+   * @param key the key from {@link #bitmapKey}
+   * @return the bitmap, or null if it has not been rendered yet or was evicted
+   */
+  static Bitmap peekBitmap(String key) {
+    return bitmaps.get(key);
+  }
+
+  /**
+   * Rasterizes a resource at the given size on a background thread.
+   */
+  static Task<Bitmap> getBitmapAsync(Resources resources,
+                                     final int resourceId,
+                                     final int color,
+                                     final int width,
+                                     final int height) {
+    final String key = bitmapKey(resourceId, color, width, height);
+    Bitmap cached = bitmaps.get(key);
+    if (cached != null) {
+      return Task.forResult(cached);
+    }
+    if (width <= 0 || height <= 0) {
+      return Task.forResult(null);
+    }
+    synchronized (pendingBitmaps) {
+      Task<Bitmap> pending = pendingBitmaps.get(key);
+      if (pending != null) {
+        return pending;
+      }
+      pending = getSvgAsync(resources, resourceId, color)
+          .onSuccess(new Continuation<SVG, Bitmap>() {
+            @Override
+            public Bitmap then(Task<SVG> task) throws Exception {
+              SVG svg = task.getResult();
+              Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+              Canvas canvas = new Canvas(bitmap);
+              // Pictures may not be drawn from several threads at once.
+              synchronized (svg) {
+                canvas.drawPicture(svg.getPicture(), new RectF(0, 0, width, height));
+              }
+              bitmaps.put(key, bitmap);
+              return bitmap;
+            }
+          }, Task.BACKGROUND_EXECUTOR);
+      pendingBitmaps.put(key, pending);
+      pending.continueWith(new Continuation<Bitmap, Void>() {
+        @Override
+        public Void then(Task<Bitmap> task) throws Exception {
+          synchronized (pendingBitmaps) {
+            pendingBitmaps.remove(key);
+          }
+          return null;
+        }
+      });
+      return pending;
+    }
+  }
+}
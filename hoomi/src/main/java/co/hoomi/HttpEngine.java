@@ -0,0 +1,579 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import bolts.Task;
+
+/**
+ * Sends HTTP requests for HoomiClient, and for any other code in the application that
+ * wants to share its connections, limits and instrumentation.
+ *
+ * HttpURLConnection keeps a small pool of idle connections per host. The engine limits
+ * the number of requests in flight to each host to the size of that pool, and queues
+ * the rest, so that every request can reuse a kept-alive connection instead of opening
+ * one that is thrown away afterwards. Response bodies (including error bodies) are
+ * always read to the end for the same reason.
+ *
+ * Every request made through the engine is reported to its listeners, which makes them
+ * the one place to hook in logging or metrics.
+ */
+public class HttpEngine {
+  public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+  public static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+
+  /**
+   * An HTTP request to be sent through an HttpEngine.
+   */
+  public static class Request {
+    private final String method;
+    private final URL url;
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    private String contentType;
+    private String body;
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private Object tag;
+    private volatile boolean cancelled;
+    private volatile HttpURLConnection connection;
+
+    /**
+     * Creates a request.
+     *
+     * @param method the HTTP method
+     * @param url    the absolute URL to request
+     */
+    public Request(String method, URL url) {
+      this.method = method;
+      this.url = url;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public URL getUrl() {
+      return url;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+      return headers;
+    }
+
+    /**
+     * Adds a request header.
+     *
+     * @return this request
+     */
+    public Request addHeader(String name, String value) {
+      List<String> values = headers.get(name);
+      if (values == null) {
+        values = new ArrayList<String>();
+        headers.put(name, values);
+      }
+      values.add(value);
+      return this;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * Sets the body of the request.
+     *
+     * @return this request
+     */
+    public Request setBody(String contentType, String body) {
+      this.contentType = contentType;
+      this.body = body;
+      return this;
+    }
+
+    public int getTimeoutMillis() {
+      return timeoutMillis;
+    }
+
+    /**
+     * Sets the connect and read timeouts for the request.
+     *
+     * @return this request
+     */
+    public Request setTimeoutMillis(int timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+      return this;
+    }
+
+    public Object getTag() {
+      return tag;
+    }
+
+    /**
+     * Attaches an object to the request, such as the client that made it, for listeners
+     * to tell requests apart by.
+     *
+     * @return this request
+     */
+    public Request setTag(Object tag) {
+      this.tag = tag;
+      return this;
+    }
+
+    /**
+     * Creates a new request with the same method, URL, headers, body, timeout and tag,
+     * which can be sent independently of this one.
+     *
+     * @return the copy
+     */
+    public Request copy() {
+      Request copy = new Request(method, url);
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        copy.headers.put(header.getKey(), new ArrayList<String>(header.getValue()));
+      }
+      copy.contentType = contentType;
+      copy.body = body;
+      copy.timeoutMillis = timeoutMillis;
+      copy.tag = tag;
+      return copy;
+    }
+
+    /**
+     * Cancels the request.  A request that is still queued is never sent, and one in
+     * flight has its connection closed; either way its task is cancelled.
+     */
+    public void cancel() {
+      cancelled = true;
+      HttpURLConnection current = connection;
+      if (current != null) {
+        current.disconnect();
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  /**
+   * The response to a Request.
+   */
+  public static class Response {
+    private final int statusCode;
+    private final String statusMessage;
+    private final Map<String, List<String>> headers;
+    private final String body;
+
+    Response(int statusCode,
+             String statusMessage,
+             Map<String, List<String>> headers,
+             String body) {
+      this.statusCode = statusCode;
+      this.statusMessage = statusMessage;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getStatusMessage() {
+      return statusMessage;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+      return headers;
+    }
+
+    /**
+     * Gets the first value of a response header, ignoring the case of its name.
+     *
+     * @return the value, or null if the header is not present
+     */
+    public String getHeader(String name) {
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) &&
+            !header.getValue().isEmpty()) {
+          return header.getValue().get(0);
+        }
+      }
+      return null;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * Whether the status code is in the 2xx or 3xx range.
+     */
+    public boolean isSuccessful() {
+      return statusCode >= 200 && statusCode <= 399;
+    }
+  }
+
+  /**
+   * Parses a successful response body straight from the connection, without buffering
+   * it into a string first.
+   *
+   * @param <T> the type of the parsed body
+   */
+  public static interface BodyParser<T> {
+    /**
+     * Called on a background thread with the body of a 2xx or 3xx response.  The stream
+     * is closed by the engine.
+     *
+     * @param response the response, whose body is null
+     * @param input    the response body
+     * @return the parsed body
+     */
+    public T parse(Response response, InputStream input) throws Exception;
+  }
+
+  /**
+   * Observes every request made through an HttpEngine.
+   */
+  public static interface Listener {
+    /**
+     * Called (on a background thread) when a request has completed.
+     *
+     * @param request       the request
+     * @param response      the response, or null if no response was received; its body is
+     *                      null if it was handled by a BodyParser
+     * @param error         the error, or null if a response was received
+     * @param queuedMillis  how long the request waited for a free slot for its host
+     * @param elapsedMillis how long the request took once it was sent
+     */
+    public void onRequestCompleted(Request request,
+                                   Response response,
+                                   Exception error,
+                                   long queuedMillis,
+                                   long elapsedMillis);
+  }
+
+  private static class Host {
+    int inFlight;
+    final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+  }
+
+  private static HttpEngine sharedEngine;
+
+  private final ExecutorService executor;
+  private final Map<String, Host> hosts = new HashMap<String, Host>();
+  private final Map<String, Integer> maxRequestsPerHost = new HashMap<String, Integer>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private int defaultMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+  /**
+   * Creates an HttpEngine.  Most applications should use the shared engine instead, so
+   * that all of their requests share one set of limits.
+   */
+  public HttpEngine() {
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "HttpEngine");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Gets the engine used by HoomiClient by default.
+   */
+  public static synchronized HttpEngine getSharedEngine() {
+    if (sharedEngine == null) {
+      sharedEngine = new HttpEngine();
+    }
+    return sharedEngine;
+  }
+
+  /**
+   * Gets the number of requests that may be in flight to a host at once.
+   */
+  public synchronized int getMaxRequestsPerHost(String host) {
+    Integer max = maxRequestsPerHost.get(host);
+    return max != null ? max : defaultMaxRequestsPerHost;
+  }
+
+  /**
+   * Sets the number of requests that may be in flight to a host at once.
+   */
+  public synchronized void setMaxRequestsPerHost(String host, int max) {
+    maxRequestsPerHost.put(host, Math.max(1, max));
+  }
+
+  /**
+   * Sets the number of requests that may be in flight to hosts without their own limit.
+   */
+  public synchronized void setDefaultMaxRequestsPerHost(int max) {
+    defaultMaxRequestsPerHost = Math.max(1, max);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Sends a request once there is a free slot for its host.
+   *
+   * @return the response, whatever its status code (asynchronously)
+   */
+  public Task<Response> executeAsync(Request request) {
+    Task<Response>.TaskCompletionSource tcs = Task.create();
+    enqueue(request, null, tcs);
+    return tcs.getTask();
+  }
+
+  /**
+   * Sends a request once there is a free slot for its host, and parses its body as it
+   * arrives.  Responses with an error status code fail with a HoomiException.
+   *
+   * @return the parsed body (asynchronously)
+   */
+  public <T> Task<T> executeAsync(Request request, BodyParser<T> parser) {
+    Task<T>.TaskCompletionSource tcs = Task.create();
+    enqueue(request, parser, tcs);
+    return tcs.getTask();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> void enqueue(final Request request,
+                           final BodyParser<T> parser,
+                           final Task<T>.TaskCompletionSource tcs) {
+    final String host = request.getUrl().getHost();
+    final long queued = System.currentTimeMillis();
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        long started = System.currentTimeMillis();
+        Response response = null;
+        Object result = null;
+        Exception error = null;
+        try {
+          Object[] sent = send(request, parser);
+          response = (Response) sent[0];
+          result = sent[1];
+        } catch (Exception e) {
+          error = e;
+        } finally {
+          release(host);
+        }
+        long finished = System.currentTimeMillis();
+        for (Listener listener : listeners) {
+          try {
+            listener.onRequestCompleted(request,
+                response,
+                error,
+                started - queued,
+                finished - started);
+          } catch (RuntimeException e) {
+            // Instrumentation must not break requests.
+          }
+        }
+        if (error == null && parser != null && !response.isSuccessful()) {
+          try {
+            checkStatus(response);
+          } catch (HoomiException e) {
+            error = e;
+          }
+        }
+        if (request.isCancelled()) {
+          tcs.setCancelled();
+        } else if (error != null) {
+          tcs.setError(error);
+        } else {
+          tcs.setResult((T) (parser != null ? result : response));
+        }
+      }
+    };
+    synchronized (this) {
+      Host state = hosts.get(host);
+      if (state == null) {
+        state = new Host();
+        hosts.put(host, state);
+      }
+      if (state.inFlight >= getMaxRequestsPerHost(host)) {
+        state.waiting.add(runnable);
+        return;
+      }
+      state.inFlight++;
+    }
+    executor.execute(runnable);
+  }
+
+  /**
+   * Sends a request and waits for its response.  Must not be called on the UI thread.
+   *
+   * @return the response, whatever its status code
+   */
+  public Response execute(Request request) throws Exception {
+    return waitFor(executeAsync(request));
+  }
+
+  /**
+   * Sends a request, parses its body and waits for the result.  Must not be called on
+   * the UI thread.
+   *
+   * @return the parsed body
+   */
+  public <T> T execute(Request request, BodyParser<T> parser) throws Exception {
+    return waitFor(executeAsync(request, parser));
+  }
+
+  private static <T> T waitFor(Task<T> task) throws Exception {
+    task.waitForCompletion();
+    if (task.isFaulted()) {
+      throw task.getError();
+    }
+    return task.getResult();
+  }
+
+  private void release(String host) {
+    Runnable next;
+    synchronized (this) {
+      Host state = hosts.get(host);
+      next = state.waiting.poll();
+      if (next == null) {
+        state.inFlight--;
+        return;
+      }
+    }
+    executor.execute(next);
+  }
+
+  /**
+   * Sends a request, and returns the response and the parsed body (if a parser was given
+   * and the response was successful).
+   */
+  private static Object[] send(Request request, BodyParser<?> parser) throws Exception {
+    if (request.isCancelled()) {
+      throw new CancellationException("Request cancelled");
+    }
+    HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+    request.connection = connection;
+    try {
+      if (request.isCancelled()) {
+        // Cancelled while the connection was being opened.
+        throw new CancellationException("Request cancelled");
+      }
+      connection.setConnectTimeout(request.getTimeoutMillis());
+      connection.setReadTimeout(request.getTimeoutMillis());
+      connection.setRequestMethod(request.getMethod());
+      for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+        for (String value : header.getValue()) {
+          connection.addRequestProperty(header.getKey(), value);
+        }
+      }
+      if (request.getBody() != null) {
+        byte[] body = request.getBody().getBytes("UTF-8");
+        connection.setRequestProperty("Content-Type", request.getContentType());
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream output = connection.getOutputStream();
+        try {
+          output.write(body);
+        } finally {
+          output.close();
+        }
+      }
+
+      int statusCode = connection.getResponseCode();
+      Map<String, List<String>> headers = connection.getHeaderFields();
+      if (headers == null) {
+        headers = Collections.emptyMap();
+      }
+      boolean successful = statusCode >= 200 && statusCode <= 399;
+      InputStream input = statusCode >= 400 ?
+          connection.getErrorStream() : connection.getInputStream();
+      try {
+        if (successful && parser != null) {
+          Response response = new Response(statusCode,
+              connection.getResponseMessage(),
+              headers,
+              null);
+          Object result = parser.parse(response, input);
+          // Drain anything the parser left, so the connection can be reused.
+          IOUtils.copy(input, new NullOutputStream());
+          return new Object[]{response, result};
+        }
+        String body = input != null ? IOUtils.toString(input, "UTF-8") : "";
+        return new Object[]{new Response(statusCode,
+            connection.getResponseMessage(),
+            headers,
+            body), null};
+      } finally {
+        IOUtils.closeQuietly(input);
+      }
+    } catch (Exception e) {
+      // Let the connection go rather than returning it to the pool in an unknown state.
+      connection.disconnect();
+      throw e;
+    } finally {
+      request.connection = null;
+    }
+  }
+
+  /**
+   * Throws a HoomiException if the response has an error status code.
+   *
+   * @return the response
+   */
+  public static Response checkStatus(Response response) throws HoomiException {
+    if (!response.isSuccessful()) {
+      throw new HoomiException("HTTP Error: " + response.getStatusCode() +
+          " " + response.getStatusMessage(), response.getStatusCode());
+    }
+    return response;
+  }
+
+  /**
+   * Encodes parameters as an application/x-www-form-urlencoded string.
+   */
+  public static String encodeForm(JSONObject parameters) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    Iterator<String> keys = parameters.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      sb.append(URLEncoder.encode(key, "UTF-8"));
+      sb.append("=");
+      sb.append(URLEncoder.encode(parameters.get(key).toString(), "UTF-8"));
+      if (keys.hasNext()) {
+        sb.append("&");
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+
+/**
+ * Helpers for dotted key paths (such as "settings.theme") into JSON objects, used to
+ * request and write back a subset of a user's app data.
+ */
+public final class KeyPaths {
+  private KeyPaths() {
+  }
+
+  /**
+   * Joins key paths into the value of a fields query parameter.
+   *
+   * @param paths the key paths
+   * @return the paths separated by commas
+   */
+  public static String join(Collection<String> paths) {
+    StringBuilder b = new StringBuilder();
+    for (String path : paths) {
+      if (b.length() > 0) {
+        b.append(',');
+      }
+      b.append(path);
+    }
+    return b.toString();
+  }
+
+  /**
+   * Gets the value at a key path.
+   *
+   * @param json the object to look in
+   * @param path the key path
+   * @return the value, or null if there is nothing at the path
+   */
+  public static Object get(JSONObject json, String path) {
+    Object value = json;
+    for (String key : path.split("\\.")) {
+      if (!(value instanceof JSONObject)) {
+        return null;
+      }
+      value = ((JSONObject) value).opt(key);
+    }
+    return value;
+  }
+
+  /**
+   * Sets the value at a key path, creating intermediate objects as needed.  A null value
+   * removes the key.
+   *
+   * @param json  the object to change
+   * @param path  the key path
+   * @param value the new value, or null
+   */
+  public static void put(JSONObject json, String path, Object value) throws JSONException {
+    String[] keys = path.split("\\.");
+    JSONObject parent = json;
+    for (int i = 0; i < keys.length - 1; i++) {
+      JSONObject child = parent.optJSONObject(keys[i]);
+      if (child == null) {
+        if (value == null) {
+          return;
+        }
+        child = new JSONObject();
+        parent.put(keys[i], child);
+      }
+      parent = child;
+    }
+    if (value == null) {
+      parent.remove(keys[keys.length - 1]);
+    } else {
+      parent.put(keys[keys.length - 1], value);
+    }
+  }
+
+  /**
+   * Copies just the values at the given key paths into a new object.
+   *
+   * @param json  the object to copy from
+   * @param paths the key paths to keep
+   * @return a new object with the same nesting, holding only the given paths
+   */
+  public static JSONObject project(JSONObject json, Collection<String> paths)
+      throws JSONException {
+    JSONObject result = new JSONObject();
+    for (String path : paths) {
+      Object value = get(json, path);
+      if (value != null) {
+        put(result, path, value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the values at the given key paths of one object into another.  Paths missing
+   * from the source are removed from the target; everything else in the target is left
+   * alone.
+   *
+   * @param target the object to change
+   * @param source the object holding the new values
+   * @param paths  the key paths to copy
+   */
+  public static void merge(JSONObject target, JSONObject source, Collection<String> paths)
+      throws JSONException {
+    for (String path : paths) {
+      put(target, path, get(source, path));
+    }
+  }
+}
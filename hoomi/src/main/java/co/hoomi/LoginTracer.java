@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Records how long each phase of a login takes, from the login button being pressed to
+ * the new token being stored.
+ *
+ * Each login gets a trace, keyed by its state value once that has been chosen, made up
+ * of timed spans such as provisioning the client ID, fetching a Google ID token,
+ * resolving the authorization intent, the external login dialog, HoomiLoginActivity and
+ * the code exchange. Times are wall-clock milliseconds, so a trace can be picked up
+ * again by a new process when the redirect comes back after the old one was killed.
+ *
+ * Only the most recent traces are kept, each with a bounded number of spans. They can
+ * be exported as Chrome trace-event JSON and opened in chrome://tracing, with one row
+ * per login.
+ */
+public class LoginTracer {
+  static final int MAX_TRACES = 32;
+  static final int MAX_SPANS_PER_TRACE = 64;
+
+  private static final LoginTracer instance = new LoginTracer();
+
+  /**
+   * A span of time within a login trace.
+   */
+  public static class Span {
+    private final Trace trace;
+    private final String name;
+    private final long start;
+    private long end = -1;
+
+    Span(Trace trace, String name, long start) {
+      this.trace = trace;
+      this.name = name;
+      this.start = start;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getStartMillis() {
+      return start;
+    }
+
+    /**
+     * Gets when the span ended.
+     *
+     * @return the end time in milliseconds, or -1 if the span is still open
+     */
+    public long getEndMillis() {
+      synchronized (trace.tracer) {
+        return end;
+      }
+    }
+
+    /**
+     * Ends the span now.  Ending a span more than once has no effect.
+     */
+    public void end() {
+      synchronized (trace.tracer) {
+        if (end < 0) {
+          end = System.currentTimeMillis();
+        }
+      }
+    }
+  }
+
+  /**
+   * The spans recorded for one login.
+   */
+  public static class Trace {
+    private final LoginTracer tracer;
+    private final int id;
+    private final Span login;
+    private final List<Span> spans = new ArrayList<Span>();
+    private String state;
+    private String outcome;
+
+    Trace(LoginTracer tracer, int id, long start) {
+      this.tracer = tracer;
+      this.id = id;
+      this.login = new Span(this, "login", start);
+    }
+
+    /**
+     * Gets the state value of the login, or null if it has not been chosen yet.
+     */
+    public String getState() {
+      synchronized (tracer) {
+        return state;
+      }
+    }
+
+    /**
+     * Starts a span now.
+     *
+     * @param name the name of the phase
+     * @return the span, to be ended when the phase is over
+     */
+    public Span begin(String name) {
+      return record(name, System.currentTimeMillis(), -1);
+    }
+
+    /**
+     * Records a span whose times are already known.
+     *
+     * @param name  the name of the phase
+     * @param start the start time in milliseconds
+     * @param end   the end time in milliseconds, or -1 if the span is still open
+     * @return the span
+     */
+    Span record(String name, long start, long end) {
+      Span span = new Span(this, name, start);
+      span.end = end;
+      synchronized (tracer) {
+        if (spans.size() < MAX_SPANS_PER_TRACE) {
+          spans.add(span);
+        }
+      }
+      return span;
+    }
+
+    /**
+     * Ends the most recent open span with the given name, or records it from the given
+     * start time if there is none (because it was started by an earlier process).
+     */
+    void end(String name, long fallbackStart) {
+      synchronized (tracer) {
+        for (int i = spans.size() - 1; i >= 0; i--) {
+          Span span = spans.get(i);
+          if (span.name.equals(name) && span.end < 0) {
+            span.end();
+            return;
+          }
+        }
+      }
+      record(name, fallbackStart, System.currentTimeMillis());
+    }
+
+    /**
+     * Ends the trace, noting how the login turned out.
+     *
+     * @param outcome a short description, such as "success" or the error
+     */
+    public void finish(String outcome) {
+      synchronized (tracer) {
+        if (login.end < 0) {
+          this.outcome = outcome;
+        }
+      }
+      login.end();
+    }
+
+    /**
+     * Gets the spans recorded so far, in the order they started.
+     */
+    public List<Span> getSpans() {
+      synchronized (tracer) {
+        List<Span> all = new ArrayList<Span>(spans.size() + 1);
+        all.add(login);
+        all.addAll(spans);
+        return all;
+      }
+    }
+  }
+
+  // Traces by state (or by a placeholder until the state is chosen), oldest first.
+  private final LinkedHashMap<String, Trace> traces = new LinkedHashMap<String, Trace>();
+  private int nextId = 1;
+  private volatile boolean enabled = true;
+
+  /**
+   * Gets the tracer used by the SDK.
+   */
+  public static LoginTracer getInstance() {
+    return instance;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets whether new logins are traced.  Tracing is on by default; it only costs a few
+   * small objects per login.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Starts a trace for a new login.
+   *
+   * @return the trace
+   */
+  Trace newTrace() {
+    synchronized (this) {
+      Trace trace = new Trace(this, nextId++, System.currentTimeMillis());
+      if (enabled) {
+        retain("#" + trace.id, trace);
+      }
+      return trace;
+    }
+  }
+
+  /**
+   * Keys a trace by the state value chosen for its login, so the redirect can find it.
+   */
+  synchronized void bind(Trace trace, String state) {
+    traces.remove("#" + trace.id);
+    trace.state = state;
+    if (enabled) {
+      retain(state, trace);
+    }
+  }
+
+  /**
+   * Finds the trace for a state value, or starts one at the given time if this process
+   * has none (for example because it was restarted during the login dialog).
+   */
+  synchronized Trace forState(String state, long startedMillis) {
+    Trace trace = state != null ? traces.get(state) : null;
+    if (trace == null) {
+      trace = new Trace(this, nextId++, startedMillis);
+      trace.state = state;
+      if (enabled && state != null) {
+        retain(state, trace);
+      }
+    }
+    return trace;
+  }
+
+  private void retain(String key, Trace trace) {
+    traces.put(key, trace);
+    Iterator<String> oldest = traces.keySet().iterator();
+    while (traces.size() > MAX_TRACES) {
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  /**
+   * Gets the retained trace for a state value.
+   *
+   * @return the trace, or null if there is none
+   */
+  public synchronized Trace getTrace(String state) {
+    return traces.get(state);
+  }
+
+  /**
+   * Discards all retained traces.
+   */
+  public synchronized void clear() {
+    traces.clear();
+  }
+
+  /**
+   * Exports every retained trace in the Chrome trace-event format.
+   *
+   * @return the JSON, which chrome://tracing can open
+   */
+  public String exportChromeTrace() {
+    List<Trace> all;
+    synchronized (this) {
+      all = new ArrayList<Trace>(traces.values());
+    }
+    JSONArray events = new JSONArray();
+    try {
+      for (Trace trace : all) {
+        addEvents(events, trace);
+      }
+      return new JSONObject()
+          .put("traceEvents", events)
+          .put("displayTimeUnit", "ms")
+          .toString();
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void addEvents(JSONArray events, Trace trace) throws JSONException {
+    String outcome;
+    synchronized (this) {
+      outcome = trace.outcome;
+    }
+    // Name the row after the trace, never the state value: that is the login's CSRF
+    // secret, and exported traces get passed around.
+    events.put(new JSONObject()
+        .put("name", "thread_name")
+        .put("ph", "M")
+        .put("pid", 1)
+        .put("tid", trace.id)
+        .put("args", new JSONObject()
+            .put("name", "login #" + trace.id)));
+    for (Span span : trace.getSpans()) {
+      long end = span.getEndMillis();
+      JSONObject args = new JSONObject();
+      if (span == trace.login && outcome != null) {
+        args.put("outcome", outcome);
+      }
+      if (end < 0) {
+        args.put("unfinished", true);
+        end = System.currentTimeMillis();
+      }
+      events.put(new JSONObject()
+          .put("name", span.getName())
+          .put("cat", "login")
+          .put("ph", "X")
+          .put("ts", span.getStartMillis() * 1000)
+          .put("dur", Math.max(0, end - span.getStartMillis()) * 1000)
+          .put("pid", 1)
+          .put("tid", trace.id)
+          .put("args", args));
+    }
+  }
+}
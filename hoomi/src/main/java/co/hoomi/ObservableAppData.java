@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import bolts.Task;
+import co.hoomi.response.AppData;
+
+/**
+ * The latest known app data for a user, which any number of observers can watch.
+ *
+ * The value is updated whenever the owning HoomiClient reads the user's full app data,
+ * writes it successfully or hears of a change through an app data subscription, so
+ * components stay consistent with each other's changes without reading again.
+ * Observers are called on a background thread, one call at a time each. An observer
+ * that is still busy when several new values arrive is only sent the newest of them
+ * once it returns, so slow observers never build up a backlog.
+ *
+ * While nothing observes it, the latest value counts against the client's app data cache
+ * budget and may be dropped to stay within it.
+ *
+ * A client starts out with one instance per token, and merges the instances of a user's
+ * tokens into one once it learns whose they are. Merged instances, and instances the
+ * client let go of because they held nothing, pass everything on to the instance the
+ * client now has for the user, so a caller can keep using whichever instance it has.
+ *
+ * Get instances from {@link HoomiClient#getObservableAppData}.
+ */
+public class ObservableAppData {
+  /**
+   * Receives the app data whenever it changes.
+   */
+  public static interface Observer {
+    /**
+     * Called on a background thread with the latest app data.
+     *
+     * @param appData a copy of the latest app data, which the observer may change
+     */
+    public void onAppDataChanged(AppData appData);
+  }
+
+  private static class Delivery implements Runnable {
+    final Observer observer;
+    final Executor executor;
+    // The newest value not yet sent, or null.
+    String pendingJson;
+    String pendingETag;
+    boolean running;
+
+    Delivery(Observer observer, Executor executor) {
+      this.observer = observer;
+      this.executor = executor;
+    }
+
+    synchronized void offer(String json, String eTag) {
+      pendingJson = json;
+      pendingETag = eTag;
+      if (!running) {
+        running = true;
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        String json;
+        String eTag;
+        synchronized (this) {
+          if (pendingJson == null) {
+            running = false;
+            return;
+          }
+          json = pendingJson;
+          eTag = pendingETag;
+          pendingJson = null;
+          pendingETag = null;
+        }
+        try {
+          observer.onAppDataChanged(new AppData(new JSONObject(json), eTag));
+        } catch (JSONException e) {
+          // Can't happen; the JSON came from a JSONObject.
+        } catch (RuntimeException e) {
+          // A failing observer must not stop later deliveries.
+        }
+      }
+    }
+  }
+
+  private final Executor executor;
+  private final AppDataCacheBudget budget;
+  private final HoomiClient owner;
+  private final String key;
+  private final Map<Observer, Delivery> deliveries = new ConcurrentHashMap<Observer, Delivery>();
+  private String latestJson;
+  private String latestETag;
+  private long version;
+  // Set once the owner has let go of this instance.
+  private boolean detached;
+  private ObservableAppData mergedInto;
+
+  /**
+   * Creates an instance held by a client.
+   *
+   * @param owner  the client
+   * @param key    the key the client holds the instance under
+   * @param budget the budget the latest value counts against
+   */
+  ObservableAppData(HoomiClient owner, String key, AppDataCacheBudget budget) {
+    this(Task.BACKGROUND_EXECUTOR, budget, owner, key);
+  }
+
+  /**
+   * Creates a standalone instance.
+   *
+   * @param executor the executor observers are called on
+   * @param budget   the budget the latest value counts against, or null for none
+   */
+  ObservableAppData(Executor executor, AppDataCacheBudget budget) {
+    this(executor, budget, null, null);
+  }
+
+  private ObservableAppData(Executor executor,
+                            AppDataCacheBudget budget,
+                            HoomiClient owner,
+                            String key) {
+    this.executor = executor;
+    this.budget = budget;
+    this.owner = owner;
+    this.key = key;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Gets the latest known app data.
+   *
+   * @return a copy of the latest app data, or null if none has been read or written yet
+   * (or it was dropped to save memory)
+   */
+  public AppData getLatest() {
+    ObservableAppData current = current();
+    if (current != this) {
+      return current.getLatest();
+    }
+    String json;
+    String eTag;
+    synchronized (this) {
+      json = latestJson;
+      eTag = latestETag;
+    }
+    if (json == null) {
+      return null;
+    }
+    if (budget != null) {
+      budget.touch(this);
+    }
+    try {
+      return new AppData(new JSONObject(json), eTag);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds an observer, which is sent the latest app data straight away if there is any.
+   *
+   * @param observer the observer
+   */
+  public void addObserver(Observer observer) {
+    ObservableAppData target = this;
+    while (true) {
+      target = target.current();
+      Delivery delivery = new Delivery(observer, target.executor);
+      synchronized (target) {
+        // The owner may have let go of the target since; if so, look again.
+        if (target.detached || target.mergedInto != null) {
+          continue;
+        }
+        target.deliveries.put(observer, delivery);
+        if (target.latestJson != null) {
+          delivery.offer(target.latestJson, target.latestETag);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes an observer.  A call already in progress still completes.
+   *
+   * @param observer the observer
+   */
+  public void removeObserver(Observer observer) {
+    deliveries.remove(observer);
+    ObservableAppData next;
+    synchronized (this) {
+      next = mergedInto;
+    }
+    if (next != null) {
+      next.removeObserver(observer);
+    }
+  }
+
+  boolean hasObservers() {
+    return !deliveries.isEmpty();
+  }
+
+  /**
+   * Marks the instance as let go of by its owner, if it has neither observers nor a
+   * value.  Call this with the owner's lock held.
+   *
+   * @return true if the owner can forget the instance
+   */
+  synchronized boolean detachIfUnused() {
+    if (!deliveries.isEmpty() || latestJson != null || mergedInto != null) {
+      return false;
+    }
+    detached = true;
+    return true;
+  }
+
+  /**
+   * Takes the instance back after the owner let go of it.  Call this with the owner's
+   * lock held.
+   */
+  synchronized void reattach() {
+    detached = false;
+  }
+
+  /**
+   * Hands this instance's observers and value over to another instance for the same
+   * user, and forwards everything to it from now on.  The other instance keeps its own
+   * value if it has one.
+   *
+   * @param target the instance that replaces this one
+   */
+  void mergeInto(ObservableAppData target) {
+    List<Observer> observers;
+    String json;
+    String eTag;
+    synchronized (this) {
+      mergedInto = target;
+      observers = new ArrayList<Observer>(deliveries.keySet());
+      deliveries.clear();
+      json = latestJson;
+      eTag = latestETag;
+      latestJson = null;
+      latestETag = null;
+    }
+    if (budget != null) {
+      budget.release(this);
+    }
+    if (json != null) {
+      try {
+        target.publishIfEmpty(new AppData(new JSONObject(json), eTag));
+      } catch (JSONException e) {
+        // Can't happen; the JSON came from a JSONObject.
+      }
+    }
+    for (Observer observer : observers) {
+      target.addObserver(observer);
+    }
+  }
+
+  /**
+   * Follows merges, and brings back an instance the owner let go of, to find the
+   * instance that currently stands for the user.
+   */
+  private ObservableAppData current() {
+    ObservableAppData handle = this;
+    while (true) {
+      ObservableAppData next;
+      boolean detachedHandle;
+      synchronized (handle) {
+        next = handle.mergedInto;
+        detachedHandle = handle.detached;
+      }
+      if (next == null && detachedHandle) {
+        next = handle.owner.reattachObservableAppData(handle);
+      }
+      if (next == null || next == handle) {
+        return handle;
+      }
+      handle = next;
+    }
+  }
+
+  /**
+   * Drops the latest value to save memory, unless it has changed since the given version.
+   */
+  synchronized void evict(long versionToDrop) {
+    if (version == versionToDrop && deliveries.isEmpty()) {
+      latestJson = null;
+      latestETag = null;
+    }
+  }
+
+  /**
+   * Gets the version of the latest value, which changes with every update.  Reads note
+   * it when they start so that a response overtaken by a later update can be dropped.
+   */
+  synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * Publishes app data read from the server, unless something newer has been published
+   * since the read started.
+   */
+  void publishRead(AppData appData, long versionAtStart) {
+    publish(appData, versionAtStart);
+  }
+
+  /**
+   * Publishes app data known to be the newest, such as data that was just written.
+   */
+  void publishWrite(AppData appData) {
+    publish(appData, -1);
+  }
+
+  private void publishIfEmpty(AppData appData) {
+    long versionAtStart;
+    synchronized (this) {
+      if (latestJson != null) {
+        return;
+      }
+      versionAtStart = version;
+    }
+    publish(appData, versionAtStart);
+  }
+
+  private void publish(AppData appData, long versionAtStart) {
+    if (appData.isPartial() || appData.getData() == null) {
+      return;
+    }
+    ObservableAppData current = current();
+    if (current != this) {
+      // Only data known to be the newest carries over; a read may be stale by now.
+      if (versionAtStart < 0) {
+        current.publish(appData, versionAtStart);
+      }
+      return;
+    }
+    String json = appData.getData().toString();
+    long charged;
+    synchronized (this) {
+      if (detached || mergedInto != null) {
+        charged = -1;
+      } else {
+        if (versionAtStart >= 0 && versionAtStart != version) {
+          return;
+        }
+        if (json.equals(latestJson) &&
+            (appData.getETag() == null || appData.getETag().equals(latestETag))) {
+          return;
+        }
+        version++;
+        latestJson = json;
+        latestETag = appData.getETag();
+        for (Delivery delivery : deliveries.values()) {
+          delivery.offer(json, latestETag);
+        }
+        charged = version;
+      }
+    }
+    if (charged < 0) {
+      // The owner let go of this instance in the meantime; publish wherever it went.
+      publish(appData, versionAtStart);
+      return;
+    }
+    if (budget != null) {
+      budget.charge(this, json.length(), charged);
+    }
+  }
+}
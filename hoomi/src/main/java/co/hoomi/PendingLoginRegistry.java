@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bolts.Task;
+
+/**
+ * Keeps track of authorization requests that have been started but whose redirect
+ * has not come back yet.
+ *
+ * Each request is held in memory (so that the caller's task can be completed) and in
+ * SharedPreferences (so that the redirect can still be handled if the process was killed
+ * while the user was in the login dialog). Requests expire after a fixed time to live,
+ * and only a bounded number are kept; stale requests are purged from both places in the
+ * background and counted as abandoned.  A purge is scheduled for when the oldest request
+ * in memory expires, so its caller's task fails then rather than waiting for the next
+ * login to come along.
+ */
+class PendingLoginRegistry {
+  static final long TIME_TO_LIVE_MILLIS = 30 * 60 * 1000;
+  static final int MAX_PENDING_LOGINS = 16;
+
+  private static final String PREFERENCES_NAME = "co.hoomi.HoomiLoginActivity";
+  private static final String STATE_PREFIX = "state: ";
+  private static final long PURGE_INTERVAL_MILLIS = 60 * 1000;
+
+  private static final PendingLoginRegistry instance = new PendingLoginRegistry();
+
+  /**
+   * A login request that is waiting for its redirect.
+   */
+  static class PendingLogin {
+    private final String state;
+    private final String applicationId;
+    private final String baseApiUrl;
+    private final String redirectUri;
+    private final String clientId;
+    private final String clientSecret;
+    private final long created;
+    private final HoomiClient client;
+    private final Task<HoomiAccessToken>.TaskCompletionSource tcs;
+
+    PendingLogin(String state,
+                 String applicationId,
+                 String baseApiUrl,
+                 String redirectUri,
+                 String clientId,
+                 String clientSecret,
+                 long created,
+                 HoomiClient client,
+                 Task<HoomiAccessToken>.TaskCompletionSource tcs) {
+      this.state = state;
+      this.applicationId = applicationId;
+      this.baseApiUrl = baseApiUrl;
+      this.client = client;
+      this.redirectUri = redirectUri;
+      this.clientId = clientId;
+      this.clientSecret = clientSecret;
+      this.created = created;
+      this.tcs = tcs;
+    }
+
+    String getState() {
+      return state;
+    }
+
+    /**
+     * Gets the application ID of the client that made the request, or null if it was
+     * made by an older version that didn't record it.
+     */
+    String getApplicationId() {
+      return applicationId;
+    }
+
+    /**
+     * Gets the base URL of the API the client that made the request talks to.
+     */
+    String getBaseApiUrl() {
+      return baseApiUrl;
+    }
+
+    /**
+     * Gets the client that made the request, or null if it was made by an earlier
+     * process.
+     */
+    HoomiClient getClient() {
+      return client;
+    }
+
+    String getRedirectUri() {
+      return redirectUri;
+    }
+
+    String getClientId() {
+      return clientId;
+    }
+
+    String getClientSecret() {
+      return clientSecret;
+    }
+
+    long getCreated() {
+      return created;
+    }
+
+    /**
+     * Gets the completion source for the caller's task, or null if the request was
+     * started by an earlier process.
+     */
+    Task<HoomiAccessToken>.TaskCompletionSource getTaskCompletionSource() {
+      return tcs;
+    }
+
+    boolean isExpired(long now) {
+      return now - created > TIME_TO_LIVE_MILLIS || now < created;
+    }
+
+    JSONObject toJSONObject() {
+      return HoomiClient.buildJSONObject("applicationId", applicationId,
+          "baseApiUrl", baseApiUrl,
+          "clientId", clientId,
+          "clientSecret", clientSecret,
+          "redirectUri", redirectUri,
+          "created", created);
+    }
+  }
+
+  // Insertion ordered, so the first entry is always the oldest.
+  private final LinkedHashMap<String, PendingLogin> pending =
+      new LinkedHashMap<String, PendingLogin>();
+  private final AtomicLong abandonedCount = new AtomicLong();
+  private final AtomicLong completedCount = new AtomicLong();
+  private long lastPurge;
+  // Guarded by pending.
+  private ScheduledFuture<?> expiryPurge;
+  private long expiryPurgeAt;
+
+  static PendingLoginRegistry getInstance() {
+    return instance;
+  }
+
+  private static SharedPreferences getSharedPreferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Registers a new login request, evicting the oldest one if there are too many.  The
+   * client is held until the request completes or expires, so that the code is exchanged
+   * by the client that asked for it.
+   */
+  void register(Context context,
+                String state,
+                HoomiClient client,
+                String redirectUri,
+                String clientId,
+                String clientSecret,
+                Task<HoomiAccessToken>.TaskCompletionSource tcs) {
+    PendingLogin login = new PendingLogin(state,
+        client.getApplicationId(),
+        client.getBaseApiUrl(),
+        redirectUri,
+        clientId,
+        clientSecret,
+        System.currentTimeMillis(),
+        client,
+        tcs);
+    List<PendingLogin> evicted = new ArrayList<PendingLogin>();
+    synchronized (pending) {
+      pending.put(state, login);
+      Iterator<PendingLogin> iterator = pending.values().iterator();
+      while (pending.size() > MAX_PENDING_LOGINS && iterator.hasNext()) {
+        evicted.add(iterator.next());
+        iterator.remove();
+      }
+    }
+    // Drop the evicted requests from disk in the same edit, so their redirects can't
+    // complete them and a later purge doesn't count them again.
+    SharedPreferences.Editor editor = getSharedPreferences(context).edit()
+        .putString(STATE_PREFIX + state, login.toJSONObject().toString());
+    for (PendingLogin superseded : evicted) {
+      editor.remove(STATE_PREFIX + superseded.getState());
+    }
+    editor.apply();
+    abandon(evicted, "Login request was superseded by newer login requests.");
+    purgeAsync(context, false);
+    schedulePurgeOnExpiry(context.getApplicationContext());
+  }
+
+  /**
+   * Removes and returns the login request for the given state.
+   *
+   * @return the pending login, or null if there is no live request for the state
+   */
+  PendingLogin take(Context context, String state) {
+    long now = System.currentTimeMillis();
+    PendingLogin login;
+    synchronized (pending) {
+      login = pending.remove(state);
+    }
+    SharedPreferences prefs = getSharedPreferences(context);
+    String key = STATE_PREFIX + state;
+    if (login == null) {
+      // The process may have been restarted since the request was made.
+      login = parse(state, prefs.getString(key, null));
+    }
+    if (login != null) {
+      prefs.edit().remove(key).apply();
+    }
+    purgeAsync(context, false);
+    if (login == null) {
+      return null;
+    }
+    if (login.isExpired(now)) {
+      abandon(login, "Login request expired.");
+      return null;
+    }
+    completedCount.incrementAndGet();
+    return login;
+  }
+
+  /**
+   * Purges expired requests from memory and disk on a background thread.
+   *
+   * @param force purge even if a purge ran recently
+   */
+  Task<Void> purgeAsync(Context context, boolean force) {
+    final Context appContext = context.getApplicationContext();
+    long now = System.currentTimeMillis();
+    synchronized (pending) {
+      if (!force && now - lastPurge < PURGE_INTERVAL_MILLIS && now >= lastPurge) {
+        return Task.forResult(null);
+      }
+      lastPurge = now;
+    }
+    return Task.callInBackground(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        purge(appContext);
+        return null;
+      }
+    });
+  }
+
+  private void purge(Context context) {
+    long now = System.currentTimeMillis();
+    List<PendingLogin> expired = new ArrayList<PendingLogin>();
+    synchronized (pending) {
+      Iterator<PendingLogin> iterator = pending.values().iterator();
+      while (iterator.hasNext()) {
+        PendingLogin login = iterator.next();
+        if (login.isExpired(now)) {
+          expired.add(login);
+          iterator.remove();
+        }
+      }
+    }
+    SharedPreferences prefs = getSharedPreferences(context);
+    if (!expired.isEmpty()) {
+      // Remove these from disk before scanning it, so they are only counted once.
+      SharedPreferences.Editor editor = prefs.edit();
+      for (PendingLogin login : expired) {
+        editor.remove(STATE_PREFIX + login.getState());
+      }
+      editor.apply();
+    }
+    abandon(expired, "Login request expired.");
+
+    SharedPreferences.Editor editor = null;
+    List<PendingLogin> live = new ArrayList<PendingLogin>();
+    for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+      String key = entry.getKey();
+      if (!key.startsWith(STATE_PREFIX)) {
+        continue;
+      }
+      Object value = entry.getValue();
+      PendingLogin login = value instanceof String ?
+          parse(key.substring(STATE_PREFIX.length()), (String) value) : null;
+      if (login == null || login.isExpired(now)) {
+        if (editor == null) {
+          editor = prefs.edit();
+        }
+        editor.remove(key);
+        if (login != null && !isPendingInMemory(login.getState())) {
+          // Requests from an earlier process; the ones held in memory are counted when
+          // they expire there.
+          abandonedCount.incrementAndGet();
+        }
+      } else {
+        live.add(login);
+      }
+    }
+    // Keep the disk bounded as well, dropping the oldest requests first.
+    while (live.size() > MAX_PENDING_LOGINS) {
+      PendingLogin oldest = live.get(0);
+      for (PendingLogin login : live) {
+        if (login.getCreated() < oldest.getCreated()) {
+          oldest = login;
+        }
+      }
+      live.remove(oldest);
+      if (editor == null) {
+        editor = prefs.edit();
+      }
+      editor.remove(STATE_PREFIX + oldest.getState());
+      if (!isPendingInMemory(oldest.getState())) {
+        abandonedCount.incrementAndGet();
+      }
+    }
+    if (editor != null) {
+      editor.apply();
+    }
+    schedulePurgeOnExpiry(context);
+  }
+
+  /**
+   * Schedules a purge for just after the oldest request in memory expires, replacing any
+   * scheduled for a request that has gone since.
+   */
+  private void schedulePurgeOnExpiry(final Context context) {
+    synchronized (pending) {
+      if (pending.isEmpty()) {
+        if (expiryPurge != null) {
+          expiryPurge.cancel(false);
+          expiryPurge = null;
+        }
+        return;
+      }
+      long due = pending.values().iterator().next().getCreated() + TIME_TO_LIVE_MILLIS + 1;
+      if (expiryPurge != null) {
+        if (expiryPurgeAt == due) {
+          return;
+        }
+        expiryPurge.cancel(false);
+      }
+      expiryPurgeAt = due;
+      expiryPurge = BackgroundScheduler.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          purgeAsync(context, true);
+        }
+      }, Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private boolean isPendingInMemory(String state) {
+    synchronized (pending) {
+      return pending.containsKey(state);
+    }
+  }
+
+  private void abandon(List<PendingLogin> logins, String reason) {
+    for (PendingLogin login : logins) {
+      abandon(login, reason);
+    }
+  }
+
+  private void abandon(PendingLogin login, String reason) {
+    abandonedCount.incrementAndGet();
+    if (login.getTaskCompletionSource() != null) {
+      login.getTaskCompletionSource().trySetError(new HoomiException(reason));
+    }
+  }
+
+  private static PendingLogin parse(String state, String serialized) {
+    if (serialized == null) {
+      return null;
+    }
+    try {
+      JSONObject obj = new JSONObject(serialized);
+      // Entries written before expiry was tracked have no creation time; treat them as stale.
+      return new PendingLogin(state,
+          obj.optString("applicationId", null),
+          obj.optString("baseApiUrl", HoomiClient.DEFAULT_BASE_API_URL),
+          obj.getString("redirectUri"),
+          obj.getString("clientId"),
+          obj.optString("clientSecret"),
+          obj.optLong("created", 0),
+          null,
+          null);
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the number of login requests currently held in memory.
+   */
+  int getPendingCount() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Gets the number of login requests that expired or were evicted before their
+   * redirect arrived.
+   */
+  long getAbandonedCount() {
+    return abandonedCount.get();
+  }
+
+  /**
+   * Gets the number of login requests whose redirect arrived in time.
+   */
+  long getCompletedCount() {
+    return completedCount.get();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Estimates how far the device clock is from the server's, from the Date headers of API
+ * responses, so that expiry times the server gives can be compared on devices whose
+ * clocks are wrong.
+ *
+ * Each response gives one sample: the server's time (the Date header, which is only
+ * accurate to the second) against the local time halfway through the request. The
+ * offset used is the median of the most recent samples, so one slow or odd response
+ * doesn't move it.
+ */
+class ServerClock {
+  static final int MAX_SAMPLES = 9;
+
+  private final long[] samples = new long[MAX_SAMPLES];
+  private int count;
+  private int next;
+  private volatile long offsetMillis;
+
+  ServerClock(long initialOffsetMillis) {
+    this.offsetMillis = initialOffsetMillis;
+  }
+
+  /**
+   * Gets how far the server's clock is ahead of the device's.
+   *
+   * @return the offset in milliseconds, negative if the device clock is ahead
+   */
+  long getOffsetMillis() {
+    return offsetMillis;
+  }
+
+  /**
+   * Gets the current time by the server's clock.
+   */
+  long now() {
+    return System.currentTimeMillis() + offsetMillis;
+  }
+
+  /**
+   * Converts a time by the server's clock to the device's clock.
+   */
+  long toLocal(long serverMillis) {
+    return serverMillis - offsetMillis;
+  }
+
+  /**
+   * Adds a sample from a response.
+   *
+   * @param dateHeader      the response's Date header, or null
+   * @param receivedMillis  the local time the response arrived
+   * @param roundTripMillis how long the request took
+   * @return true if the estimated offset changed
+   */
+  boolean addSample(String dateHeader, long receivedMillis, long roundTripMillis) {
+    if (dateHeader == null) {
+      return false;
+    }
+    Date date;
+    try {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      date = format.parse(dateHeader);
+    } catch (ParseException e) {
+      return false;
+    }
+    // The header is truncated to the second, so on average the real time is half a
+    // second later.
+    long server = date.getTime() + 500;
+    long local = receivedMillis - roundTripMillis / 2;
+    synchronized (this) {
+      samples[next] = server - local;
+      next = (next + 1) % MAX_SAMPLES;
+      count = Math.min(MAX_SAMPLES, count + 1);
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      long median = sorted[count / 2];
+      if (median == offsetMillis) {
+        return false;
+      }
+      offsetMillis = median;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi;
+
+import android.content.SharedPreferences;
+
+/**
+ * Feeds a ServerClock from the responses an engine receives from one Hoomi API, and keeps
+ * its estimate in preferences between runs.
+ *
+ * A client created directly samples for itself; the clients of a HoomiClientRegistry
+ * share the registry's, so an engine never has more than one listener per API doing this.
+ */
+class ServerClockSampler implements HttpEngine.Listener {
+  static final String PREFERENCE_KEY = "clockOffset";
+
+  private final SharedPreferences preferences;
+  private final ServerClock clock;
+  private volatile String baseApiUrl;
+  private long persistedOffset;
+
+  ServerClockSampler(SharedPreferences preferences, String baseApiUrl) {
+    this.preferences = preferences;
+    this.baseApiUrl = baseApiUrl;
+    this.persistedOffset = preferences.getLong(PREFERENCE_KEY, 0);
+    this.clock = new ServerClock(persistedOffset);
+  }
+
+  ServerClock getClock() {
+    return clock;
+  }
+
+  /**
+   * Changes which responses are sampled.
+   *
+   * @param baseApiUrl the base URL of the API, ending in a slash
+   */
+  void setBaseApiUrl(String baseApiUrl) {
+    this.baseApiUrl = baseApiUrl;
+  }
+
+  @Override
+  public void onRequestCompleted(HttpEngine.Request request,
+                                 HttpEngine.Response response,
+                                 Exception error,
+                                 long queuedMillis,
+                                 long elapsedMillis) {
+    if (response == null || !request.getUrl().toString().startsWith(baseApiUrl)) {
+      return;
+    }
+    if (clock.addSample(response.getHeader("Date"), System.currentTimeMillis(), elapsedMillis)) {
+      persist();
+    }
+  }
+
+  private void persist() {
+    long offset = clock.getOffsetMillis();
+    synchronized (this) {
+      // Only rewrite the preferences when the estimate has really moved.
+      if (Math.abs(offset - persistedOffset) < 1000) {
+        return;
+      }
+      persistedOffset = offset;
+    }
+    preferences.edit().putLong(PREFERENCE_KEY, offset).apply();
+  }
+}
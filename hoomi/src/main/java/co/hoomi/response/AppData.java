@@ -6,12 +6,22 @@ package co.hoomi.response;
 
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * Represents app data stored with a user.
+ *
+ * App data read with a list of fields is partial: it holds only those key paths, and
+ * saving it with HoomiClient.setAppDataAsync(HoomiAccessToken, AppData) writes back just
+ * those paths, leaving the rest of the user's data alone.
  */
 public class AppData {
   private JSONObject data;
   private String eTag;
+  private final Set<String> fields;
 
   /**
    * Creates an AppData instance with the given data and ETag.
@@ -20,8 +30,21 @@ public class AppData {
    * @param eTag the ETag of the app data (used for optimistic concurrency)
    */
   public AppData(JSONObject data, String eTag) {
+    this(data, eTag, null);
+  }
+
+  /**
+   * Creates an AppData instance holding only some fields of the user's app data.
+   *
+   * @param data   the requested fields of the app data
+   * @param eTag   the ETag of the whole app data (used for optimistic concurrency)
+   * @param fields the dotted key paths that were requested, or null for all of the data
+   */
+  public AppData(JSONObject data, String eTag, Collection<String> fields) {
     this.data = data;
     this.eTag = eTag;
+    this.fields = fields != null ?
+        Collections.unmodifiableSet(new LinkedHashSet<String>(fields)) : null;
   }
 
   /**
@@ -60,4 +83,22 @@ public class AppData {
   public String getETag() {
     return eTag;
   }
+
+  /**
+   * Gets whether this holds only some fields of the user's app data.
+   *
+   * @return true if the data was read with a list of fields
+   */
+  public boolean isPartial() {
+    return fields != null;
+  }
+
+  /**
+   * Gets the key paths this app data was read with.
+   *
+   * @return the dotted key paths, or null if this holds all of the data
+   */
+  public Set<String> getFields() {
+    return fields;
+  }
 }
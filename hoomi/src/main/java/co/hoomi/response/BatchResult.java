@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.response;
+
+import co.hoomi.HoomiAccessToken;
+
+/**
+ * Represents the outcome of one item in a batch request.
+ *
+ * @param <T> the type of result for each item
+ */
+public class BatchResult<T> {
+  private final HoomiAccessToken token;
+  private final T result;
+  private final Exception error;
+
+  /**
+   * Creates a BatchResult.
+   *
+   * @param token  the token the item was requested for
+   * @param result the result for the item, or null if it failed
+   * @param error  the error for the item, or null if it succeeded
+   */
+  public BatchResult(HoomiAccessToken token, T result, Exception error) {
+    this.token = token;
+    this.result = result;
+    this.error = error;
+  }
+
+  /**
+   * Gets the token the item was requested for.
+   *
+   * @return the token
+   */
+  public HoomiAccessToken getToken() {
+    return token;
+  }
+
+  /**
+   * Gets the result for the item.
+   *
+   * @return the result, or null if the item failed
+   */
+  public T getResult() {
+    return result;
+  }
+
+  /**
+   * Gets the error for the item.
+   *
+   * @return the error, or null if the item succeeded
+   */
+  public Exception getError() {
+    return error;
+  }
+
+  /**
+   * Whether the item failed.
+   *
+   * @return true if and only if the item failed
+   */
+  public boolean isFaulted() {
+    return error != null;
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.response;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * App data that keeps the raw JSON and only parses the parts that are read.
+ *
+ * The JSON is held either as bytes in memory or as a memory-mapped file. The first
+ * lookup in an object scans it once to record where each of its values starts and ends;
+ * later lookups go straight to the value and parse just that. Nested objects are indexed
+ * the same way when a key path first goes through them. Nothing is cached apart from
+ * these offsets, so heap usage stays flat however large the data is.
+ *
+ * Calling {@link #getData()} parses the whole document, as with plain AppData; after
+ * that, lookups read the parsed (and possibly modified) object instead.
+ */
+public class LazyAppData extends AppData {
+  private final ByteBuffer source;
+  private final int start;
+  private final int end;
+  // Object indexes by the offset of their opening brace.
+  private final Map<Integer, ObjectIndex> indexes = new HashMap<Integer, ObjectIndex>();
+
+  private static class ObjectIndex {
+    final Map<String, Integer> positions = new HashMap<String, Integer>();
+    final String[] keys;
+    final int[] valueStarts;
+    final int[] valueEnds;
+
+    ObjectIndex(List<String> keys, int[] valueStarts, int[] valueEnds) {
+      this.keys = keys.toArray(new String[keys.size()]);
+      this.valueStarts = valueStarts;
+      this.valueEnds = valueEnds;
+      for (int i = 0; i < this.keys.length; i++) {
+        positions.put(this.keys[i], i);
+      }
+    }
+  }
+
+  /**
+   * Creates a LazyAppData over the JSON object in the given range of a buffer.
+   *
+   * @param source the buffer holding the JSON, which must not change afterwards
+   * @param start  the offset of the object's opening brace
+   * @param end    the offset just past the object's closing brace
+   * @param eTag   the ETag of the app data (used for optimistic concurrency)
+   */
+  LazyAppData(ByteBuffer source, int start, int end, String eTag) {
+    super(null, eTag);
+    this.source = source;
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Creates a LazyAppData from a response body of the form {"data": {...}}.
+   *
+   * @param body the response body
+   * @param eTag the ETag of the app data
+   * @return the app data
+   */
+  public static LazyAppData fromResponse(byte[] body, String eTag) throws JSONException {
+    return fromResponse(ByteBuffer.wrap(body), eTag);
+  }
+
+  /**
+   * Creates a LazyAppData by memory-mapping a file holding a response body of the form
+   * {"data": {...}}.  The file must not be modified while the app data is in use.
+   *
+   * @param file the file holding the response body
+   * @param eTag the ETag of the app data
+   * @return the app data
+   */
+  public static LazyAppData fromResponse(File file, String eTag) throws IOException, JSONException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = input.getChannel();
+      return fromResponse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), eTag);
+    } finally {
+      // The mapping stays valid after the file is closed.
+      input.close();
+    }
+  }
+
+  private static LazyAppData fromResponse(ByteBuffer body, String eTag) throws JSONException {
+    Scanner scanner = new Scanner(body, body.limit());
+    ObjectIndex response = scanner.indexObject(scanner.skipWhitespace(0));
+    Integer data = response.positions.get("data");
+    if (data == null || body.get(response.valueStarts[data]) != '{') {
+      throw new JSONException("Response has no data object");
+    }
+    return new LazyAppData(body, response.valueStarts[data], response.valueEnds[data], eTag);
+  }
+
+  /**
+   * Gets the size of the raw JSON.
+   *
+   * @return the number of bytes of JSON behind this app data
+   */
+  public int getRawLength() {
+    return end - start;
+  }
+
+  /**
+   * Gets whether the whole document has been parsed by a call to getData.
+   *
+   * @return whether the data has been materialized
+   */
+  public synchronized boolean isMaterialized() {
+    return super.getData() != null;
+  }
+
+  /**
+   * Gets the app data, parsing the whole document the first time.
+   *
+   * @return the app data for the user
+   */
+  @Override
+  public synchronized JSONObject getData() {
+    JSONObject data = super.getData();
+    if (data == null) {
+      try {
+        data = (JSONObject) parse(start, end);
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+      super.setData(data);
+    }
+    return data;
+  }
+
+  @Override
+  public synchronized void setData(JSONObject data) {
+    super.setData(data);
+  }
+
+  /**
+   * Gets the top-level keys of the app data.
+   *
+   * @return the keys, in document order
+   */
+  public synchronized List<String> keys() throws JSONException {
+    JSONObject data = super.getData();
+    if (data != null) {
+      ArrayList<String> keys = new ArrayList<String>();
+      Iterator<?> iterator = data.keys();
+      while (iterator.hasNext()) {
+        keys.add((String) iterator.next());
+      }
+      return keys;
+    }
+    return Collections.unmodifiableList(Arrays.asList(index(start).keys));
+  }
+
+  /**
+   * Determines whether a key path exists.
+   *
+   * @param path the keys to follow from the top level, one per nested object
+   * @return whether there is a value at the path
+   */
+  public synchronized boolean has(String... path) throws JSONException {
+    if (super.getData() != null) {
+      return opt(path) != null;
+    }
+    return locate(path) != null;
+  }
+
+  /**
+   * Gets the value at a key path, parsing only that value.
+   *
+   * @param path the keys to follow from the top level, one per nested object
+   * @return the value (a JSONObject, JSONArray, String, Number, Boolean or
+   * JSONObject.NULL), or null if there is nothing at the path
+   */
+  public synchronized Object opt(String... path) throws JSONException {
+    JSONObject data = super.getData();
+    if (data != null) {
+      Object value = data;
+      for (String key : path) {
+        if (!(value instanceof JSONObject)) {
+          return null;
+        }
+        value = ((JSONObject) value).opt(key);
+      }
+      return value;
+    }
+    int[] range = locate(path);
+    return range != null ? parse(range[0], range[1]) : null;
+  }
+
+  /**
+   * Gets the object at a key path, parsing only that object.
+   *
+   * @param path the keys to follow from the top level, one per nested object
+   * @return the object, or null if there is no object at the path
+   */
+  public JSONObject optJSONObject(String... path) throws JSONException {
+    Object value = opt(path);
+    return value instanceof JSONObject ? (JSONObject) value : null;
+  }
+
+  /**
+   * Gets the string at a key path, parsing only that value.
+   *
+   * @param path the keys to follow from the top level, one per nested object
+   * @return the string, or null if there is no string at the path
+   */
+  public String optString(String... path) throws JSONException {
+    Object value = opt(path);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /**
+   * Finds the byte range of the value at a key path in the raw JSON.
+   */
+  private int[] locate(String... path) throws JSONException {
+    if (super.getData() != null) {
+      return null;
+    }
+    int objectStart = start;
+    int[] range = new int[]{start, end};
+    for (String key : path) {
+      if (source.get(objectStart) != '{') {
+        return null;
+      }
+      ObjectIndex index = index(objectStart);
+      Integer position = index.positions.get(key);
+      if (position == null) {
+        return null;
+      }
+      range = new int[]{index.valueStarts[position], index.valueEnds[position]};
+      objectStart = range[0];
+    }
+    return range;
+  }
+
+  private ObjectIndex index(int objectStart) throws JSONException {
+    ObjectIndex index = indexes.get(objectStart);
+    if (index == null) {
+      index = new Scanner(source, end).indexObject(objectStart);
+      indexes.put(objectStart, index);
+    }
+    return index;
+  }
+
+  private Object parse(int valueStart, int valueEnd) throws JSONException {
+    byte[] bytes = new byte[valueEnd - valueStart];
+    ByteBuffer slice = source.duplicate();
+    slice.position(valueStart);
+    slice.get(bytes);
+    try {
+      return new JSONTokener(new String(bytes, "UTF-8")).nextValue();
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Finds the extent of JSON values in a buffer without parsing them.
+   */
+  private static class Scanner {
+    private final ByteBuffer source;
+    private final int limit;
+
+    Scanner(ByteBuffer source, int limit) {
+      this.source = source;
+      this.limit = limit;
+    }
+
+    ObjectIndex indexObject(int objectStart) throws JSONException {
+      List<String> keys = new ArrayList<String>();
+      int[] valueStarts = new int[8];
+      int[] valueEnds = new int[8];
+      int position = skipWhitespace(objectStart);
+      expect(position, '{');
+      position = skipWhitespace(position + 1);
+      if (peek(position) == '}') {
+        return new ObjectIndex(keys, valueStarts, valueEnds);
+      }
+      while (true) {
+        expect(position, '"');
+        int keyEnd = skipString(position);
+        String key = decodeString(position, keyEnd);
+        position = skipWhitespace(keyEnd);
+        expect(position, ':');
+        int valueStart = skipWhitespace(position + 1);
+        int valueEnd = skipValue(valueStart);
+        if (keys.size() == valueStarts.length) {
+          valueStarts = Arrays.copyOf(valueStarts, valueStarts.length * 2);
+          valueEnds = Arrays.copyOf(valueEnds, valueEnds.length * 2);
+        }
+        valueStarts[keys.size()] = valueStart;
+        valueEnds[keys.size()] = valueEnd;
+        keys.add(key);
+        position = skipWhitespace(valueEnd);
+        byte next = peek(position);
+        if (next == '}') {
+          return new ObjectIndex(keys,
+              Arrays.copyOf(valueStarts, keys.size()),
+              Arrays.copyOf(valueEnds, keys.size()));
+        }
+        expect(position, ',');
+        position = skipWhitespace(position + 1);
+      }
+    }
+
+    int skipWhitespace(int position) {
+      while (position < limit) {
+        byte b = source.get(position);
+        if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+          break;
+        }
+        position++;
+      }
+      return position;
+    }
+
+    /**
+     * Returns the offset just past the value starting at the given offset.
+     */
+    int skipValue(int position) throws JSONException {
+      byte first = peek(position);
+      if (first == '"') {
+        return skipString(position);
+      }
+      if (first == '{' || first == '[') {
+        int depth = 0;
+        while (position < limit) {
+          byte b = source.get(position);
+          if (b == '"') {
+            position = skipString(position);
+            continue;
+          }
+          if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            depth--;
+            if (depth == 0) {
+              return position + 1;
+            }
+          }
+          position++;
+        }
+        throw new JSONException("Unterminated value at " + position);
+      }
+      // A number or literal runs until the next delimiter.
+      while (position < limit) {
+        byte b = source.get(position);
+        if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' ||
+            b == '\r') {
+          break;
+        }
+        position++;
+      }
+      return position;
+    }
+
+    /**
+     * Returns the offset just past the string starting at the given quote.
+     */
+    int skipString(int position) throws JSONException {
+      position++;
+      while (position < limit) {
+        byte b = source.get(position);
+        if (b == '\\') {
+          position += 2;
+          continue;
+        }
+        if (b == '"') {
+          return position + 1;
+        }
+        position++;
+      }
+      throw new JSONException("Unterminated string");
+    }
+
+    String decodeString(int stringStart, int stringEnd) throws JSONException {
+      byte[] bytes = new byte[stringEnd - stringStart];
+      boolean escaped = false;
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = source.get(stringStart + i);
+        escaped |= bytes[i] == '\\';
+      }
+      try {
+        if (!escaped) {
+          return new String(bytes, 1, bytes.length - 2, "UTF-8");
+        }
+        return (String) new JSONTokener(new String(bytes, "UTF-8")).nextValue();
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private byte peek(int position) throws JSONException {
+      if (position >= limit) {
+        throw new JSONException("Unexpected end of data");
+      }
+      return source.get(position);
+    }
+
+    private void expect(int position, char expected) throws JSONException {
+      if (peek(position) != expected) {
+        throw new JSONException("Expected '" + expected + "' at " + position);
+      }
+    }
+  }
+}
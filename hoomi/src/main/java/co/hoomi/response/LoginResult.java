@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015. Hoomi, Inc. All Rights Reserved
+ */
+
+package co.hoomi.response;
+
+import co.hoomi.HoomiAccessToken;
+
+/**
+ * Represents the outcome of a login, along with any data that was prefetched for the
+ * newly logged in user.
+ */
+public class LoginResult {
+  private final HoomiAccessToken token;
+  private final TokenInformation tokenInformation;
+  private final Exception tokenInformationError;
+  private final AppData appData;
+  private final Exception appDataError;
+
+  /**
+   * Creates a LoginResult.
+   *
+   * @param token                 the token for the logged in user
+   * @param tokenInformation      the prefetched token information, if any
+   * @param tokenInformationError the error raised while prefetching token information, if any
+   * @param appData               the prefetched app data, if any
+   * @param appDataError          the error raised while prefetching app data, if any
+   */
+  public LoginResult(HoomiAccessToken token,
+                     TokenInformation tokenInformation,
+                     Exception tokenInformationError,
+                     AppData appData,
+                     Exception appDataError) {
+    this.token = token;
+    this.tokenInformation = tokenInformation;
+    this.tokenInformationError = tokenInformationError;
+    this.appData = appData;
+    this.appDataError = appDataError;
+  }
+
+  /**
+   * Gets the token for the logged in user.
+   *
+   * @return the token
+   */
+  public HoomiAccessToken getToken() {
+    return token;
+  }
+
+  /**
+   * Gets the token information fetched after login.
+   *
+   * @return the token information, or null if it was not requested or could not be fetched
+   */
+  public TokenInformation getTokenInformation() {
+    return tokenInformation;
+  }
+
+  /**
+   * Gets the error raised while fetching token information after login.
+   *
+   * @return the error, or null if there was none
+   */
+  public Exception getTokenInformationError() {
+    return tokenInformationError;
+  }
+
+  /**
+   * Gets the app data fetched after login.
+   *
+   * @return the app data, or null if it was not requested or could not be fetched
+   */
+  public AppData getAppData() {
+    return appData;
+  }
+
+  /**
+   * Gets the error raised while fetching app data after login.
+   *
+   * @return the error, or null if there was none
+   */
+  public Exception getAppDataError() {
+    return appDataError;
+  }
+}